@@ -19,13 +19,18 @@ package ai.susi.mind;
  */
 
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * A thought is a piece of data that can be remembered. The structure or the thought can be
@@ -121,6 +126,20 @@ public class SusiThought extends JSONObject {
         return getMetadata().has("offset") ? getMetadata().getInt("offset") : 0;
     }
     
+    /**
+     * A thought which failed to be processed may be tried again. The number of attempts is counted here.
+     * @param attempts the number of previous attempts to process this thought
+     * @return the thought
+     */
+    public SusiThought setAttempts(int attempts) {
+        getMetadata().put("attempts", attempts);
+        return this;
+    }
+    
+    public int getAttempts() {
+        return getMetadata().has("attempts") ? getMetadata().getInt("attempts") : 0;
+    }
+    
     /**
      * The number of information pieces in a set of informations may have a count.
      * @return hits number of information pieces
@@ -414,6 +433,26 @@ public class SusiThought extends JSONObject {
     public JSONObject toJSON() {
         return this;
     }
+
+    /**
+     * serialize the thought for a message queue. Messages are written as minified JSON in UTF-8;
+     * the indentation of toString() is only for debugging output.
+     * @return the thought as message payload
+     */
+    public byte[] toMessage() {
+        return super.toString(0).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * read a thought from a message payload. The payload is parsed directly from the bytes.
+     * This also reads messages which were written with indentation by older versions.
+     * @param message the message payload
+     * @return the thought
+     * @throws JSONException if the message is not a json object
+     */
+    public static SusiThought fromMessage(byte[] message) throws JSONException {
+        return new SusiThought(new JSONObject(new JSONTokener(new InputStreamReader(new ByteArrayInputStream(message), StandardCharsets.UTF_8))));
+    }
     
     public String toString() {
         return super.toString(2); // thats here to get a better debugging output
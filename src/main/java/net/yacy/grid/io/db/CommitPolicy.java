@@ -0,0 +1,144 @@
+/**
+ *  CommitPolicy
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.db;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mapdb.DB;
+
+import net.yacy.grid.tools.Logger;
+
+/**
+ * A CommitPolicy defines when changes of a transactional store are written to disk:
+ * - after each operation (interval = 0, count = 1)
+ * - as a group commit after a time interval (interval > 0, count = 0)
+ * - as a group commit after a number of operations (interval = 0, count > 0)
+ * - whatever comes first of both (interval > 0, count > 0).
+ * Timed commits are done by a shared background thread.
+ */
+public class CommitPolicy {
+
+    public final static CommitPolicy PER_OPERATION = new CommitPolicy(0, 1);
+
+    private final static ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "CommitPolicy.committer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long interval;
+    private final int count;
+
+    /**
+     * create a commit policy
+     * @param interval the maximum time in milliseconds between a change and its commit; 0 = no timed commit
+     * @param count the number of changes which trigger a commit; 0 = no counted commit
+     */
+    public CommitPolicy(final long interval, final int count) {
+        this.interval = Math.max(0, interval);
+        this.count = this.interval == 0 && count <= 0 ? 1 : Math.max(0, count);
+    }
+
+    /**
+     * parse a commit policy from the configuration
+     * @param mode one of "operation", "time", "count" or "group" (time and count)
+     * @param interval the commit interval for mode "time" and "group"
+     * @param count the number of operations for mode "count" and "group"
+     * @return the commit policy
+     */
+    public static CommitPolicy parse(final String mode, final long interval, final int count) {
+        if ("time".equals(mode)) return new CommitPolicy(interval, 0);
+        if ("count".equals(mode)) return new CommitPolicy(0, count);
+        if ("group".equals(mode)) return new CommitPolicy(interval, count);
+        return PER_OPERATION;
+    }
+
+    public long getInterval() {
+        return this.interval;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public boolean isPerOperation() {
+        return this.interval == 0 && this.count == 1;
+    }
+
+    /**
+     * create a committer which applies this policy to a database
+     * @param db the database
+     * @return a committer for the database
+     */
+    public Committer committer(final DB db) {
+        return new Committer(db);
+    }
+
+    @Override
+    public String toString() {
+        return isPerOperation() ? "operation" : "interval=" + this.interval + ", count=" + this.count;
+    }
+
+    public class Committer {
+
+        private final DB db;
+        private final AtomicInteger changes;
+        private final ScheduledFuture<?> task;
+
+        private Committer(final DB db) {
+            this.db = db;
+            this.changes = new AtomicInteger(0);
+            this.task = CommitPolicy.this.interval > 0 ?
+                    committer.scheduleWithFixedDelay(this::flush, CommitPolicy.this.interval, CommitPolicy.this.interval, TimeUnit.MILLISECONDS) : null;
+        }
+
+        /**
+         * report a change of the database. This commits the database if the count of changes is reached.
+         */
+        public void changed() {
+            final int c = this.changes.incrementAndGet();
+            if (CommitPolicy.this.count > 0 && c >= CommitPolicy.this.count) flush();
+        }
+
+        /**
+         * commit all changes
+         */
+        public void flush() {
+            if (this.changes.getAndSet(0) == 0) return;
+            try {
+                this.db.commit();
+            } catch (final Throwable e) {
+                Logger.warn(this.getClass(), "CommitPolicy: commit failed", e);
+            }
+        }
+
+        /**
+         * stop the timed commits and commit all changes
+         */
+        public void close() {
+            if (this.task != null) this.task.cancel(false);
+            flush();
+        }
+    }
+}
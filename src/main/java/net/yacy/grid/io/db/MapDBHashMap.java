@@ -34,13 +34,24 @@ public class MapDBHashMap implements CloseableMap<String, String> {
 
     private DB db;
     private HTreeMap<String, String> hashMap;
+    private CommitPolicy.Committer committer;
     
     public MapDBHashMap(File f) {
+        this(f, CommitPolicy.PER_OPERATION);
+    }
+
+    /**
+     * open a hash map
+     * @param f the database file
+     * @param commitPolicy the policy which decides when changes are committed
+     */
+    public MapDBHashMap(File f, CommitPolicy commitPolicy) {
         this.db = DBMaker.fileDB(f).closeOnJvmShutdown().transactionEnable().make();
         this.hashMap = db.hashMap(f.getName())
                 .keySerializer(Serializer.STRING)
                 .valueSerializer(Serializer.STRING)
                 .createOrOpen();
+        this.committer = commitPolicy.committer(this.db);
     }
 
     @Override
@@ -70,22 +81,28 @@ public class MapDBHashMap implements CloseableMap<String, String> {
 
     @Override
     public String put(String key, String value) {
-        return this.hashMap.put(key, value);
+        String s = this.hashMap.put(key, value);
+        this.committer.changed();
+        return s;
     }
 
     @Override
     public String remove(Object key) {
-        return this.hashMap.remove(key);
+        String s = this.hashMap.remove(key);
+        this.committer.changed();
+        return s;
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends String> m) {
         this.hashMap.putAll(m);
+        this.committer.changed();
     }
 
     @Override
     public void clear() {
         this.hashMap.clear();
+        this.committer.changed();
     }
 
     @SuppressWarnings("unchecked")
@@ -107,6 +124,7 @@ public class MapDBHashMap implements CloseableMap<String, String> {
 
     @Override
     public void close() throws IOException {
+        this.committer.close();
         this.hashMap.close();
         this.db.close();
     }
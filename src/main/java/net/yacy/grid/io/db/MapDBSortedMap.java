@@ -36,13 +36,24 @@ public class MapDBSortedMap implements NavigableCloseableMap<Long, byte[]>, Clos
 
     private DB db;
     private BTreeMap<Long, byte[]> treeMap;
+    private CommitPolicy.Committer committer;
 
     public MapDBSortedMap(File f) {
+        this(f, CommitPolicy.PER_OPERATION);
+    }
+
+    /**
+     * open a sorted map
+     * @param f the database file
+     * @param commitPolicy the policy which decides when changes are committed, including polls
+     */
+    public MapDBSortedMap(File f, CommitPolicy commitPolicy) {
         this.db = DBMaker.fileDB(f).closeOnJvmShutdown().transactionEnable().make();
         this.treeMap = this.db.treeMap(f.getName())
                 .keySerializer(Serializer.LONG)
                 .valueSerializer(Serializer.BYTE_ARRAY)
                 .createOrOpen();
+        this.committer = commitPolicy.committer(this.db);
     }
 
     @Override
@@ -73,27 +84,27 @@ public class MapDBSortedMap implements NavigableCloseableMap<Long, byte[]>, Clos
     @Override
     public byte[] put(Long key, byte[] value) {
         byte[] b = this.treeMap.put(key, value);
-    	this.db.commit();
+        this.committer.changed();
     	return b;
     }
 
     @Override
     public byte[] remove(Object key) {
     	byte[] b = this.treeMap.remove(key);
-    	this.db.commit();
+        this.committer.changed();
     	return b;
     }
 
     @Override
     public void putAll(Map<? extends Long, ? extends byte[]> m) {
         this.treeMap.putAll(m);
-    	this.db.commit();
+        this.committer.changed();
     }
 
     @Override
     public void clear() {
         this.treeMap.clear();
-    	this.db.commit();
+        this.committer.changed();
     }
 
     @SuppressWarnings("unchecked")
@@ -125,17 +136,21 @@ public class MapDBSortedMap implements NavigableCloseableMap<Long, byte[]>, Clos
 
     @Override
     public java.util.Map.Entry<Long, byte[]> pollFirstEntry() {
-        return this.treeMap.pollFirstEntry();
+        java.util.Map.Entry<Long, byte[]> entry = this.treeMap.pollFirstEntry();
+        if (entry != null) this.committer.changed();
+        return entry;
     }
 
     @Override
     public java.util.Map.Entry<Long, byte[]> pollLastEntry() {
-        return this.treeMap.pollLastEntry();
+        java.util.Map.Entry<Long, byte[]> entry = this.treeMap.pollLastEntry();
+        if (entry != null) this.committer.changed();
+        return entry;
     }
 
     @Override
     public void close() throws IOException {
-    	this.db.commit();
+        this.committer.close();
         this.treeMap.close();
         this.db.close();
     }
@@ -31,6 +31,7 @@ public class MapDBTableFactory implements TableFactory {
 
     private File location;
     private Map<String, MapTable> tables;
+    private CommitPolicy commitPolicy;
     
     /**
      * initialize a table factory. All tables will be stored at the
@@ -38,9 +39,20 @@ public class MapDBTableFactory implements TableFactory {
      * @param storageLocationPath the storage location for the tables
      */
     public MapDBTableFactory(File storageLocationPath) {
+        this(storageLocationPath, CommitPolicy.PER_OPERATION);
+    }
+
+    /**
+     * initialize a table factory. All tables will be stored at the
+     * given path as files
+     * @param storageLocationPath the storage location for the tables
+     * @param commitPolicy the commit policy of the tables
+     */
+    public MapDBTableFactory(File storageLocationPath, CommitPolicy commitPolicy) {
         this.location = storageLocationPath;
         this.location.mkdirs();
         this.tables = new ConcurrentHashMap<>();
+        this.commitPolicy = commitPolicy;
     }
     
     /**
@@ -58,7 +70,7 @@ public class MapDBTableFactory implements TableFactory {
         synchronized (this) {
             table = tables.get(databaseName);
             if (table != null) return table;
-            table = new MapTable(new MapDBHashMap(new File(this.location, databaseName)));
+            table = new MapTable(new MapDBHashMap(new File(this.location, databaseName), this.commitPolicy));
             this.tables.put(databaseName, table);
             return table;
         }
@@ -23,7 +23,10 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import net.yacy.grid.tools.Logger;
@@ -34,11 +37,12 @@ import net.yacy.grid.tools.Logger;
 public class MapStack<A> implements Stack<A> {
 
     private NavigableCloseableMap<Long, A> map;
-    private AtomicLong cc;
+    private AtomicLong cc; // the last key; keys are strictly increasing, also across restarts
 
     public MapStack(NavigableCloseableMap<Long, A> backedMap) {
         this.map = backedMap;
-        this.cc = new AtomicLong(0);
+        Map.Entry<Long, A> last = this.map.isEmpty() ? null : this.map.lastEntry();
+        this.cc = new AtomicLong(Math.max(System.currentTimeMillis(), last == null ? 0 : last.getKey()));
     }
 
     @Override
@@ -60,7 +64,15 @@ public class MapStack<A> implements Stack<A> {
 
     @Override
     public MapStack<A> push(A value) {
-        this.map.put(System.currentTimeMillis() + this.cc.incrementAndGet(), value);
+        this.map.put(this.cc.incrementAndGet(), value);
+        return this;
+    }
+
+    @Override
+    public MapStack<A> push(List<A> values) {
+        Map<Long, A> m = new TreeMap<>();
+        for (A value: values) m.put(this.cc.incrementAndGet(), value);
+        this.map.putAll(m);
         return this;
     }
 
@@ -69,6 +81,17 @@ public class MapStack<A> implements Stack<A> {
         return this.map.firstEntry().getValue();
     }
 
+    @Override
+    public List<A> bot(int count) {
+        List<A> values = new ArrayList<>();
+        if (count <= 0) return values;
+        for (A value: this.map.values()) {
+            values.add(value);
+            if (values.size() >= count) break;
+        }
+        return values;
+    }
+
     @Override
     public A pot() {
         Map.Entry<Long, A> entry = this.map.pollFirstEntry();
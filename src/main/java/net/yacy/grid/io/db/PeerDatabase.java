@@ -29,10 +29,16 @@ public class PeerDatabase implements Database {
 
     private File basePath;
     private Map<String, TableFactory> dbConnector;
+    private CommitPolicy commitPolicy;
     
     public PeerDatabase(File basePath) {
+        this(basePath, CommitPolicy.PER_OPERATION);
+    }
+
+    public PeerDatabase(File basePath, CommitPolicy commitPolicy) {
         this.basePath = basePath;
         this.dbConnector = new ConcurrentHashMap<>();
+        this.commitPolicy = commitPolicy;
     }
     
     private TableFactory getConnector(String serviceName) {
@@ -43,7 +49,7 @@ public class PeerDatabase implements Database {
             if (tableFactory != null)  return tableFactory;
             File clientPath = new File(this.basePath, serviceName);
             clientPath.mkdirs();
-            tableFactory = new MapDBTableFactory(clientPath);
+            tableFactory = new MapDBTableFactory(clientPath, this.commitPolicy);
             this.dbConnector.put(serviceName, tableFactory);
         }
         return tableFactory;
@@ -21,6 +21,7 @@ package net.yacy.grid.io.db;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Interface for a stack which provides FIFO and FILO functionality
@@ -53,12 +54,26 @@ public interface Stack<A> extends Closeable {
      */
     public Stack<A> push(A value);
 
+    /**
+     * add a list of values on top of the queue in one operation
+     * @param values
+     * @return the stack
+     */
+    public Stack<A> push(List<A> values);
+
     /**
      * get the first entry in the stack without removing it
      * @return the first entry in the stack
      */
     public A bot();
 
+    /**
+     * get the first entries in the stack without removing them
+     * @param count the maximum number of entries
+     * @return the first entries in the stack, in the order in which pot() would return them
+     */
+    public List<A> bot(int count);
+
     /**
      * get the first entry in the stack, removing it after returning
      * @return the first entry in the stack
@@ -610,8 +610,25 @@ public class ElasticsearchClient {
      *            This must be a list, because keys may appear several times.
      */
     public BulkWriteResult writeMapBulk(final String indexName, final List<BulkEntry> jsonMapList) {
+        return writeMapBulk(indexName, jsonMapList, false);
+    }
+
+    /**
+     * bulk message write with the semantics of writeMap: fields of an existing document which are not
+     * contained in the new document are kept, a document which does not exist is created.
+     * @param indexName
+     *            the name of the index
+     * @param jsonMapList
+     *            a list of json documents to be merged into the index
+     * @return the errors and the ids of the created documents, same as in writeMapBulk
+     */
+    public BulkWriteResult writeMapBulkUpsert(final String indexName, final List<BulkEntry> jsonMapList) {
+        return writeMapBulk(indexName, jsonMapList, true);
+    }
+
+    private BulkWriteResult writeMapBulk(final String indexName, final List<BulkEntry> jsonMapList, final boolean upsert) {
         while (true) try {
-            return writeMapBulkInternal(indexName, jsonMapList);
+            return writeMapBulkInternal(indexName, jsonMapList, upsert);
         } catch (NoNodeAvailableException | IllegalStateException | ClusterBlockException | SearchPhaseExecutionException e) {
             Logger.info(this.getClass(), "ElasticsearchClient writeMapBulk failed with " + e.getMessage() + ", retrying to connect node...");
             try {Thread.sleep(1000);} catch (InterruptedException ee) {}
@@ -620,15 +637,22 @@ public class ElasticsearchClient {
         }
     }
 
-    private BulkWriteResult writeMapBulkInternal(final String indexName, final List<BulkEntry> jsonMapList) {
+    private BulkWriteResult writeMapBulkInternal(final String indexName, final List<BulkEntry> jsonMapList, final boolean upsert) {
         long start = System.currentTimeMillis();
         BulkRequestBuilder bulkRequest = this.elasticsearchClient.prepareBulk();
         for (BulkEntry be: jsonMapList) {
             if (be.id == null) continue;
-            bulkRequest.add(
-                    this.elasticsearchClient.prepareIndex(indexName, be.type, be.id).setSource(be.jsonMap)
-                        .setCreate(false) // enforces OpType.INDEX
-                        .setVersionType(VersionType.INTERNAL));
+            if (upsert) {
+                bulkRequest.add(
+                        this.elasticsearchClient.prepareUpdate(indexName, be.type, be.id)
+                            .setDoc(be.jsonMap)
+                            .setDocAsUpsert(true));
+            } else {
+                bulkRequest.add(
+                        this.elasticsearchClient.prepareIndex(indexName, be.type, be.id).setSource(be.jsonMap)
+                            .setCreate(false) // enforces OpType.INDEX
+                            .setVersionType(VersionType.INTERNAL));
+            }
         }
         BulkResponse bulkResponse = bulkRequest.get();
         BulkWriteResult result = new BulkWriteResult();
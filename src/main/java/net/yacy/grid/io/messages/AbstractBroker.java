@@ -24,20 +24,27 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.yacy.grid.Services;
-import net.yacy.grid.YaCyServices;
 import net.yacy.grid.tools.Logger;
 
 public abstract class AbstractBroker implements Broker {
 
     private final static Random random = new Random();
+    private final static double BOUNDED_LOAD_FACTOR = 1.25d; // a queue is skipped by BOUNDED_HASH if it has more entries than this factor times the average
+    private final static long MAX_RETRY_DELAY = 600000;
+    public final static String DEAD_LETTER_SUFFIX = "_dead";
     private final Map<Services, AtomicInteger> roundRobinLookup = new ConcurrentHashMap<>();
-    private final Map<Services, Map<String, Integer>> leastFilledLookup = new ConcurrentHashMap<>();
-    private final Map<Services, Set<String>> switchedIDsMap = new ConcurrentHashMap<>();
+    private final Map<Services, AffinityTable> affinityTables = new ConcurrentHashMap<>();
+    private int affinityCapacity = 100000;
+    private long affinityExpiry = 3600000;
+    private final QueueDepthMonitor depthMonitor = new QueueDepthMonitor(this);
+    private int priorityLevels = 0;
+    private final DelayedSender delayedSender = new DelayedSender(this);
+    private int retryAttempts = 5;
+    private long retryDelay = 1000;
 
     @Override
     public abstract void close() throws IOException;
@@ -45,20 +52,78 @@ public abstract class AbstractBroker implements Broker {
     @Override
     public abstract QueueFactory send(final Services service, final GridQueue queue, final byte[] message) throws IOException;
 
+    @Override
+    public abstract QueueFactory send(final Services service, final GridQueue queue, final List<byte[]> messages) throws IOException;
+
+    @Override
+    public abstract QueueFactory send(final Services service, final GridQueue queue, final byte[] message, final int priority) throws IOException;
+
+    @Override
+    public void sendDelayed(final Services service, final GridQueue queue, final byte[] message, final long delay) throws IOException {
+        this.delayedSender.schedule(service, queue, message, delay);
+    }
+
+    /**
+     * send all messages which wait in the delayed sender immediately. This must be done before the broker is closed.
+     */
+    protected void flushDelayed() {
+        this.delayedSender.flush();
+    }
+
+    /**
+     * set the retry strategy for messages which failed
+     * @param attempts the number of attempts after that a message is moved to the dead-letter queue
+     * @param delay the delay in milliseconds before the first retry; each further retry doubles the delay
+     */
+    protected void configureRetry(final int attempts, final long delay) {
+        this.retryAttempts = Math.max(0, attempts);
+        this.retryDelay = Math.max(1, delay);
+    }
+
+    public int getRetryAttempts() {
+        return this.retryAttempts;
+    }
+
+    /**
+     * the delay of a retry: the retry delay is doubled with each attempt, up to MAX_RETRY_DELAY
+     * @param attempt the number of the attempt, starting with 1
+     * @return the delay in milliseconds
+     */
+    public long retryDelay(final int attempt) {
+        final int shift = Math.max(0, Math.min(30, attempt - 1));
+        return Math.min(MAX_RETRY_DELAY, this.retryDelay << shift);
+    }
+
+    /**
+     * the queue for messages which failed after all retries
+     * @param queue the queue of the message
+     * @return the dead-letter queue of the given queue
+     */
+    public static GridQueue deadLetterQueue(final GridQueue queue) {
+        return new GridQueue(queue.name() + DEAD_LETTER_SUFFIX);
+    }
+
     @Override
     public QueueFactory send(final Services service, final GridQueue[] queues, final ShardingMethod shardingMethod, final int[] priorityDimensions, final int priority, final String hashingKey, final byte[] message) throws IOException {
-        return send(service, queueName(service, queues, shardingMethod, priorityDimensions, priority, hashingKey), message);
+        final GridQueue queue = queueName(service, queues, shardingMethod, priorityDimensions, priority, hashingKey);
+        return this.priorityLevels > 0 ? send(service, queue, message, priority) : send(service, queue, message);
     }
 
     @Override
     public GridQueue queueName(final Services service, final GridQueue[] queues, final ShardingMethod shardingMethod, final int[] priorityDimensions, final int priority, final String hashingKey) throws IOException {
         if (queues.length == 1) return queues[0];
-        assert priorityDimensions.length > priority;
-        int queuesBeforeCurrentDimension = 0;
-        for (int i = 0; i < priority; i++) queuesBeforeCurrentDimension += priorityDimensions[i];
-        final int priorityDimension = priorityDimensions[priority];
-        final GridQueue[] psq = new GridQueue[priorityDimension];
-        System.arraycopy(queues, queuesBeforeCurrentDimension, psq, 0, priorityDimension);
+        final GridQueue[] psq;
+        if (this.priorityLevels > 0) {
+            // the priority is a message priority, all queues are in the same dimension
+            psq = queues;
+        } else {
+            assert priorityDimensions.length > priority;
+            int queuesBeforeCurrentDimension = 0;
+            for (int i = 0; i < priority; i++) queuesBeforeCurrentDimension += priorityDimensions[i];
+            final int priorityDimension = priorityDimensions[priority];
+            psq = new GridQueue[priorityDimension];
+            System.arraycopy(queues, queuesBeforeCurrentDimension, psq, 0, priorityDimension);
+        }
         int idx = 0;
         switch (shardingMethod) {
             case ROUND_ROBIN:
@@ -82,6 +147,12 @@ public abstract class AbstractBroker implements Broker {
             case FIRST:
                 idx = first(service, psq);
                 break;
+            case CONSISTENT_HASH:
+                idx = consistentHash(psq, hashingKey);
+                break;
+            case BOUNDED_HASH:
+                idx = boundedHash(service, psq, hashingKey);
+                break;
             default:
                 idx = first(service, psq);
                 break;
@@ -95,23 +166,63 @@ public abstract class AbstractBroker implements Broker {
     @Override
     public abstract MessageContainer receive(final Services service, final GridQueue queue, long timeout, boolean autoAck) throws IOException;
 
+    @Override
+    public abstract List<MessageContainer> receive(final Services service, final GridQueue queue, int maxCount, long timeout, boolean autoAck) throws IOException;
+
     @Override
     public abstract AvailableContainer available(final Services service, final GridQueue queue) throws IOException;
 
-    private final Map<String, AvailableContainer> acbuffers = new ConcurrentHashMap<>();
-    private final Map<String, Long> actime = new ConcurrentHashMap<>();
+    /**
+     * set the size of the tables which assign hashing keys to queues for LOOKUP and BALANCE sharding.
+     * This applies to tables which are created after this call.
+     * @param capacity the maximum number of hashing keys for each service
+     * @param expiry the time in milliseconds after that an unused hashing key is forgotten; 0 = never
+     */
+    protected void configureAffinity(final int capacity, final long expiry) {
+        this.affinityCapacity = capacity;
+        this.affinityExpiry = expiry;
+    }
+
+    /**
+     * set the number of message priority levels. With priority levels, queues deliver messages with a higher priority
+     * first and the priority argument of a sharded send is sent as message priority instead of selecting a
+     * priority dimension of the queues. This must be called before the first queue is used.
+     * @param levels the number of priority levels; 0 = no message priorities, use priority dimensions
+     */
+    protected void configurePriorityLevels(final int levels) {
+        this.priorityLevels = Math.max(0, Math.min(PrioritizedQueue.MAX_LEVELS, levels));
+    }
+
+    public int getPriorityLevels() {
+        return this.priorityLevels;
+    }
+
+    /**
+     * the tables which assign hashing keys to queues for LOOKUP and BALANCE sharding
+     * @return a map from service to affinity table; services which never used LOOKUP or BALANCE are missing
+     */
+    public Map<Services, AffinityTable> getAffinityTables() {
+        return this.affinityTables;
+    }
+
+    private AffinityTable affinityTable(final Services service) {
+        return this.affinityTables.computeIfAbsent(service, s -> new AffinityTable(this.affinityCapacity, this.affinityExpiry));
+    }
+
+    /**
+     * the monitor which samples the size of all queues which are used by this broker
+     * @return the queue depth monitor
+     */
+    public QueueDepthMonitor getDepthMonitor() {
+        return this.depthMonitor;
+    }
+
+    /**
+     * get the size of a queue from the latest sample of the queue depth monitor.
+     * This does not block unless the queue was never sampled before.
+     */
     public AvailableContainer bufferedAvailable(final Services service, final GridQueue queue) throws IOException {
-        final String bkey = service.name() + "_" + queue.name();
-        final Long lacc = this.actime.get(bkey);
-        final long laccl = lacc == null ? 0 : lacc.longValue();
-        final long now = System.currentTimeMillis();
-        AvailableContainer ac = this.acbuffers.get(bkey);
-        if (ac == null || now - laccl > 10000) {
-            ac = available(service, queue);
-            this.acbuffers.put(bkey, ac);
-            this.actime.put(bkey, now);
-        }
-        return ac;
+        return this.depthMonitor.available(service, queue);
     }
 
     @Override
@@ -123,33 +234,6 @@ public abstract class AbstractBroker implements Broker {
         return ac;
     }
 
-    @Override
-    public List<MessageContainer> peek(final YaCyServices service, final GridQueue queue, int count) {
-        final List<MessageContainer> messages = new ArrayList<>();
-        fetch: while (count-- > 0) {
-            MessageContainer message = null;
-            try {
-                message = receive(service, queue, 3000, true); // if there are no more messages, this simply runs into a time-out
-            } catch (final IOException e) {
-                break fetch;
-            }
-
-            // message can be null if a timeout occurred or no more messages are in the queue
-            if (message == null) break fetch;
-            messages.add(message);
-        }
-        // send messages again to queue asap!
-        for (int i = messages.size() - 1; i >= 0; i--) {
-            try {
-                send(service, queue, messages.get(i).getPayload());
-            } catch (final IOException e) {
-                // this is bad
-                e.printStackTrace();
-            }
-        }
-        return messages;
-    }
-
     private int roundRobin(final Services service, final GridQueue[] queues) throws IOException {
         AtomicInteger latestCounter = this.roundRobinLookup.get(service);
         if (latestCounter == null) {
@@ -188,57 +272,104 @@ public abstract class AbstractBroker implements Broker {
     }
 
     private int hash(final Services service, final GridQueue[] queues, final String hashingKey) throws IOException {
-        return hashingKey.hashCode() % queues.length;
+        return Math.floorMod(hashingKey.hashCode(), queues.length);
+    }
+
+    /**
+     * rendezvous hashing: every queue gets a score for the key and the queue with the highest score wins.
+     * The score depends only on the key and the name of the queue, so a key moves only if its queue is removed,
+     * and a new queue takes only the keys for which it has the highest score.
+     * @param queues
+     * @param hashingKey
+     * @return the index of the queue with the highest score
+     */
+    private int consistentHash(final GridQueue[] queues, final String hashingKey) {
+        final long keyHash = mix(hashingKey.hashCode());
+        int index = 0;
+        long best = Long.MIN_VALUE;
+        for (int i = 0; i < queues.length; i++) {
+            final long score = mix(keyHash ^ queues[i].name().hashCode());
+            if (score > best) {
+                best = score;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * rendezvous hashing with bounded load: the queues are tried in the order of their score for the key,
+     * and the first queue which does not hold more than BOUNDED_LOAD_FACTOR times the average number of entries is taken.
+     * The sizes are taken from the latest snapshot of the queue depth monitor, this does not block.
+     * A key therefore only leaves its queue while that queue is overloaded, and it always moves to the same substitute.
+     * @param service
+     * @param queues
+     * @param hashingKey
+     * @return the index of the first queue in score order which is not overloaded
+     */
+    private int boundedHash(final Services service, final GridQueue[] queues, final String hashingKey) {
+        final long[] depth = new long[queues.length];
+        long sum = 0;
+        for (int i = 0; i < queues.length; i++) {
+            final QueueDepthMonitor.Depth d = this.depthMonitor.get(service, queues[i]);
+            depth[i] = d == null ? 0 : d.getAvailable();
+            sum += depth[i];
+        }
+        final double limit = Math.ceil(BOUNDED_LOAD_FACTOR * sum / queues.length);
+        final long keyHash = mix(hashingKey.hashCode());
+        final long[] score = new long[queues.length];
+        for (int i = 0; i < queues.length; i++) score[i] = mix(keyHash ^ queues[i].name().hashCode());
+        int index = -1;
+        for (int i = 0; i < queues.length; i++) {
+            // the best scoring queue which is within the limit; at least one queue is not above the average
+            if (depth[i] <= limit && (index < 0 || score[i] > score[index])) index = i;
+        }
+        return index < 0 ? consistentHash(queues, hashingKey) : index;
+    }
+
+    /**
+     * the finalizer of splitmix64; spreads the bits of a hash over the whole long
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
     }
 
     private int lookup(final Services service, final GridQueue[] queues, final String hashingKey) throws IOException {
         if (queues.length == 1) return 0;
-        Map<String, Integer> lookupMap = this.leastFilledLookup.get(service);
-        if (lookupMap == null) {
-            lookupMap = new ConcurrentHashMap<>();
-            this.leastFilledLookup.put(service, lookupMap);
-        }
-        Integer lookupIndex = lookupMap.get(hashingKey);
-        if (lookupIndex == null) {
+        final AffinityTable lookupTable = affinityTable(service);
+        int lookupIndex = lookupTable.get(hashingKey);
+        if (lookupIndex < 0 || lookupIndex >= queues.length) {
             final AvailableContainer[] available = available(service, queues);
             lookupIndex = leastFilled(available);
-            lookupMap.put(hashingKey, lookupIndex);
+            lookupTable.put(hashingKey, lookupIndex, false);
         }
         return lookupIndex;
     }
 
     private int balance(final Services service, final GridQueue[] queues, final String hashingKey) throws IOException {
         if (queues.length == 1) return 0;
-        Map<String, Integer> lookupMap = this.leastFilledLookup.get(service);
-        if (lookupMap == null) {
-            lookupMap = new ConcurrentHashMap<>();
-            this.leastFilledLookup.put(service, lookupMap);
-        }
-        Integer lookupIndex = lookupMap.get(hashingKey);
+        final AffinityTable lookupTable = affinityTable(service);
+        int lookupIndex = lookupTable.get(hashingKey);
         final AvailableContainer[] available = available(service, queues);
         // because this available object comes from a buffered object which may be outdated right now already it is important to pick random elements out of it!
         assert available.length == queues.length;
         final int leastFilled = leastFilled(available);
         assert leastFilled < queues.length;
-        if (lookupIndex == null) {
+        if (lookupIndex < 0 || lookupIndex >= queues.length) {
             // find a new queue with least entries
             lookupIndex = leastFilled;
-            lookupMap.put(hashingKey, lookupIndex);
+            lookupTable.put(hashingKey, lookupIndex, false);
         } else {
             // Check if this hashing key was never switched to a different queue
             // and if an empty queue exist: then switch to that queue to balance all queues.
-            // That means also that every domain may only switched once
-            Set<String> switchedIDs = this.switchedIDsMap.get(service);
-            if (switchedIDs == null) {
-                switchedIDs = ConcurrentHashMap.newKeySet();
-                this.switchedIDsMap.put(service, switchedIDs);
-            }
-            if (available[lookupIndex].getAvailable() > 100 && available[leastFilled].getAvailable() == 0 && !switchedIDs.contains(hashingKey)) {
-                switchedIDs.add(hashingKey);
+            // That means also that every domain may only switched once (as long as it stays in the affinity table)
+            if (available[lookupIndex].getAvailable() > 100 && available[leastFilled].getAvailable() == 0 && !lookupTable.isSwitched(hashingKey)) {
                 // switch to leastFilled
                 Logger.info(this.getClass(), "AbstractBroker switching " + hashingKey + " from " + lookupIndex + " to " + leastFilled);
                 lookupIndex = leastFilled;
-                lookupMap.put(hashingKey, lookupIndex);
+                lookupTable.put(hashingKey, lookupIndex, true);
             }
         }
         assert lookupIndex < queues.length;
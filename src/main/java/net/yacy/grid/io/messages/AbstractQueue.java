@@ -20,9 +20,48 @@
 package net.yacy.grid.io.messages;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 public abstract class AbstractQueue implements Queue {
 
+    @Override
+    public Queue send(final byte[] message, final int priority) throws IOException {
+        // queues without priority support deliver the messages in the order of arrival
+        return send(message);
+    }
+
+    @Override
+    public Future<Queue> sendAsync(final byte[] message) throws IOException {
+        // queues without a delivery confirmation are confirmed as soon as the message is stored
+        return CompletableFuture.completedFuture(send(message));
+    }
+
+    @Override
+    public Queue send(final List<byte[]> messages) throws IOException {
+        for (final byte[] message: messages) send(message);
+        return this;
+    }
+
+    @Override
+    public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+        final List<MessageContainer> messages = new ArrayList<>();
+        MessageContainer mc = receive(timeout, autoAck);
+        while (mc != null) {
+            messages.add(mc);
+            if (messages.size() >= maxCount || available() <= 0) break;
+            mc = receive(1, autoAck);
+        }
+        return messages;
+    }
+
+    @Override
+    public void acknowledge(final List<Long> deliveryTags) throws IOException {
+        for (final Long deliveryTag: deliveryTags) acknowledge(deliveryTag.longValue());
+    }
+
     @Override
     public void clear() throws IOException {
         long count = available();
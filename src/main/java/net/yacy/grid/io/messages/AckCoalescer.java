@@ -0,0 +1,130 @@
+/**
+ *  AckCoalescer
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An AckCoalescer collects the acknowledgements for the deliveries of one channel and sends them
+ * as a single multiple-ack for the highest delivery tag where all deliveries up to that tag are done.
+ * Delivery tags of a channel are strictly increasing, so a multiple-ack of a tag acknowledges all
+ * deliveries with a lower tag as well. Deliveries which are still in process stop the coalescing
+ * at their position; they are never acknowledged by accident.
+ * The acknowledge function is called outside of the lock of the coalescer, so it may take the lock of
+ * the channel; it must therefore tolerate that two flushes arrive out of order.
+ */
+public class AckCoalescer {
+
+    /**
+     * the acknowledge function of the channel
+     */
+    public interface Acknowledger {
+        public void ack(long deliveryTag, boolean multiple) throws IOException;
+    }
+
+    private final Acknowledger acknowledger;
+    private final ConcurrentSkipListMap<Long, Boolean> pending; // delivery tag -> acknowledged
+    private final AtomicInteger acknowledged;
+    private final int flushCount;
+
+    /**
+     * create an ack coalescer for a channel
+     * @param acknowledger the function which sends an acknowledge to the channel
+     * @param flushCount the number of acknowledged deliveries which trigger a flush
+     */
+    public AckCoalescer(final Acknowledger acknowledger, final int flushCount) {
+        this.acknowledger = acknowledger;
+        this.pending = new ConcurrentSkipListMap<>();
+        this.acknowledged = new AtomicInteger(0);
+        this.flushCount = Math.max(1, flushCount);
+    }
+
+    /**
+     * register a delivery which must be acknowledged later
+     * @param deliveryTag
+     */
+    public void delivered(final long deliveryTag) {
+        this.pending.put(deliveryTag, Boolean.FALSE);
+    }
+
+    /**
+     * mark a delivery as acknowledged. The acknowledge is sent to the broker with the next flush
+     * @param deliveryTag
+     * @throws IOException
+     */
+    public void acknowledge(final long deliveryTag) throws IOException {
+        // we don't know this delivery if it arrived before the coalescer was cleared: its channel is gone
+        // and the broker delivers the message again. Its tag must not be sent to the new channel.
+        if (this.pending.replace(deliveryTag, Boolean.TRUE) == null) return;
+        if (this.acknowledged.incrementAndGet() >= this.flushCount) flush();
+    }
+
+    /**
+     * forget a delivery, i.e. because it was rejected
+     * @param deliveryTag
+     */
+    public void remove(final long deliveryTag) {
+        final Boolean acked = this.pending.remove(deliveryTag);
+        if (acked != null && acked.booleanValue()) this.acknowledged.decrementAndGet();
+    }
+
+    /**
+     * send one acknowledge for all deliveries from the lowest pending tag up to the first delivery
+     * which is not acknowledged yet.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        long highest = -1;
+        int count = 0;
+        synchronized (this) {
+            for (final Map.Entry<Long, Boolean> entry: this.pending.entrySet()) {
+                if (!entry.getValue().booleanValue()) break;
+                highest = entry.getKey();
+                count++;
+            }
+            if (count == 0) return;
+            this.pending.headMap(highest, true).clear();
+            this.acknowledged.addAndGet(-count);
+        }
+        this.acknowledger.ack(highest, count > 1);
+    }
+
+    /**
+     * forget all deliveries. This must be called if the channel is closed because
+     * then the broker re-delivers all messages which have not been acknowledged.
+     * A flush which collected its deliveries before still sends them, so the acknowledge
+     * function must drop the delivery tags of a closed channel.
+     */
+    public synchronized void clear() {
+        this.pending.clear();
+        this.acknowledged.set(0);
+    }
+
+    /**
+     * the number of acknowledges which are waiting for a flush
+     * @return number of acknowledged deliveries which are not yet sent to the broker
+     */
+    public int waiting() {
+        return this.acknowledged.get();
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ *  AffinityTable
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A bounded table which assigns hashing keys (i.e. hosts) to a queue index.
+ * The keys are stored as 64-bit hashes in an open-addressing table with linear probing, so the table
+ * does not hold any strings and its memory is fixed by the capacity.
+ * An entry expires if it was not used for the expiry time. If the table is full, an entry which was
+ * not used for the longest time within a small random sample is evicted (an approximated LRU).
+ * Each entry carries a 'switched' flag which the BALANCE sharding uses to move a key only once.
+ */
+public class AffinityTable {
+
+    private static final int SAMPLE_SIZE = 8;
+
+    private final int capacity;
+    private final long expiry;
+    private final long[] keys;    // 0 = empty slot
+    private final int[] values;   // queue index; a switched entry is stored as -index - 1
+    private final long[] access;  // time of the last access
+    private final int mask;
+    private int size;
+    private long hits, misses, evictions, expirations;
+
+    /**
+     * create an affinity table
+     * @param capacity the maximum number of entries
+     * @param expiry the time in milliseconds after that an unused entry is removed; 0 = never
+     */
+    public AffinityTable(final int capacity, final long expiry) {
+        this.capacity = Math.max(1, capacity);
+        this.expiry = expiry;
+        // at most half of the slots are used to keep the probe sequences short
+        int slots = Integer.highestOneBit(this.capacity) << 2;
+        if (slots <= 0) slots = 1 << 30;
+        this.keys = new long[slots];
+        this.values = new int[slots];
+        this.access = new long[slots];
+        this.mask = slots - 1;
+        this.size = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        this.expirations = 0;
+    }
+
+    /**
+     * compute the 64-bit FNV-1a hash of a hashing key
+     * @param key
+     * @return a hash which is never 0
+     */
+    public static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private int slot(final long key) {
+        return (int) (key ^ (key >>> 32)) & this.mask;
+    }
+
+    private int find(final long key) {
+        int i = slot(key);
+        while (this.keys[i] != 0) {
+            if (this.keys[i] == key) return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1 - i; // the free slot where the key can be inserted
+    }
+
+    private boolean expired(final int i, final long now) {
+        return this.expiry > 0 && now - this.access[i] > this.expiry;
+    }
+
+    /**
+     * get the queue index of a hashing key
+     * @param key
+     * @return the queue index or -1 if the key is unknown or expired
+     */
+    public synchronized int get(final String key) {
+        final int i = find(hash(key));
+        final long now = System.currentTimeMillis();
+        if (i < 0 || expired(i, now)) {
+            this.misses++;
+            return -1;
+        }
+        this.hits++;
+        this.access[i] = now;
+        return this.values[i] < 0 ? -this.values[i] - 1 : this.values[i];
+    }
+
+    /**
+     * check if the key was switched to a different queue
+     * @param key
+     * @return true if put() was called for the key with switched = true and the entry is not expired
+     */
+    public synchronized boolean isSwitched(final String key) {
+        final int i = find(hash(key));
+        return i >= 0 && !expired(i, System.currentTimeMillis()) && this.values[i] < 0;
+    }
+
+    /**
+     * assign a queue index to a key
+     * @param key
+     * @param index the queue index, must not be negative
+     * @param switched true if the key was moved from a different queue
+     */
+    public synchronized void put(final String key, final int index, final boolean switched) {
+        final long h = hash(key);
+        final long now = System.currentTimeMillis();
+        int i = find(h);
+        if (i < 0) {
+            if (this.size >= this.capacity) {
+                evict(now);
+                i = find(h); // the eviction shifted entries
+            }
+            i = -1 - i;
+            this.keys[i] = h;
+            this.size++;
+        } else if (expired(i, now)) {
+            this.expirations++;
+        }
+        this.values[i] = switched ? -index - 1 : index;
+        this.access[i] = now;
+    }
+
+    /**
+     * remove the entry which was not used for the longest time within a random sample of entries.
+     * An expired entry in the sample is removed immediately.
+     */
+    private void evict(final long now) {
+        int victim = -1;
+        int i = ThreadLocalRandom.current().nextInt(this.keys.length);
+        for (int sampled = 0; sampled < SAMPLE_SIZE; i = (i + 1) & this.mask) {
+            if (this.keys[i] == 0) continue;
+            if (expired(i, now)) {
+                victim = i;
+                this.expirations++;
+                remove(victim);
+                return;
+            }
+            if (victim < 0 || this.access[i] < this.access[victim]) victim = i;
+            sampled++;
+        }
+        this.evictions++;
+        remove(victim);
+    }
+
+    /**
+     * delete a slot and move the following entries of the probe sequence back, so that no tombstones are needed
+     */
+    private void remove(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.keys[j] == 0) break;
+            final int k = slot(this.keys[j]);
+            // the entry at j can move to i if its home slot k is not within (i, j]
+            if ((i <= j) ? (i < k && k <= j) : (i < k || k <= j)) continue;
+            this.keys[i] = this.keys[j];
+            this.values[i] = this.values[j];
+            this.access[i] = this.access[j];
+            i = j;
+        }
+        this.keys[i] = 0;
+        this.size--;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the fraction of get() calls which found a valid entry
+     */
+    public synchronized double getHitRate() {
+        final long total = this.hits + this.misses;
+        return total == 0 ? 0.0d : ((double) this.hits) / total;
+    }
+
+    /**
+     * @return the number of entries which were removed because the table was full
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return the number of entries which were replaced or removed because they were expired
+     */
+    public synchronized long getExpirations() {
+        return this.expirations;
+    }
+}
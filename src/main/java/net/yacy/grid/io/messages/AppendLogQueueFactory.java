@@ -0,0 +1,464 @@
+/**
+ *  AppendLogQueueFactory
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.yacy.grid.io.db.CommitPolicy;
+import net.yacy.grid.tools.Logger;
+
+/**
+ * Factory for queues which are stored in segmented append-only log files.
+ * Each queue is a directory with numbered segment files and a cursor file. Messages are appended to the
+ * last segment as records of the form [length][crc32][payload]; a length of zero marks the end of a segment.
+ * The cursor file holds the segment number and position of the next message to read.
+ * Segments and cursor are memory-mapped and written to disk according to a commit policy, usually
+ * as a group commit after a time interval or a number of messages. Segments are deleted once all their messages are consumed.
+ * After a crash, messages are lost only if they were not committed; messages which had been received
+ * but where the cursor was not committed are delivered again.
+ */
+public class AppendLogQueueFactory implements QueueFactory {
+
+    public final static int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static String CURSOR_FILE = "cursor";
+    private final static int HEADER_SIZE = 8; // length and crc
+    private final static int CURSOR_SIZE = 20; // segment, position and crc
+
+    private final File location;
+    private final Map<String, LogQueue> queues;
+    private final int segmentSize, commitCount;
+    private final ScheduledExecutorService committer;
+
+    /**
+     * initialize a queue factory based on append-only log files
+     * @param storageLocationPath the path where the queues shall be stored
+     * @param segmentSize the size of a segment file in bytes
+     * @param commitPolicy the time between two group commits and the number of messages after that a commit is done
+     */
+    public AppendLogQueueFactory(final File storageLocationPath, final int segmentSize, final CommitPolicy commitPolicy) {
+        this.location = storageLocationPath;
+        this.location.mkdirs();
+        this.queues = new ConcurrentHashMap<>();
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.commitCount = commitPolicy.getCount() <= 0 ? Integer.MAX_VALUE : commitPolicy.getCount();
+        final long commitInterval = commitPolicy.getInterval();
+        if (commitInterval > 0) {
+            this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "AppendLogQueueFactory.committer");
+                t.setDaemon(true);
+                return t;
+            });
+            this.committer.scheduleWithFixedDelay(() -> this.queues.values().forEach(queue -> {
+                try {
+                    queue.commit();
+                } catch (final Throwable e) {
+                    Logger.warn(this.getClass(), "AppendLogQueueFactory: commit failed for " + queue.dir, e);
+                }
+            }), commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.committer = null;
+        }
+    }
+
+    @Override
+    public String getHost() {
+        return null;
+    }
+
+    @Override
+    public boolean hasDefaultPort() {
+        return false;
+    }
+
+    @Override
+    public int getPort() {
+        return 1;
+    }
+
+    @Override
+    public String getConnectionURL() {
+        return null;
+    }
+
+    /**
+     * Get the connection to a queue. If the queue did not exist, it will exist automatically
+     * after calling the method
+     * @param queueName
+     * @return the Queue
+     * @throws IOException
+     */
+    @Override
+    public Queue getQueue(final String queueName) throws IOException {
+        LogQueue queue = this.queues.get(queueName);
+        if (queue != null) return queue;
+        synchronized (this) {
+            queue = this.queues.get(queueName);
+            if (queue != null) return queue;
+            queue = new LogQueue(new File(this.location, queueName + ".queue"));
+            this.queues.put(queueName, queue);
+            return queue;
+        }
+    }
+
+    /**
+     * Close the Factory
+     */
+    @Override
+    public void close() {
+        if (this.committer != null) this.committer.shutdown();
+        this.queues.values().forEach(queue -> queue.close());
+    }
+
+    private static int crc(final MappedByteBuffer buffer, final int offset, final int length) {
+        return crc(get(buffer, offset, length));
+    }
+
+    private static int crc(final byte[] b) {
+        final CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] get(final MappedByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        final byte[] a = new byte[length];
+        b.get(a);
+        return a;
+    }
+
+    private static void put(final MappedByteBuffer buffer, final int offset, final byte[] a) {
+        final ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.put(a);
+    }
+
+    private static MappedByteBuffer map(final File f, final int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+        }
+    }
+
+    public class LogQueue extends AbstractQueue implements Queue {
+
+        private final File dir;
+        private final Semaphore semaphore;
+        private final Object writeLock, readLock;
+        private final MappedByteBuffer cursor;
+        private final TreeSet<Long> consumed; // segments which can be deleted after the next commit
+        private MappedByteBuffer writeSegment, readSegment;
+        private long writeIndex, readIndex;
+        private int writePosition, readPosition;
+        private int uncommitted, unread; // appended messages which are not forced to disk, read messages which are not in the cursor
+        private boolean cursorDirty;
+
+        public LogQueue(final File dir) throws IOException {
+            this.dir = dir;
+            this.dir.mkdirs();
+            this.writeLock = new Object();
+            this.readLock = new Object();
+            this.consumed = new TreeSet<>();
+            this.uncommitted = 0;
+            this.unread = 0;
+            this.cursorDirty = false;
+
+            // find the segments
+            final TreeSet<Long> segments = new TreeSet<>();
+            final String[] files = this.dir.list();
+            if (files != null) for (final String f: files) {
+                if (!f.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    segments.add(Long.parseLong(f.substring(0, f.length() - SEGMENT_SUFFIX.length())));
+                } catch (final NumberFormatException e) {}
+            }
+
+            // read the cursor
+            this.cursor = map(new File(this.dir, CURSOR_FILE), CURSOR_SIZE);
+            final long ci = this.cursor.getLong(0);
+            final int cp = this.cursor.getInt(8);
+            final boolean cursorValid = this.cursor.getInt(16) == crc(this.cursor, 0, 16) && ci > 0;
+            if (segments.isEmpty()) segments.add(cursorValid ? ci : 1L);
+            if (cursorValid && segments.contains(ci)) {
+                this.readIndex = ci;
+                this.readPosition = cp;
+            } else {
+                // no cursor or the segment of the cursor was already deleted: start with the oldest segment
+                if (cursorValid && ci > segments.last()) segments.add(ci);
+                this.readIndex = segments.ceiling(cursorValid ? ci : 0L);
+                this.readPosition = 0;
+            }
+            segments.headSet(this.readIndex).forEach(i -> segmentFile(i).delete()); // consumed before the last crash
+
+            // recover the write position: the first invalid record in the last segment is the end of the log
+            this.writeIndex = segments.last();
+            this.writeSegment = map(segmentFile(this.writeIndex), AppendLogQueueFactory.this.segmentSize);
+            int p = 0;
+            while (p + HEADER_SIZE <= this.writeSegment.capacity()) {
+                final int len = this.writeSegment.getInt(p);
+                if (len <= 0 || p + HEADER_SIZE + len > this.writeSegment.capacity()) break;
+                if (this.writeSegment.getInt(p + 4) != crc(this.writeSegment, p + HEADER_SIZE, len)) break;
+                p += HEADER_SIZE + len;
+            }
+            this.writePosition = p;
+            // wipe a torn record so that it cannot be mistaken for a valid one later
+            for (int i = p; i < Math.min(p + HEADER_SIZE, this.writeSegment.capacity()); i++) this.writeSegment.put(i, (byte) 0);
+            this.writeSegment.force();
+
+            // count the messages between cursor and end of the log
+            this.readSegment = map(segmentFile(this.readIndex), 0);
+            int count = 0;
+            for (final long i: segments.tailSet(this.readIndex)) {
+                final MappedByteBuffer s = i == this.writeIndex ? this.writeSegment : map(segmentFile(i), 0);
+                int q = i == this.readIndex ? this.readPosition : 0;
+                final int end = i == this.writeIndex ? this.writePosition : s.capacity();
+                while (q + HEADER_SIZE <= end) {
+                    final int len = s.getInt(q);
+                    if (len <= 0) break;
+                    q += HEADER_SIZE + len;
+                    count++;
+                }
+            }
+            this.semaphore = new Semaphore(count, true);
+            if (count > 0) Logger.info(this.getClass(), "AppendLogQueue: opened " + this.dir + " with " + count + " messages");
+        }
+
+        private File segmentFile(final long index) {
+            return new File(this.dir, String.format("%012d", index) + SEGMENT_SUFFIX);
+        }
+
+        @Override
+        public void checkConnection() throws IOException {
+            available();
+        }
+
+        private void append(final byte[] message) throws IOException {
+            if (this.writePosition + HEADER_SIZE + message.length > this.writeSegment.capacity()) {
+                // the message does not fit into the current segment: the zero length at writePosition marks its end
+                this.writeSegment.force();
+                this.writeIndex++;
+                this.writeSegment = map(segmentFile(this.writeIndex), Math.max(AppendLogQueueFactory.this.segmentSize, HEADER_SIZE + message.length + 4));
+                this.writePosition = 0;
+            }
+            final int p = this.writePosition;
+            put(this.writeSegment, p + HEADER_SIZE, message);
+            this.writeSegment.putInt(p + 4, crc(message));
+            this.writeSegment.putInt(p, message.length); // the length is written last; a record is valid only if its crc matches
+            this.writePosition = p + HEADER_SIZE + message.length;
+            this.uncommitted++;
+        }
+
+        @Override
+        public Queue send(final byte[] message) throws IOException {
+            if (message == null || message.length == 0) throw new IOException("AppendLogQueue: empty message");
+            synchronized (this.writeLock) {
+                append(message);
+                if (this.uncommitted >= AppendLogQueueFactory.this.commitCount) commitWrite();
+            }
+            this.semaphore.release();
+            return this;
+        }
+
+        @Override
+        public Queue send(final List<byte[]> messages) throws IOException {
+            for (final byte[] message: messages) if (message == null || message.length == 0) throw new IOException("AppendLogQueue: empty message");
+            synchronized (this.writeLock) {
+                for (final byte[] message: messages) append(message);
+                if (this.uncommitted >= AppendLogQueueFactory.this.commitCount) commitWrite();
+            }
+            this.semaphore.release(messages.size());
+            return this;
+        }
+
+        /**
+         * read the next message. The caller must own a permit of the semaphore for that message
+         * @return the next message
+         * @throws IOException
+         */
+        private byte[] next() throws IOException {
+            final byte[] message;
+            final boolean commitDue;
+            synchronized (this.readLock) {
+                int len = this.readPosition + HEADER_SIZE <= this.readSegment.capacity() ? this.readSegment.getInt(this.readPosition) : 0;
+                if (len <= 0) {
+                    // end of segment; there must be a next segment because we own a permit
+                    this.consumed.add(this.readIndex);
+                    this.readIndex++;
+                    this.readSegment = map(segmentFile(this.readIndex), 0);
+                    this.readPosition = 0;
+                    len = this.readSegment.getInt(0);
+                    if (len <= 0) throw new IOException("AppendLogQueue: log " + this.dir + " is corrupt at segment " + this.readIndex);
+                }
+                message = get(this.readSegment, this.readPosition + HEADER_SIZE, len);
+                this.readPosition += HEADER_SIZE + len;
+                this.cursorDirty = true;
+                commitDue = ++this.unread >= AppendLogQueueFactory.this.commitCount;
+            }
+            // the cursor is written every commitCount reads, also without a committer thread. This is done outside
+            // of the read lock because commit() must write the messages before the cursor, with the write lock.
+            if (commitDue) commit();
+            return message;
+        }
+
+        @Override
+        public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
+            try {
+                if (timeout > 0) {
+                    if (!this.semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) return null;
+                } else {
+                    this.semaphore.acquire();
+                }
+                return new MessageContainer(AppendLogQueueFactory.this, next(), 0);
+            } catch (final InterruptedException e) {
+                Logger.debug(this.getClass(), "AppendLogQueue: receive interrupted", e);
+            }
+            return null;
+        }
+
+        @Override
+        public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            final MessageContainer first = receive(timeout, autoAck);
+            if (first == null) return messages;
+            messages.add(first);
+            while (messages.size() < maxCount && this.semaphore.tryAcquire()) {
+                messages.add(new MessageContainer(AppendLogQueueFactory.this, next(), 0));
+            }
+            return messages;
+        }
+
+        private void commitWrite() {
+            if (this.uncommitted == 0) return;
+            this.writeSegment.force();
+            this.uncommitted = 0;
+        }
+
+        private void commitRead() {
+            if (!this.cursorDirty) return;
+            this.cursor.putLong(0, this.readIndex);
+            this.cursor.putInt(8, this.readPosition);
+            this.cursor.putInt(16, crc(this.cursor, 0, 16));
+            this.cursor.force();
+            this.cursorDirty = false;
+            this.unread = 0;
+            // the cursor is on disk, now the consumed segments can be deleted
+            for (final long i: this.consumed) {
+                if (!segmentFile(i).delete()) Logger.warn(this.getClass(), "AppendLogQueue: cannot delete consumed segment " + segmentFile(i));
+            }
+            this.consumed.clear();
+        }
+
+        /**
+         * write all appended messages and the read cursor to disk
+         */
+        public void commit() {
+            // messages first: the cursor must never point behind the last message on disk
+            synchronized (this.writeLock) {
+                commitWrite();
+            }
+            synchronized (this.readLock) {
+                commitRead();
+            }
+        }
+
+        @Override
+        public void acknowledge(final long deliveryTag) throws IOException {
+            // do nothing, this class does not provide a message acknowledge function
+        }
+
+        @Override
+        public void reject(final long deliveryTag) throws IOException {
+            // do nothing, this class does not provide a message reject function
+        }
+
+        @Override
+        public void recover() throws IOException {
+            // do nothing, this class does not provide a message acknowledge function
+        }
+
+        @Override
+        public long available() throws IOException {
+            return this.semaphore.availablePermits();
+        }
+
+        @Override
+        public List<MessageContainer> peek(final int count) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            synchronized (this.readLock) {
+                // read from a copy of the cursor; only messages which are counted by the semaphore are completely written
+                final int n = Math.min(count, this.semaphore.availablePermits());
+                long index = this.readIndex;
+                MappedByteBuffer segment = this.readSegment;
+                int position = this.readPosition;
+                while (messages.size() < n) {
+                    final int len = position + HEADER_SIZE <= segment.capacity() ? segment.getInt(position) : 0;
+                    if (len <= 0) {
+                        // end of segment
+                        index++;
+                        if (position == 0 || !segmentFile(index).exists()) break;
+                        segment = map(segmentFile(index), 0);
+                        position = 0;
+                        continue;
+                    }
+                    messages.add(new MessageContainer(AppendLogQueueFactory.this, get(segment, position + HEADER_SIZE, len), 0));
+                    position += HEADER_SIZE + len;
+                }
+            }
+            return messages;
+        }
+
+        @Override
+        public void clear() throws IOException {
+            synchronized (this.writeLock) {
+                synchronized (this.readLock) {
+                    this.semaphore.drainPermits();
+                    commitWrite();
+                    for (long i = this.readIndex; i < this.writeIndex; i++) this.consumed.add(i);
+                    this.readIndex = this.writeIndex;
+                    this.readSegment = map(segmentFile(this.readIndex), 0);
+                    this.readPosition = this.writePosition;
+                    this.cursorDirty = true;
+                    commitRead();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            commit();
+        }
+    }
+
+}
@@ -48,7 +48,44 @@ public interface Broker extends Closeable {
     public QueueFactory send(Services service, GridQueue queue, byte[] message) throws IOException;
 
     /**
-     * send a message to the broker
+     * send a batch of messages to the broker
+     * @param service the name of the grid service
+     * @param queue the queue of the service
+     * @param messages the messages to be posted at the broker
+     * @return the Queue Factory which was used to create this broker
+     * @throws IOException
+     */
+    public QueueFactory send(Services service, GridQueue queue, List<byte[]> messages) throws IOException;
+
+    /**
+     * send a message with a message priority to the broker. The priority is only applied if the broker
+     * has priority levels, otherwise this is the same as send(service, queue, message).
+     * @param service the name of the grid service
+     * @param queue the queue of the service
+     * @param message the message to be posted at the broker
+     * @param priority the message priority, 0 is the lowest priority
+     * @return the Queue Factory which was used to create this broker
+     * @throws IOException
+     */
+    public QueueFactory send(Services service, GridQueue queue, byte[] message, int priority) throws IOException;
+
+    /**
+     * send a message to the broker which becomes available in the queue after a delay.
+     * This is used to retry a message later without blocking the caller.
+     * Brokers which cannot delay messages themselves hold the message in memory until it is due;
+     * then it is lost if the process crashes before.
+     * @param service the name of the grid service
+     * @param queue the queue of the service
+     * @param message the message to be posted at the broker
+     * @param delay the delay in milliseconds
+     * @throws IOException
+     */
+    public void sendDelayed(Services service, GridQueue queue, byte[] message, long delay) throws IOException;
+
+    /**
+     * send a message to the broker.
+     * If the broker has priority levels, the priority dimensions are ignored: the queue is selected from all queues
+     * and the priority is sent as message priority, where a higher number means a higher priority.
      * @param service the name of the grid service
      * @param queues the queues of the service
      * @param shardingMethod the selected sharding method
@@ -84,6 +121,18 @@ public interface Broker extends Closeable {
      */
     public MessageContainer receive(Services service, GridQueue queue, long timeout, boolean autoAck) throws IOException;
 
+    /**
+     * receive a batch of messages from the broker. This method blocks until at least one message is available
+     * and then returns all messages that can be taken without waiting, up to maxCount.
+     * @param service the name of the grid service
+     * @param queue the queue of the service
+     * @param maxCount the maximum number of messages in the batch
+     * @param timeout the maximum time to wait for a message. if zero or negative, the method blocks forever or until a message arrives
+     * @return a list of message containers, empty if a timeout occurred
+     * @throws IOException
+     */
+    public List<MessageContainer> receive(Services service, GridQueue queue, int maxCount, long timeout, boolean autoAck) throws IOException;
+
     /**
      * acknowledge a message. This MUST be used to remove a message from the broker if
      * receive() was used with autoAck=false.
@@ -95,6 +144,16 @@ public interface Broker extends Closeable {
      */
     public QueueFactory acknowledge(Services service, GridQueue queue, long deliveryTag) throws IOException;
 
+    /**
+     * acknowledge a batch of messages with one call
+     * @param service the name of the grid service
+     * @param queue the queue of the service
+     * @param deliveryTags the tags as reported by receive()
+     * @return the Queue Factory which was used to create this broker
+     * @throws IOException
+     */
+    public QueueFactory acknowledge(Services service, GridQueue queue, List<Long> deliveryTags) throws IOException;
+
     /**
      * reject a message. This MUST be used to return a message to the broker if
      * receive() was used with autoAck=false.
@@ -138,14 +197,14 @@ public interface Broker extends Closeable {
 
     /**
      * Peek into message queue and get a given nummer of messages.
-     * Messages are possibly taken out of the queue and inserted again.
-     * It cannot be ensured that after this operation the same order of messages is preserved.
+     * The messages are read without removing them, the queue and the order of its messages are not changed.
      * @param service the name of the grid service
      * @param queue the queues of the service
      * @param count number of wanted messages. If the actual number of messages in the queue is less, less entries are returned.
      * @return the (at this point) next messages in the queue
+     * @throws IOException
      */
-    public List<MessageContainer> peek(final YaCyServices service, final GridQueue queue, int count);
+    public List<MessageContainer> peek(final YaCyServices service, final GridQueue queue, int count) throws IOException;
 
     /**
      * send a message to the broker
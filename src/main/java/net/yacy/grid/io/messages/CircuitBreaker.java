@@ -0,0 +1,185 @@
+/**
+ *  CircuitBreaker
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.yacy.grid.tools.Logger;
+
+/**
+ * A CircuitBreaker guards the access to a backend of the GridBroker.
+ * As long as the backend works, the breaker is CLOSED and all requests are done.
+ * After a number of consecutive failures the breaker goes OPEN: requests skip the backend
+ * immediately and a background probe tries to reach the backend, with an exponential backoff
+ * between the probes. When a probe succeeds, the breaker goes HALF_OPEN and lets requests pass
+ * again; the first successful request closes the breaker, a failing request opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    /**
+     * the health check of a backend
+     */
+    public interface Probe {
+        /**
+         * try to reach the backend, i.e. by opening a new connection
+         * @return true if the backend can be used again
+         */
+        public boolean probe();
+    }
+
+    private static final ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "CircuitBreaker.prober");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String name;
+    private final Probe probe;
+    private int failureThreshold;
+    private long initialBackoff, maxBackoff;
+    private volatile State state;
+    private int failures;
+    private long backoff;
+    private ScheduledFuture<?> probing;
+
+    /**
+     * create a closed circuit breaker
+     * @param name the name of the backend, used for logging
+     * @param probe the health check which is done while the breaker is open
+     */
+    public CircuitBreaker(final String name, final Probe probe) {
+        this.name = name;
+        this.probe = probe;
+        this.failureThreshold = 3;
+        this.initialBackoff = 1000;
+        this.maxBackoff = 60000;
+        this.state = State.CLOSED;
+        this.failures = 0;
+        this.backoff = this.initialBackoff;
+        this.probing = null;
+    }
+
+    /**
+     * set the failure and backoff limits
+     * @param failureThreshold the number of consecutive failures which open the breaker
+     * @param initialBackoff the time in milliseconds before the first probe
+     * @param maxBackoff the maximum time in milliseconds between two probes
+     * @return this
+     */
+    public synchronized CircuitBreaker configure(final int failureThreshold, final long initialBackoff, final long maxBackoff) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.initialBackoff = Math.max(1, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        this.backoff = this.initialBackoff;
+        return this;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * check if a request may use the backend. This does not block.
+     * @return false if the breaker is open
+     */
+    public boolean allowRequest() {
+        return this.state != State.OPEN;
+    }
+
+    /**
+     * report a successful request
+     */
+    public synchronized void success() {
+        this.failures = 0;
+        if (this.state == State.CLOSED) return;
+        if (this.probing != null) this.probing.cancel(false);
+        this.probing = null;
+        this.state = State.CLOSED;
+        this.backoff = this.initialBackoff;
+        Logger.info(this.getClass(), "CircuitBreaker " + this.name + ": closed, backend is available again");
+    }
+
+    /**
+     * report a failed request. This opens the breaker if the failure threshold is reached
+     * or if the breaker is half-open.
+     */
+    public synchronized void failure() {
+        if (this.state == State.OPEN) return;
+        if (this.state == State.HALF_OPEN) {
+            this.backoff = Math.min(this.maxBackoff, this.backoff * 2);
+            open();
+            return;
+        }
+        if (++this.failures >= this.failureThreshold) open();
+    }
+
+    /**
+     * open the breaker immediately, i.e. because the backend cannot be connected at all
+     */
+    public synchronized void trip() {
+        if (this.state != State.OPEN) open();
+    }
+
+    private void open() {
+        this.state = State.OPEN;
+        this.failures = 0;
+        Logger.warn(this.getClass(), "CircuitBreaker " + this.name + ": opened, next probe in " + this.backoff + " milliseconds");
+        schedule();
+    }
+
+    private void schedule() {
+        this.probing = prober.schedule(this::runProbe, this.backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void runProbe() {
+        boolean reachable;
+        try {
+            reachable = this.probe.probe();
+        } catch (final Throwable e) {
+            reachable = false;
+        }
+        synchronized (this) {
+            if (this.state != State.OPEN) return;
+            if (reachable) {
+                this.probing = null;
+                this.state = State.HALF_OPEN;
+                Logger.info(this.getClass(), "CircuitBreaker " + this.name + ": half-open, probe succeeded");
+            } else {
+                this.backoff = Math.min(this.maxBackoff, this.backoff * 2);
+                Logger.debug(this.getClass(), "CircuitBreaker " + this.name + ": probe failed, next probe in " + this.backoff + " milliseconds");
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * stop probing
+     */
+    public synchronized void shutdown() {
+        if (this.probing != null) this.probing.cancel(false);
+        this.probing = null;
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ *  DelayedSender
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.yacy.grid.Services;
+import net.yacy.grid.tools.Logger;
+
+/**
+ * The DelayedSender holds messages in memory and sends them to the broker after a delay.
+ * This is the retry mechanism for brokers which cannot delay messages themselves.
+ * If sending fails at the due time, the message is scheduled again with the next retry delay of the broker.
+ * Pending messages are only held in memory: flush() sends all of them immediately and must be called
+ * before the broker is closed. If the process crashes, the pending messages are lost, although the
+ * original deliveries may already be acknowledged: a retry through this sender is at-most-once.
+ */
+public class DelayedSender {
+
+    private final AbstractBroker broker;
+    private final Set<Delayed> pending;
+    private ScheduledExecutorService timer;
+
+    private static class Delayed {
+        private final Services service;
+        private final GridQueue queue;
+        private final byte[] message;
+        private int failures;
+
+        private Delayed(final Services service, final GridQueue queue, final byte[] message) {
+            this.service = service;
+            this.queue = queue;
+            this.message = message;
+            this.failures = 0;
+        }
+    }
+
+    public DelayedSender(final AbstractBroker broker) {
+        this.broker = broker;
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.timer = null;
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (this.timer == null) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "DelayedSender");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return this.timer;
+    }
+
+    /**
+     * send a message after a delay
+     * @param service
+     * @param queue
+     * @param message
+     * @param delay the delay in milliseconds
+     */
+    public void schedule(final Services service, final GridQueue queue, final byte[] message, final long delay) {
+        final Delayed d = new Delayed(service, queue, message);
+        this.pending.add(d);
+        schedule(d, delay);
+    }
+
+    private void schedule(final Delayed d, final long delay) {
+        timer().schedule(() -> deliver(d), Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver(final Delayed d) {
+        if (!this.pending.contains(d)) return; // already flushed
+        try {
+            this.broker.send(d.service, d.queue, d.message);
+            this.pending.remove(d);
+        } catch (final IOException e) {
+            d.failures++;
+            final long delay = this.broker.retryDelay(d.failures + 1);
+            Logger.warn(this.getClass(), "DelayedSender: cannot send message to " + d.service.name() + "_" + d.queue.name() + ", next try in " + delay + " milliseconds: " + e.getMessage());
+            schedule(d, delay);
+        }
+    }
+
+    /**
+     * @return the number of messages which wait for their delivery
+     */
+    public int size() {
+        return this.pending.size();
+    }
+
+    /**
+     * stop the timer and send all pending messages immediately
+     */
+    public void flush() {
+        synchronized (this) {
+            if (this.timer != null) this.timer.shutdownNow();
+            this.timer = null;
+        }
+        final List<Delayed> flushed = new ArrayList<>(this.pending);
+        this.pending.clear();
+        for (final Delayed d: flushed) {
+            try {
+                this.broker.send(d.service, d.queue, d.message);
+            } catch (final IOException e) {
+                Logger.warn(this.getClass(), "DelayedSender: message to " + d.service.name() + "_" + d.queue.name() + " lost: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -22,6 +22,10 @@ package net.yacy.grid.io.messages;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import net.yacy.grid.Services;
@@ -38,8 +42,9 @@ import net.yacy.grid.tools.Logger;
 public class GridBroker extends PeerBroker implements Broker {
 
     public final static String TARGET_LIMIT_MESSAGE = "message not delivered - target limitation";
-    private QueueFactory rabbitQueueFactory;
+    private RabbitQueueFactory rabbitQueueFactory;
     private QueueFactory mcpQueueFactory;
+    private final CircuitBreaker rabbitBreaker, mcpBreaker;
 
     private String rabbitMQ_host, rabbitMQ_username, rabbitMQ_password;
     private int rabbitMQ_port;
@@ -48,6 +53,12 @@ public class GridBroker extends PeerBroker implements Broker {
     private final boolean lazy;
     private final boolean autoAck;
     private final int queueLimit, queueThrottling;
+    private int confirmWindow, prefetch, ackCoalesceCount, connections, channels;
+    private long ackCoalesceInterval;
+    private MessageCodec codec;
+    private InProcessQueueFactory inProcessQueueFactory;
+    private final Set<Services> localServices;
+    private final static long LOCAL_POLL_INTERVAL = 100; // time in milliseconds until the persistent queues are checked again during a local receive
 
     /**
      * Make a grid-based broker
@@ -68,6 +79,178 @@ public class GridBroker extends PeerBroker implements Broker {
         this.autoAck = autoAck;
         this.queueLimit = queueLimit;
         this.queueThrottling = queueThrottling;
+        this.confirmWindow = RabbitQueueFactory.DEFAULT_CONFIRM_WINDOW;
+        this.prefetch = 0;
+        this.ackCoalesceCount = 0;
+        this.ackCoalesceInterval = 0;
+        this.connections = 1;
+        this.channels = 1;
+        this.codec = MessageCodec.NONE;
+        this.inProcessQueueFactory = null;
+        this.localServices = ConcurrentHashMap.newKeySet();
+        this.rabbitBreaker = new CircuitBreaker("rabbitMQ", this::probeRabbitMQ);
+        this.mcpBreaker = new CircuitBreaker("mcp", this::probeMCP);
+    }
+
+    /**
+     * set the number of messages that may be sent to the rabbitMQ broker without having a confirmation yet
+     * @param confirmWindow the maximum number of unconfirmed messages for each queue
+     * @return this
+     */
+    public GridBroker setConfirmWindow(final int confirmWindow) {
+        this.confirmWindow = confirmWindow;
+        return this;
+    }
+
+    /**
+     * set the number of messages that the rabbitMQ broker pushes to a listener in advance
+     * @param prefetch the prefetch size of a queue consumer; 0 to poll messages one by one
+     * @return this
+     */
+    public GridBroker setPrefetch(final int prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * collect acknowledges for the rabbitMQ broker and send them as one multiple-ack
+     * @param count the number of acknowledges which are collected at most; 0 = send each acknowledge immediately
+     * @param interval the maximum time in milliseconds before collected acknowledges are sent
+     * @return this
+     */
+    public GridBroker setAckCoalescing(final int count, final long interval) {
+        this.ackCoalesceCount = count;
+        this.ackCoalesceInterval = interval;
+        return this;
+    }
+
+    /**
+     * set the size of the rabbitMQ connection and channel pool
+     * @param connections the number of connections to the rabbitMQ broker
+     * @param channels the number of channels for each queue, this is the number of threads that can use one queue concurrently
+     * @return this
+     */
+    public GridBroker setChannelPool(final int connections, final int channels) {
+        this.connections = connections;
+        this.channels = channels;
+        return this;
+    }
+
+    /**
+     * set the limits of the circuit breakers of the rabbitMQ and the mcp backend
+     * @param failures the number of consecutive failures after that a backend is skipped
+     * @param backoff the time in milliseconds before a skipped backend is probed the first time
+     * @param maxBackoff the maximum time in milliseconds between two probes
+     * @return this
+     */
+    public GridBroker setCircuitBreaker(final int failures, final long backoff, final long maxBackoff) {
+        this.rabbitBreaker.configure(failures, backoff, maxBackoff);
+        this.mcpBreaker.configure(failures, backoff, maxBackoff);
+        return this;
+    }
+
+    /**
+     * start the background sampling of the queue sizes
+     * @param interval the time in milliseconds between two samples; 0 = sample on access, at most every 10 seconds
+     * @return this
+     */
+    public GridBroker setQueueMonitor(final long interval) {
+        getDepthMonitor().start(interval);
+        return this;
+    }
+
+    /**
+     * set the codec which encodes all messages before they are sent. Received messages are always decoded,
+     * independently from this codec.
+     * @param codec the message codec
+     * @return this
+     */
+    public GridBroker setCodec(final MessageCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * set the number of message priority levels. Rabbitmq queues are declared with x-max-priority and
+     * the local queues deliver messages of a higher priority first. See AbstractBroker.configurePriorityLevels.
+     * This must be called before the connection to the rabbitMQ broker is opened.
+     * @param levels the number of priority levels; 0 = no message priorities, use priority dimensions
+     * @return this
+     */
+    public GridBroker setPriorityLevels(final int levels) {
+        configurePriorityLevels(levels);
+        return this;
+    }
+
+    /**
+     * set the retry strategy for failed messages, see AbstractBroker.configureRetry
+     * @param attempts the number of attempts after that a message is moved to the dead-letter queue
+     * @param delay the delay in milliseconds before the first retry, doubled with each further retry
+     * @return this
+     */
+    public GridBroker setRetry(final int attempts, final long delay) {
+        configureRetry(attempts, delay);
+        return this;
+    }
+
+    /**
+     * enable in-process queues for services which have a listener in this process. Messages to such a service
+     * are handed over in memory without encoding and without a round-trip to the persistent backends.
+     * If an in-process queue is full, messages are sent to the persistent backends instead.
+     * Messages in the in-process queues are lost if the process crashes; on close() they are moved to the persistent backends.
+     * @param capacity the number of messages in each in-process queue; 0 = no in-process queues
+     * @return this
+     */
+    public GridBroker setInProcess(final int capacity) {
+        this.inProcessQueueFactory = capacity > 0 ? new InProcessQueueFactory(capacity) : null;
+        return this;
+    }
+
+    /**
+     * announce that a listener for a service runs in this process. Messages to the source queues of that service
+     * may then use the in-process queues; all other queues of the service (i.e. dead-letter queues) stay persistent.
+     * @param service
+     */
+    public void attachLocalService(final Services service) {
+        if (this.inProcessQueueFactory == null) return;
+        this.localServices.add(service);
+        Logger.info(this.getClass(), "Broker/Client: using in-process queues for service '" + service.name() + "'");
+    }
+
+    /**
+     * announce that the listener for a service stopped. Messages in its in-process queues are moved to the persistent backends.
+     * @param service
+     */
+    public void detachLocalService(final Services service) {
+        if (!this.localServices.remove(service)) return;
+        for (final GridQueue queue: service.getSourceQueues()) spill(service, queue);
+    }
+
+    private boolean isLocal(final Services service, final GridQueue queue) {
+        if (this.inProcessQueueFactory == null || !this.localServices.contains(service)) return false;
+        for (final GridQueue source: service.getSourceQueues()) if (source.name().equals(queue.name())) return true;
+        return false;
+    }
+
+    /**
+     * move all messages from an in-process queue to the persistent backends
+     */
+    private void spill(final Services serviceName, final GridQueue queueName) {
+        if (this.inProcessQueueFactory == null) return;
+        final List<byte[]> messages = this.inProcessQueueFactory.drain(serviceQueueName(serviceName, queueName));
+        if (messages.isEmpty()) return;
+        getDepthMonitor().dequeued(serviceName, queueName, messages.size());
+        try {
+            sendPersistent(serviceName, queueName, messages);
+            Logger.info(this.getClass(), "Broker/Client: moved " + messages.size() + " in-process messages of service '" + serviceName + "', queue '" + queueName + "' to the persistent queue");
+        } catch (final IOException e) {
+            Logger.warn(this.getClass(), "Broker/Client: " + messages.size() + " in-process messages of service '" + serviceName + "', queue '" + queueName + "' lost: " + e.getMessage());
+        }
+    }
+
+    public GridBroker setAffinity(final int capacity, final long expiry) {
+        configureAffinity(capacity, expiry);
+        return this;
     }
 
     public String connectedHost() {
@@ -105,12 +288,39 @@ public class GridBroker extends PeerBroker implements Broker {
             this.rabbitMQ_password = password;
             //firsttry = true;
         }
+        // the MCP announces its broker with every response; don't open a new factory each time
+        final RabbitQueueFactory previous = this.rabbitQueueFactory;
+        if (previous != null && host.equals(previous.getHost()) && (port == -1 ? RabbitQueueFactory.DEFAULT_PORT : port) == previous.getPort()) return true;
         try {
-            this.rabbitQueueFactory = new RabbitQueueFactory(host, port, username, password, this.lazy, this.queueLimit);
+            this.rabbitQueueFactory = new RabbitQueueFactory(host, port, username, password, this.lazy, this.queueLimit)
+                    .setConfirmWindow(this.confirmWindow)
+                    .setPrefetch(this.prefetch)
+                    .setAckCoalescing(this.ackCoalesceCount, this.ackCoalesceInterval)
+                    .setConnections(this.connections)
+                    .setChannels(this.channels)
+                    .setMaxPriority(Math.max(0, getPriorityLevels() - 1));
             Logger.info(this.getClass(), "Broker/Client: connected to the rabbitMQ broker at " + host + ":" + port);
+            // the broker was moved: release the connections to the old one
+            if (previous != null) try {previous.close();} catch (final Throwable e) {}
             return true;
         } catch (final IOException e) {
             /*if (firsttry)*/ Logger.warn(this.getClass(), "Broker/Client: trying to connect to the rabbitMQ broker at " + host + ":" + port + " failed: " + e.getMessage(), e);
+            this.rabbitBreaker.trip();
+            return false;
+        }
+    }
+
+    private boolean probeRabbitMQ() {
+        if (this.rabbitQueueFactory == null) {
+            try {
+                this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
+            } catch (final Throwable e) {}
+            if (this.rabbitQueueFactory == null) return false;
+        }
+        try {
+            this.rabbitQueueFactory.checkConnection();
+            return true;
+        } catch (final IOException e) {
             return false;
         }
     }
@@ -122,6 +332,17 @@ public class GridBroker extends PeerBroker implements Broker {
     public boolean connectMCP(final String host, final int port) {
         this.mcp_host = host;
         this.mcp_port = port;
+        if (this.probeMCP()) {
+            this.mcpBreaker.success();
+            return true;
+        }
+        this.mcpBreaker.trip();
+        return false;
+    }
+
+    private boolean probeMCP() {
+        final String host = this.mcp_host;
+        final int port = this.mcp_port;
         try {
             final QueueFactory mcpqf = new MCPQueueFactory(this, host, port);
             final String queueName = YaCyServices.indexer.name() + "_" + YaCyServices.indexer.getSourceQueues()[0].name();
@@ -149,22 +370,46 @@ public class GridBroker extends PeerBroker implements Broker {
         return m;
     }
 
+    /**
+     * report a failed request to the circuit breaker of the backend.
+     * Errors which are reported by the backend itself show that the backend is reachable.
+     */
+    private static void report(final CircuitBreaker breaker, final IOException e) {
+        if (e instanceof MCPQueueFactory.ResponseException || TARGET_LIMIT_MESSAGE.equals(e.getMessage())) {
+            breaker.success();
+        } else {
+            breaker.failure();
+        }
+    }
+
+    private List<byte[]> encode(final List<byte[]> messages) {
+        if (this.codec.isNone()) return messages;
+        final List<byte[]> encoded = new ArrayList<>(messages.size());
+        for (final byte[] message: messages) encoded.add(this.codec.encode(message));
+        return encoded;
+    }
+
     @Override
     public QueueFactory send(final Services serviceName, final GridQueue queueName, final byte[] message) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
+        if (isLocal(serviceName, queueName)) try {
+            // the message stays in this process: no encoding
+            this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(message);
+            getDepthMonitor().enqueued(serviceName, queueName, 1);
+            return this.inProcessQueueFactory;
+        } catch (final IOException e) {
+            Logger.debug(this.getClass(), "Broker/Client: send in-process service '" + serviceName + "', queue '" + queueName + "', spill to persistent queue: " + e.getMessage());
         }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
-            this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(message);
+        final byte[] encoded = this.codec.encode(message);
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(encoded);
             Logger.info(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', message:" + messagePP(message));
+            this.rabbitBreaker.success();
+            getDepthMonitor().enqueued(serviceName, queueName, 1);
             return this.rabbitQueueFactory;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             String m = e.getMessage();
             if (m == null) m = e.getCause().getMessage();
-            try {Thread.sleep(1000);} catch (final InterruptedException ee) {}
             if (m.equals(TARGET_LIMIT_MESSAGE)) {
                 // queue limitation is like running against a wall: don't do this at all (if you know there is a wall)
                 // at least: If you insist in queue limitation don't do this too aggressive;
@@ -174,53 +419,168 @@ public class GridBroker extends PeerBroker implements Broker {
             }
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-            // try to connect again..
-            this.connectMCP(this.mcp_host, this.mcp_port);
-            if (this.mcpQueueFactory == null) {
-                Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! send mcp service '" + serviceName + "', queue '" + queueName);
-            }
-        }
-        if (this.mcpQueueFactory != null) try {
-            this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(message);
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
+            this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(encoded);
             Logger.info(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "', message:" + messagePP(message));
+            this.mcpBreaker.success();
+            getDepthMonitor().enqueued(serviceName, queueName, 1);
             return this.mcpQueueFactory;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         Logger.info(this.getClass(), "Broker/Client: send() on peer broker/local db");
-        return super.send(serviceName, queueName, message);
+        return super.send(serviceName, queueName, encoded);
+    }
+
+    @Override
+    public QueueFactory send(final Services serviceName, final GridQueue queueName, final byte[] message, final int priority) throws IOException {
+        if (isLocal(serviceName, queueName)) try {
+            // in-process queues have no priorities; the message is consumed in order of arrival
+            this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(message);
+            getDepthMonitor().enqueued(serviceName, queueName, 1);
+            return this.inProcessQueueFactory;
+        } catch (final IOException e) {
+            Logger.debug(this.getClass(), "Broker/Client: send in-process service '" + serviceName + "', queue '" + queueName + "', spill to persistent queue: " + e.getMessage());
+        }
+        final byte[] encoded = this.codec.encode(message);
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(encoded, priority);
+            Logger.info(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', priority " + priority + ", message:" + messagePP(message));
+            this.rabbitBreaker.success();
+            getDepthMonitor().enqueued(serviceName, queueName, 1);
+            return this.rabbitQueueFactory;
+        } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
+            String m = e.getMessage();
+            if (m == null) m = e.getCause().getMessage();
+            if (m.equals(TARGET_LIMIT_MESSAGE)) {
+                // see send(): consider this as fatal; the caller throttles with its retry and backpressure, so don't block here
+                throw e;
+            }
+            Logger.debug(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
+        }
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
+            this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(encoded, priority);
+            Logger.info(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "', priority " + priority + ", message:" + messagePP(message));
+            this.mcpBreaker.success();
+            getDepthMonitor().enqueued(serviceName, queueName, 1);
+            return this.mcpQueueFactory;
+        } catch (final IOException e) {
+            report(this.mcpBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
+        }
+        Logger.info(this.getClass(), "Broker/Client: send() with priority on peer broker/local db");
+        return super.send(serviceName, queueName, encoded, priority);
+    }
+
+    @Override
+    public void sendDelayed(final Services serviceName, final GridQueue queueName, final byte[] message, final long delay) throws IOException {
+        // rabbitMQ delays the message itself with a TTL queue which dead-letters into the target queue
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            this.rabbitQueueFactory.getDelayQueue(serviceQueueName(serviceName, queueName), delay).send(this.codec.encode(message));
+            Logger.info(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', delay " + delay + ", message:" + messagePP(message));
+            this.rabbitBreaker.success();
+            return;
+        } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: send delayed rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
+        }
+        // otherwise the message waits in this process and is sent with the fallback chain of send() at due time
+        super.sendDelayed(serviceName, queueName, message, delay);
+    }
+
+    @Override
+    public QueueFactory send(final Services serviceName, final GridQueue queueName, final List<byte[]> messages) throws IOException {
+        if (isLocal(serviceName, queueName)) {
+            final Queue local = this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
+            int sent = 0;
+            try {
+                for (final byte[] message: messages) {
+                    local.send(message);
+                    sent++;
+                }
+            } catch (final IOException e) {
+                Logger.debug(this.getClass(), "Broker/Client: send in-process service '" + serviceName + "', queue '" + queueName + "', spill " + (messages.size() - sent) + " messages to persistent queue: " + e.getMessage());
+            }
+            getDepthMonitor().enqueued(serviceName, queueName, sent);
+            if (sent == messages.size()) return this.inProcessQueueFactory;
+            return sendPersistent(serviceName, queueName, messages.subList(sent, messages.size()));
+        }
+        return sendPersistent(serviceName, queueName, messages);
+    }
+
+    private QueueFactory sendPersistent(final Services serviceName, final GridQueue queueName, final List<byte[]> messages) throws IOException {
+        final List<byte[]> encoded = encode(messages);
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(encoded);
+            Logger.info(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', " + messages.size() + " messages, first:" + (messages.isEmpty() ? "" : messagePP(messages.get(0))));
+            this.rabbitBreaker.success();
+            getDepthMonitor().enqueued(serviceName, queueName, messages.size());
+            return this.rabbitQueueFactory;
+        } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
+            String m = e.getMessage();
+            if (m == null) m = e.getCause().getMessage();
+            if (m.equals(TARGET_LIMIT_MESSAGE)) {
+                // see send(): consider this as fatal; the caller throttles with its retry and backpressure, so don't block here
+                throw e;
+            }
+            Logger.debug(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
+        }
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
+            this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).send(encoded);
+            Logger.info(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "', " + messages.size() + " messages, first:" + (messages.isEmpty() ? "" : messagePP(messages.get(0))));
+            this.mcpBreaker.success();
+            getDepthMonitor().enqueued(serviceName, queueName, messages.size());
+            return this.mcpQueueFactory;
+        } catch (final IOException e) {
+            report(this.mcpBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
+        }
+        Logger.info(this.getClass(), "Broker/Client: send() batch on peer broker/local db");
+        return super.send(serviceName, queueName, encoded);
     }
 
     @Override
     public MessageContainer receive(final Services serviceName, final GridQueue queueName, final long timeout, final boolean autoAck) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
+        if (!isLocal(serviceName, queueName)) return receivePersistent(serviceName, queueName, timeout, autoAck);
+        // wait on the in-process queue, but check the persistent queues regularly for messages from other processes
+        final Queue local = this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        while (true) {
+            final long remaining = deadline - System.currentTimeMillis();
+            final MessageContainer mc = local.receive(Math.max(1, Math.min(LOCAL_POLL_INTERVAL, remaining)), autoAck);
+            if (mc != null) {
+                getDepthMonitor().dequeued(serviceName, queueName, 1);
+                return mc;
+            }
+            final MessageContainer pmc = receivePersistent(serviceName, queueName, 1, autoAck);
+            if (pmc != null || remaining <= LOCAL_POLL_INTERVAL) return pmc;
         }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
+    }
+
+    private MessageContainer receivePersistent(final Services serviceName, final GridQueue queueName, final long timeout, final boolean autoAck) throws IOException {
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
             final Queue rabbitQueue = this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
             final MessageContainer mc = rabbitQueue.receive(timeout, autoAck);
             if (mc != null && mc.getPayload() != null && mc.getPayload().length > 0) Logger.info(this.getClass(), "Broker/Client: received rabbitMQ service '" + serviceName + "', queue '" + queueName + "', message:" + messagePP(mc.getPayload()));
+            this.rabbitBreaker.success();
+            if (mc != null) getDepthMonitor().dequeued(serviceName, queueName, 1);
             return mc;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: receive rabbitMQ service '" + serviceName + "', queue '" + queueName + "',rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-            // try to connect again..
-            this.connectMCP(this.mcp_host, this.mcp_port);
-            if (this.mcpQueueFactory == null) {
-                Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! receive mcp service '" + serviceName + "', queue '" + queueName + "'");
-            }
-        }
-        if (this.mcpQueueFactory != null) try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
             final Queue mcpQueue = this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
             final MessageContainer mc = mcpQueue.receive(timeout, autoAck);
             if (mc != null && mc.getPayload() != null && mc.getPayload().length > 0) Logger.info(this.getClass(), "Broker/Client: receive mcp service '" + serviceName + "', queue '" + queueName + "', message:" + messagePP(mc.getPayload()));
+            this.mcpBreaker.success();
+            if (mc != null) getDepthMonitor().dequeued(serviceName, queueName, 1);
             return mc;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: receive mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         //Logger.info(this.getClass(), "Broker/Client: receive() on peer broker/local db");
@@ -230,32 +590,70 @@ public class GridBroker extends PeerBroker implements Broker {
     }
 
     @Override
-    public QueueFactory acknowledge(final Services serviceName, final GridQueue queueName, final long deliveryTag) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
+    public List<MessageContainer> receive(final Services serviceName, final GridQueue queueName, final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+        if (!isLocal(serviceName, queueName)) return receivePersistent(serviceName, queueName, maxCount, timeout, autoAck);
+        final Queue local = this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        while (true) {
+            final long remaining = deadline - System.currentTimeMillis();
+            final List<MessageContainer> mcs = local.receive(maxCount, Math.max(1, Math.min(LOCAL_POLL_INTERVAL, remaining)), autoAck);
+            if (mcs.size() > 0) {
+                getDepthMonitor().dequeued(serviceName, queueName, mcs.size());
+                return mcs;
+            }
+            final List<MessageContainer> pmcs = receivePersistent(serviceName, queueName, maxCount, 1, autoAck);
+            if (pmcs.size() > 0 || remaining <= LOCAL_POLL_INTERVAL) return pmcs;
         }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
+    }
+
+    private List<MessageContainer> receivePersistent(final Services serviceName, final GridQueue queueName, final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            final Queue rabbitQueue = this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
+            final List<MessageContainer> mcs = rabbitQueue.receive(maxCount, timeout, autoAck);
+            if (mcs.size() > 0) Logger.info(this.getClass(), "Broker/Client: received rabbitMQ service '" + serviceName + "', queue '" + queueName + "', " + mcs.size() + " messages");
+            this.rabbitBreaker.success();
+            getDepthMonitor().dequeued(serviceName, queueName, mcs.size());
+            return mcs;
+        } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: receive rabbitMQ service '" + serviceName + "', queue '" + queueName + "',rabbitmq fail", e);
+        }
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
+            final Queue mcpQueue = this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
+            final List<MessageContainer> mcs = mcpQueue.receive(maxCount, timeout, autoAck);
+            if (mcs.size() > 0) Logger.info(this.getClass(), "Broker/Client: receive mcp service '" + serviceName + "', queue '" + queueName + "', " + mcs.size() + " messages");
+            this.mcpBreaker.success();
+            getDepthMonitor().dequeued(serviceName, queueName, mcs.size());
+            return mcs;
+        } catch (final IOException e) {
+            report(this.mcpBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: receive mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
+        }
+        final List<MessageContainer> mcs = super.receive(serviceName, queueName, maxCount, timeout, autoAck);
+        if (mcs.size() > 0) Logger.info(this.getClass(), "Broker/Client: received peer broker/local db service '" + serviceName + "', queue '" + queueName + "', " + mcs.size() + " messages");
+        return mcs;
+    }
+
+    @Override
+    public QueueFactory acknowledge(final Services serviceName, final GridQueue queueName, final long deliveryTag) throws IOException {
+        // in-process deliveries have no delivery tag, there is nothing to acknowledge
+        if (deliveryTag == 0 && isLocal(serviceName, queueName)) return this.inProcessQueueFactory;
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
             this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).acknowledge(deliveryTag);
             Logger.info(this.getClass(), "Broker/Client: acknowledged rabbitMQ service '" + serviceName + "', queue '" + queueName + "', deliveryTag " + deliveryTag);
+            this.rabbitBreaker.success();
             return this.rabbitQueueFactory;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: acknowledge rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-            // try to connect again..
-            this.connectMCP(this.mcp_host, this.mcp_port);
-            if (this.mcpQueueFactory == null) {
-                Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! send mcp service '" + serviceName + "', queue '" + queueName);
-            }
-        }
-        if (this.mcpQueueFactory != null) try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
             this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).acknowledge(deliveryTag);
             Logger.info(this.getClass(), "Broker/Client: acknowledged mcp service '" + serviceName + "', queue '" + queueName + "', deliveryTag " + deliveryTag);
+            this.mcpBreaker.success();
             return this.mcpQueueFactory;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: acknowledge mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         Logger.info(this.getClass(), "Broker/Client: acknowledge() on peer broker/local db");
@@ -263,32 +661,55 @@ public class GridBroker extends PeerBroker implements Broker {
     }
 
     @Override
-    public QueueFactory reject(final Services serviceName, final GridQueue queueName, final long deliveryTag) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
+    public QueueFactory acknowledge(final Services serviceName, final GridQueue queueName, final List<Long> deliveryTags) throws IOException {
+        // in-process deliveries have no delivery tag, there is nothing to acknowledge
+        final List<Long> tags = isLocal(serviceName, queueName) ? new ArrayList<>(deliveryTags.size()) : deliveryTags;
+        if (tags != deliveryTags) {
+            for (final Long deliveryTag: deliveryTags) if (deliveryTag.longValue() != 0) tags.add(deliveryTag);
+            if (tags.isEmpty()) return this.inProcessQueueFactory;
+        }
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).acknowledge(tags);
+            Logger.info(this.getClass(), "Broker/Client: acknowledged rabbitMQ service '" + serviceName + "', queue '" + queueName + "', " + tags.size() + " deliveryTags");
+            this.rabbitBreaker.success();
+            return this.rabbitQueueFactory;
+        } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: acknowledge rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
+            this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).acknowledge(tags);
+            Logger.info(this.getClass(), "Broker/Client: acknowledged mcp service '" + serviceName + "', queue '" + queueName + "', " + tags.size() + " deliveryTags");
+            this.mcpBreaker.success();
+            return this.mcpQueueFactory;
+        } catch (final IOException e) {
+            report(this.mcpBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: acknowledge mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
+        }
+        Logger.info(this.getClass(), "Broker/Client: acknowledge() on peer broker/local db");
+        return super.acknowledge(serviceName, queueName, tags);
+    }
+
+    @Override
+    public QueueFactory reject(final Services serviceName, final GridQueue queueName, final long deliveryTag) throws IOException {
+        // in-process deliveries have no delivery tag, there is nothing to reject
+        if (deliveryTag == 0 && isLocal(serviceName, queueName)) return this.inProcessQueueFactory;
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
             this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).reject(deliveryTag);
             Logger.info(this.getClass(), "Broker/Client: rejected rabbitMQ service '" + serviceName + "', queue '" + queueName + "', deliveryTag " + deliveryTag);
+            this.rabbitBreaker.success();
             return this.rabbitQueueFactory;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: acknowledge rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-            // try to connect again..
-            this.connectMCP(this.mcp_host, this.mcp_port);
-            if (this.mcpQueueFactory == null) {
-                Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! send mcp service '" + serviceName + "', queue '" + queueName);
-            }
-        }
-        if (this.mcpQueueFactory != null) try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
             this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).reject(deliveryTag);
             Logger.info(this.getClass(), "Broker/Client: rejected mcp service '" + serviceName + "', queue '" + queueName + "', deliveryTag " + deliveryTag);
+            this.mcpBreaker.success();
             return this.mcpQueueFactory;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             Logger.debug(this.getClass(), "Broker/Client: acknowledge mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         Logger.info(this.getClass(), "Broker/Client: reject() on peer broker/local db");
@@ -297,32 +718,23 @@ public class GridBroker extends PeerBroker implements Broker {
 
     @Override
     public QueueFactory recover(final Services serviceName, final GridQueue queueName) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
-        }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
             final Queue queue = this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName));
             if (queue != null) queue.recover();
             Logger.info(this.getClass(), "Broker/Client: recovered rabbitMQ service '" + serviceName + "', queue '" + queueName + "'");
+            this.rabbitBreaker.success();
             return this.rabbitQueueFactory;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: recover rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-            // try to connect again..
-            this.connectMCP(this.mcp_host, this.mcp_port);
-            if (this.mcpQueueFactory == null) {
-                Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! recover mcp service '" + serviceName + "', queue '" + queueName);
-            }
-        }
-        if (this.mcpQueueFactory != null) try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
             this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).recover();
             Logger.info(this.getClass(), "Broker/Client: recovered mcp service '" + serviceName + "', queue '" + queueName + "'");
+            this.mcpBreaker.success();
             return this.mcpQueueFactory;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: recover mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         Logger.info(this.getClass(), "Broker/Client: recover() on peer broker/local db");
@@ -331,29 +743,27 @@ public class GridBroker extends PeerBroker implements Broker {
 
     @Override
     public AvailableContainer available(final Services serviceName, final GridQueue queueName) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
-        }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
+        final AvailableContainer ac = availablePersistent(serviceName, queueName);
+        if (!isLocal(serviceName, queueName)) return ac;
+        final long local = this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).available();
+        return local == 0 ? ac : new AvailableContainer(ac.getFactory(), ac.getQueue(), ac.getAvailable() + local);
+    }
+
+    private AvailableContainer availablePersistent(final Services serviceName, final GridQueue queueName) throws IOException {
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
             final AvailableContainer ac = new AvailableContainer(this.rabbitQueueFactory, queueName.name, this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).available());
+            this.rabbitBreaker.success();
             return ac;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: available rabbitMQ service '" + serviceName + "', queue '" + queueName + "',rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-            // try to connect again..
-            this.connectMCP(this.mcp_host, this.mcp_port);
-            if (this.mcpQueueFactory == null) {
-                Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! available mcp service '" + serviceName + "', queue '" + queueName + "'");
-            }
-        }
-        if (this.mcpQueueFactory != null) try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
             final AvailableContainer ac = new AvailableContainer(this.mcpQueueFactory, queueName.name, this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).available());
+            this.mcpBreaker.success();
             return ac;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: available mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         Logger.info(this.getClass(), "Broker/Client: available() on peer broker/local db");
@@ -361,32 +771,52 @@ public class GridBroker extends PeerBroker implements Broker {
     }
 
     @Override
-    public QueueFactory clear(final Services serviceName, final GridQueue queueName) throws IOException {
-        if (this.rabbitQueueFactory == null && this.rabbitMQ_host != null) {
-            // try to connect again..
-            this.connectRabbitMQ(this.rabbitMQ_host, this.rabbitMQ_port, this.rabbitMQ_username, this.rabbitMQ_password);
+    public List<MessageContainer> peek(final YaCyServices serviceName, final GridQueue queueName, final int count) throws IOException {
+        if (!isLocal(serviceName, queueName)) return peekPersistent(serviceName, queueName, count);
+        final List<MessageContainer> mcs = new ArrayList<>(this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).peek(count));
+        if (mcs.size() < count) mcs.addAll(peekPersistent(serviceName, queueName, count - mcs.size()));
+        return mcs;
+    }
+
+    private List<MessageContainer> peekPersistent(final YaCyServices serviceName, final GridQueue queueName, final int count) throws IOException {
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
+            final List<MessageContainer> mcs = this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).peek(count);
+            this.rabbitBreaker.success();
+            return mcs;
+        } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: peek rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.rabbitQueueFactory == null) {
-            this.rabbitMQ_host = null;
-        } else try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
+            final List<MessageContainer> mcs = this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).peek(count);
+            this.mcpBreaker.success();
+            return mcs;
+        } catch (final IOException e) {
+            report(this.mcpBreaker, e);
+            Logger.debug(this.getClass(), "Broker/Client: peek mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
+        }
+        return super.peek(serviceName, queueName, count);
+    }
+
+    @Override
+    public QueueFactory clear(final Services serviceName, final GridQueue queueName) throws IOException {
+        if (this.inProcessQueueFactory != null) this.inProcessQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).clear();
+        if (this.rabbitQueueFactory != null && this.rabbitBreaker.allowRequest()) try {
             this.rabbitQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).clear();
             Logger.info(this.getClass(), "Broker/Client: clear rabbitMQ service '" + serviceName + "', queue '" + queueName + "'");
+            this.rabbitBreaker.success();
             return this.rabbitQueueFactory;
         } catch (final IOException e) {
+            report(this.rabbitBreaker, e);
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: send rabbitMQ service '" + serviceName + "', queue '" + queueName + "', rabbitmq fail", e);
         }
-        if (this.mcpQueueFactory == null && this.mcp_host != null) {
-                // try to connect again..
-                this.connectMCP(this.mcp_host, this.mcp_port);
-                if (this.mcpQueueFactory == null) {
-                    Logger.warn(this.getClass(), "Broker/Client: FATAL: connection to MCP lost! send mcp service '" + serviceName + "', queue '" + queueName + "'");
-                }
-        }
-        if (this.mcpQueueFactory != null) try {
+        if (this.mcpQueueFactory != null && this.mcpBreaker.allowRequest()) try {
             this.mcpQueueFactory.getQueue(serviceQueueName(serviceName, queueName)).clear();
             Logger.info(this.getClass(), "Broker/Client: clear mcp service '" + serviceName + "', queue '" + queueName + "'");
+            this.mcpBreaker.success();
             return this.mcpQueueFactory;
         } catch (final IOException e) {
+            report(this.mcpBreaker, e);
             /*if (!e.getMessage().contains("timeout"))*/ Logger.debug(this.getClass(), "Broker/Client: send mcp service '" + serviceName + "', queue '" + queueName + "',mcp fail", e);
         }
         Logger.info(this.getClass(), "Broker/Client: send() on peer broker/local db");
@@ -395,6 +825,11 @@ public class GridBroker extends PeerBroker implements Broker {
 
     @Override
     public void close() {
+        flushDelayed(); // while all backends are still open
+        for (final Services service: this.localServices) detachLocalService(service);
+        if (this.inProcessQueueFactory != null) this.inProcessQueueFactory.close();
+        this.rabbitBreaker.shutdown();
+        this.mcpBreaker.shutdown();
         if (this.rabbitQueueFactory != null) try {this.rabbitQueueFactory.close();} catch (final Throwable e) {}
         if (this.mcpQueueFactory != null) try {this.mcpQueueFactory.close();} catch (final Throwable e) {}
         try {super.close();} catch (final Throwable e) {}
@@ -0,0 +1,261 @@
+/**
+ *  InProcessQueueFactory
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.yacy.grid.tools.Logger;
+
+/**
+ * A queue factory for queues within the same process. Messages are handed over as references in
+ * bounded lock-free ring buffers, they are neither copied nor stored. A send to a full queue fails
+ * with an IOException, then the message must be sent to a persistent queue instead.
+ * Messages in these queues are lost if the process terminates without draining the queues.
+ */
+public class InProcessQueueFactory implements QueueFactory {
+
+    public static final String QUEUE_FULL_MESSAGE = "in-process queue is full";
+
+    private final int capacity;
+    private final Map<String, RingQueue> queues;
+
+    /**
+     * create a factory for in-process queues
+     * @param capacity the maximum number of messages in each queue; rounded up to a power of two
+     */
+    public InProcessQueueFactory(final int capacity) {
+        int c = Integer.highestOneBit(Math.max(2, capacity));
+        if (c < capacity) c = c << 1;
+        this.capacity = c;
+        this.queues = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public String getHost() {
+        return null;
+    }
+
+    @Override
+    public boolean hasDefaultPort() {
+        return false;
+    }
+
+    @Override
+    public int getPort() {
+        return -1;
+    }
+
+    @Override
+    public String getConnectionURL() {
+        return null;
+    }
+
+    @Override
+    public Queue getQueue(final String queueName) throws IOException {
+        return this.queues.computeIfAbsent(queueName, n -> new RingQueue());
+    }
+
+    /**
+     * remove all messages from a queue
+     * @param queueName the name of the queue
+     * @return the removed messages in the order of arrival
+     */
+    public List<byte[]> drain(final String queueName) {
+        final RingQueue queue = this.queues.get(queueName);
+        return queue == null ? new ArrayList<>(0) : queue.drain();
+    }
+
+    @Override
+    public void close() {
+        this.queues.values().forEach(queue -> {
+            final int lost = queue.size();
+            if (lost > 0) Logger.warn(this.getClass(), "InProcessQueueFactory: closing a queue with " + lost + " messages");
+        });
+        this.queues.clear();
+    }
+
+    /**
+     * A bounded multi-producer multi-consumer ring buffer without locks.
+     * Each slot has a sequence number which tells producers and consumers if the slot is free or filled
+     * for the current round, positions are claimed with a compare-and-set on the head and tail counters.
+     * A semaphore counts the filled slots, it is only used to let a receiver wait for a message.
+     */
+    private class RingQueue extends AbstractQueue implements Queue {
+
+        private final AtomicReferenceArray<byte[]> buffer;
+        private final AtomicLongArray sequence;
+        private final int mask;
+        private final AtomicLong head, tail; // the next position to read and to write
+        private final Semaphore filled;
+
+        public RingQueue() {
+            final int size = InProcessQueueFactory.this.capacity;
+            this.buffer = new AtomicReferenceArray<>(size);
+            this.sequence = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) this.sequence.set(i, i);
+            this.mask = size - 1;
+            this.head = new AtomicLong(0);
+            this.tail = new AtomicLong(0);
+            this.filled = new Semaphore(0);
+        }
+
+        private boolean offer(final byte[] message) {
+            long pos = this.tail.get();
+            while (true) {
+                final int i = (int) (pos & this.mask);
+                final long dif = this.sequence.get(i) - pos;
+                if (dif == 0) {
+                    if (this.tail.compareAndSet(pos, pos + 1)) {
+                        this.buffer.set(i, message);
+                        this.sequence.set(i, pos + 1); // publish the slot for consumers
+                        this.filled.release();
+                        return true;
+                    }
+                    pos = this.tail.get();
+                } else if (dif < 0) {
+                    return false; // the slot was not consumed in the previous round: the buffer is full
+                } else {
+                    pos = this.tail.get();
+                }
+            }
+        }
+
+        /**
+         * take the next message. The caller must own a permit of the filled-semaphore; the message is
+         * then guaranteed to arrive, but a concurrent producer may still be writing it.
+         */
+        private byte[] take() {
+            long pos = this.head.get();
+            while (true) {
+                final int i = (int) (pos & this.mask);
+                final long dif = this.sequence.get(i) - (pos + 1);
+                if (dif == 0) {
+                    if (this.head.compareAndSet(pos, pos + 1)) {
+                        final byte[] message = this.buffer.get(i);
+                        this.buffer.set(i, null);
+                        this.sequence.set(i, pos + this.mask + 1); // free the slot for the next round
+                        return message;
+                    }
+                } else if (dif < 0) {
+                    Thread.yield(); // the producer of that slot did not finish yet
+                }
+                pos = this.head.get();
+            }
+        }
+
+        private int size() {
+            return this.filled.availablePermits();
+        }
+
+        private List<byte[]> drain() {
+            final List<byte[]> messages = new ArrayList<>();
+            while (this.filled.tryAcquire()) messages.add(take());
+            return messages;
+        }
+
+        @Override
+        public void checkConnection() throws IOException {
+        }
+
+        @Override
+        public Queue send(final byte[] message) throws IOException {
+            if (!offer(message)) throw new IOException(QUEUE_FULL_MESSAGE);
+            return this;
+        }
+
+        @Override
+        public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
+            try {
+                if (timeout > 0) {
+                    if (!this.filled.tryAcquire(timeout, TimeUnit.MILLISECONDS)) return null;
+                } else {
+                    this.filled.acquire();
+                }
+                return new MessageContainer(InProcessQueueFactory.this, take(), 0);
+            } catch (final InterruptedException e) {
+                Logger.debug(this.getClass(), "InProcessQueue: receive interrupted", e);
+            }
+            return null;
+        }
+
+        @Override
+        public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            final MessageContainer first = receive(timeout, autoAck);
+            if (first == null) return messages;
+            messages.add(first);
+            while (messages.size() < maxCount && this.filled.tryAcquire()) {
+                messages.add(new MessageContainer(InProcessQueueFactory.this, take(), 0));
+            }
+            return messages;
+        }
+
+        @Override
+        public void acknowledge(final long deliveryTag) throws IOException {
+            // do nothing, messages are handed over with the receive
+        }
+
+        @Override
+        public void reject(final long deliveryTag) throws IOException {
+            // do nothing, messages are handed over with the receive
+        }
+
+        @Override
+        public void recover() throws IOException {
+            // do nothing, there are no unacknowledged messages
+        }
+
+        @Override
+        public long available() throws IOException {
+            return size();
+        }
+
+        @Override
+        public List<MessageContainer> peek(final int count) throws IOException {
+            // a snapshot of the published slots; concurrent receivers may take them at any time
+            final List<MessageContainer> messages = new ArrayList<>();
+            final long last = this.tail.get();
+            for (long pos = this.head.get(); pos < last && messages.size() < count; pos++) {
+                final int i = (int) (pos & this.mask);
+                final byte[] message = this.buffer.get(i);
+                if (this.sequence.get(i) == pos + 1 && message != null) messages.add(new MessageContainer(InProcessQueueFactory.this, message, 0));
+            }
+            return messages;
+        }
+
+        @Override
+        public void clear() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -21,7 +21,13 @@ package net.yacy.grid.io.messages;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import net.yacy.grid.YaCyServices;
@@ -30,24 +36,59 @@ import net.yacy.grid.http.ObjectAPIHandler;
 import net.yacy.grid.http.ServiceResponse;
 import net.yacy.grid.mcp.Service;
 import net.yacy.grid.mcp.api.info.StatusService;
+import net.yacy.grid.mcp.api.messages.AcknowledgeBatchService;
 import net.yacy.grid.mcp.api.messages.AcknowledgeService;
 import net.yacy.grid.mcp.api.messages.AvailableService;
+import net.yacy.grid.mcp.api.messages.PeekService;
+import net.yacy.grid.mcp.api.messages.ReceiveBatchService;
 import net.yacy.grid.mcp.api.messages.ReceiveService;
 import net.yacy.grid.mcp.api.messages.RecoverService;
 import net.yacy.grid.mcp.api.messages.RejectService;
+import net.yacy.grid.mcp.api.messages.SendBatchService;
 import net.yacy.grid.mcp.api.messages.SendService;
 import net.yacy.grid.tools.Logger;
 
 public class MCPQueueFactory implements QueueFactory {
 
+    private final static long BATCH_PROBE_INTERVAL = 600000; // time in milliseconds until an MCP without batch endpoints is asked for them again
+
     private final GridBroker broker;
     private final String server;
     private final int port;
+    private volatile long noBatchTime; // the time when the MCP was found without batch endpoints, 0 if it has them
 
     public MCPQueueFactory(final GridBroker broker, final String server, final int port) {
         this.broker = broker;
         this.server = server;
         this.port = port;
+        this.noBatchTime = 0;
+    }
+
+    /**
+     * An MCP of an older version does not have the batch endpoints; then messages are sent and received
+     * one by one with the send and receive services. The result is remembered for this MCP, but the batch
+     * endpoints are tried again after some time because the MCP may have been updated.
+     * @return true if the batch endpoints shall be used
+     */
+    private boolean useBatch() {
+        return this.noBatchTime == 0 || System.currentTimeMillis() - this.noBatchTime > BATCH_PROBE_INTERVAL;
+    }
+
+    /**
+     * Only a missing endpoint (the MCP answers with 'not found') means that the MCP has no batch endpoints.
+     * Any other failure, i.e. a read timeout, may happen after the MCP has processed the batch: then a repetition
+     * with the single services would duplicate sent messages or lose received ones.
+     * @param e the exception from the call to a batch endpoint
+     * @return true if the batch endpoint does not exist on the MCP
+     */
+    private static boolean missingEndpoint(final IOException e) {
+        final String m = e.getMessage();
+        return m != null && m.contains(" fail: 404:");
+    }
+
+    private void batchFailed(final IOException e) {
+        if (this.noBatchTime == 0) Logger.warn(this.getClass(), "MCP at " + getConnectionURL() + " has no batch endpoints, messages are transferred one by one: " + e.getMessage());
+        this.noBatchTime = System.currentTimeMillis();
     }
 
     @Override
@@ -90,8 +131,39 @@ public class MCPQueueFactory implements QueueFactory {
 
             @Override
             public Queue send(final byte[] message) throws IOException {
-                params.put("message", new String(message, StandardCharsets.UTF_8));
-                final JSONObject response = getResponse(Service.instance.config.getAPI(SendService.NAME));
+                return send(Collections.singletonList(message));
+            }
+
+            @Override
+            public Queue send(final byte[] message, final int priority) throws IOException {
+                return send(Collections.singletonList(message), priority);
+            }
+
+            @Override
+            public Queue send(final List<byte[]> messages) throws IOException {
+                return send(messages, -1);
+            }
+
+            /**
+             * send a batch of messages
+             * @param messages the messages
+             * @param priority the message priority of all messages, -1 for messages without priority
+             */
+            private Queue send(final List<byte[]> messages, final int priority) throws IOException {
+                if (!useBatch()) return sendSingle(messages);
+                final JSONObject response;
+                try {
+                    // the batch is sent as raw bytes, the payloads are never converted to strings
+                    final Map<String, byte[]> batchParams = batchParams();
+                    batchParams.put("messages", MessageBatch.encodePayloads(messages));
+                    if (priority >= 0) batchParams.put("priority", Integer.toString(priority).getBytes(StandardCharsets.UTF_8));
+                    response = getResponse(Service.instance.config.getAPI(SendBatchService.NAME), batchParams).getObject();
+                } catch (final IOException e) {
+                    if (!missingEndpoint(e)) throw e;
+                    batchFailed(e);
+                    return sendSingle(messages);
+                }
+                MCPQueueFactory.this.noBatchTime = 0;
 
                 // read the broker to store the service definition of the remote queue, if exists
                 if (success(response)) {
@@ -102,24 +174,72 @@ public class MCPQueueFactory implements QueueFactory {
                 }
             }
 
+            /**
+             * send messages with the send service, which exists in all MCP versions. The service takes the payload
+             * as string and does not know message priorities.
+             */
+            private Queue sendSingle(final List<byte[]> messages) throws IOException {
+                for (final byte[] message: messages) {
+                    final JSONObject p = singleParams();
+                    p.put("message", new String(message, StandardCharsets.UTF_8));
+                    final JSONObject response = getResponse(Service.instance.config.getAPI(SendService.NAME), p);
+                    if (!success(response)) throw handleError(response);
+                    connectMCP(response);
+                }
+                return this;
+            }
+
             @Override
-            public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
-                params.put("timeout", Long.toString(timeout));
-                params.put("autoAck", Boolean.toString(autoAck));
-                final JSONObject response = getResponse(Service.instance.config.getAPI(ReceiveService.NAME));
+            public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+                if (!useBatch()) return receiveSingle(timeout, autoAck);
+                final ServiceResponse sr;
+                try {
+                    final Map<String, byte[]> batchParams = batchParams();
+                    batchParams.put("maxCount", Integer.toString(maxCount).getBytes(StandardCharsets.UTF_8));
+                    batchParams.put("timeout", Long.toString(timeout).getBytes(StandardCharsets.UTF_8));
+                    batchParams.put("autoAck", Boolean.toString(autoAck).getBytes(StandardCharsets.UTF_8));
+                    sr = getResponse(Service.instance.config.getAPI(ReceiveBatchService.NAME), batchParams);
+                } catch (final IOException e) {
+                    if (!missingEndpoint(e)) throw e;
+                    batchFailed(e);
+                    return receiveSingle(timeout, autoAck);
+                }
+                MCPQueueFactory.this.noBatchTime = 0;
+                // errors are reported as JSON object, deliveries as binary batch
+                if (!sr.isByteArray()) throw handleError(sr.getObject());
+                final List<String> url = new ArrayList<>(1);
+                final List<MessageContainer> messages = MessageBatch.decodeDeliveries(MCPQueueFactory.this, sr.getByteArray(), url);
+                if (!url.isEmpty()) connectMCP(url.get(0));
+                return messages;
+            }
 
-                // read the broker to store the service definition of the remote queue, if exists
+            /**
+             * receive one message with the receive service, which exists in all MCP versions
+             * @return a list with one message or an empty list if a timeout occurred
+             */
+            private List<MessageContainer> receiveSingle(final long timeout, final boolean autoAck) throws IOException {
+                final JSONObject p = singleParams();
+                p.put("timeout", Long.toString(timeout));
+                p.put("autoAck", Boolean.toString(autoAck));
+                final JSONObject response = getResponse(Service.instance.config.getAPI(ReceiveService.NAME), p);
                 if (success(response)) {
                     connectMCP(response);
                     if (response.has(ObjectAPIHandler.MESSAGE_KEY)) {
-                        final String message = response.getString(ObjectAPIHandler.MESSAGE_KEY);
-                        final long deliveryTag = response.optLong(ObjectAPIHandler.DELIVERY_TAG);
-                        return new MessageContainer(MCPQueueFactory.this, message == null ? null : message.getBytes(StandardCharsets.UTF_8), deliveryTag);
+                        final byte[] payload = response.getString(ObjectAPIHandler.MESSAGE_KEY).getBytes(StandardCharsets.UTF_8);
+                        return Collections.singletonList(new MessageContainer(MCPQueueFactory.this, payload, response.optLong(ObjectAPIHandler.DELIVERY_TAG)));
                     }
                     throw new IOException("bad response from MCP: success but no message key");
-                } else {
-                    throw handleError(response);
                 }
+                // the receive service reports a timeout as failure
+                if ("timeout".equals(response.optString(ObjectAPIHandler.COMMENT_KEY))) return new ArrayList<>(0);
+                throw handleError(response);
+            }
+
+            @Override
+            public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
+                final List<MessageContainer> messages = receive(1, timeout, autoAck);
+                // message can be null if a timeout occurred
+                return messages.isEmpty() ? null : messages.get(0);
             }
 
             @Override
@@ -133,6 +253,31 @@ public class MCPQueueFactory implements QueueFactory {
                 }
             }
 
+            @Override
+            public void acknowledge(final List<Long> deliveryTags) throws IOException {
+                if (!useBatch()) {
+                    for (final Long deliveryTag: deliveryTags) acknowledge(deliveryTag.longValue());
+                    return;
+                }
+                final JSONObject response;
+                try {
+                    final Map<String, byte[]> batchParams = batchParams();
+                    batchParams.put("deliveryTags", MessageBatch.encodeDeliveryTags(deliveryTags));
+                    response = getResponse(Service.instance.config.getAPI(AcknowledgeBatchService.NAME), batchParams).getObject();
+                } catch (final IOException e) {
+                    if (!missingEndpoint(e)) throw e;
+                    batchFailed(e);
+                    for (final Long deliveryTag: deliveryTags) acknowledge(deliveryTag.longValue());
+                    return;
+                }
+                MCPQueueFactory.this.noBatchTime = 0;
+                if (success(response)) {
+                    connectMCP(response);
+                } else {
+                    throw handleError(response);
+                }
+            }
+
             @Override
             public void reject(final long deliveryTag) throws IOException {
                 params.put("deliveryTag", Long.toString(deliveryTag));
@@ -170,29 +315,68 @@ public class MCPQueueFactory implements QueueFactory {
                     throw handleError(response);
                 }
             }
+            @Override
+            public List<MessageContainer> peek(final int count) throws IOException {
+                final JSONObject peekParams = new JSONObject(true);
+                peekParams.put("serviceName", params.getString("serviceName"));
+                peekParams.put("queueName", params.getString("queueName"));
+                peekParams.put("count", Integer.toString(count));
+                final JSONObject response = getResponse(Service.instance.config.getAPI(PeekService.NAME), peekParams);
+                if (success(response)) {
+                    // the peek service returns the messages as JSON objects
+                    final JSONArray a = response.getJSONArray(ObjectAPIHandler.MESSAGES_KEY);
+                    final List<MessageContainer> messages = new ArrayList<>(a.length());
+                    for (int i = 0; i < a.length(); i++) messages.add(new MessageContainer(MCPQueueFactory.this, a.get(i).toString().getBytes(StandardCharsets.UTF_8), 0));
+                    return messages;
+                } else {
+                    throw handleError(response);
+                }
+            }
+
             private JSONObject getResponse(final APIHandler handler) throws IOException {
+                return getResponse(handler, params);
+            }
+            private JSONObject getResponse(final APIHandler handler, final JSONObject p) throws IOException {
                 final String protocolhostportstub = MCPQueueFactory.this.getConnectionURL();
-                final ServiceResponse sr = handler.serviceImpl(protocolhostportstub, params);
+                final ServiceResponse sr = handler.serviceImpl(protocolhostportstub, p);
                 return sr.getObject();
             }
+            private ServiceResponse getResponse(final APIHandler handler, final Map<String, byte[]> p) throws IOException {
+                // the http client of ClientConnection is pooled, so batches to the same MCP re-use kept-alive connections
+                final String protocolhostportstub = MCPQueueFactory.this.getConnectionURL();
+                return handler.serviceImpl(protocolhostportstub, p);
+            }
+            private Map<String, byte[]> batchParams() {
+                // a fresh set of parameters for each batch to keep the batch out of later calls
+                final Map<String, byte[]> p = new HashMap<>();
+                p.put("serviceName", params.getString("serviceName").getBytes(StandardCharsets.UTF_8));
+                p.put("queueName", params.getString("queueName").getBytes(StandardCharsets.UTF_8));
+                return p;
+            }
+            private JSONObject singleParams() {
+                final JSONObject p = new JSONObject(true);
+                p.put("serviceName", params.getString("serviceName"));
+                p.put("queueName", params.getString("queueName"));
+                return p;
+            }
             private boolean success(final JSONObject response) {
                 return response.has(ObjectAPIHandler.SUCCESS_KEY) && response.getBoolean(ObjectAPIHandler.SUCCESS_KEY);
             }
             private void connectMCP(final JSONObject response) {
-                if (response.has(ObjectAPIHandler.SERVICE_KEY)) {
-                    final String broker = response.getString(ObjectAPIHandler.SERVICE_KEY);
-                    if (MCPQueueFactory.this.broker.connectRabbitMQ(broker)) {
-                        Logger.info(this.getClass(), "connected MCP broker at " + broker);
-                    } else {
-                        Logger.error(this.getClass(), "failed to connect MCP broker at " + broker);
-                    }
+                if (response.has(ObjectAPIHandler.SERVICE_KEY)) connectMCP(response.getString(ObjectAPIHandler.SERVICE_KEY));
+            }
+            private void connectMCP(final String broker) {
+                if (MCPQueueFactory.this.broker.connectRabbitMQ(broker)) {
+                    Logger.info(this.getClass(), "connected MCP broker at " + broker);
+                } else {
+                    Logger.error(this.getClass(), "failed to connect MCP broker at " + broker);
                 }
             }
             private IOException handleError(final JSONObject response) {
                 if (response.has(ObjectAPIHandler.COMMENT_KEY)) {
-                    return new IOException("cannot connect to MCP: " + response.getString(ObjectAPIHandler.COMMENT_KEY));
+                    return new ResponseException("cannot connect to MCP: " + response.getString(ObjectAPIHandler.COMMENT_KEY));
                 }
-                return new IOException("bad response from MCP: no success and no comment key");
+                return new ResponseException("bad response from MCP: no success and no comment key");
             }
 
             @Override
@@ -207,4 +391,15 @@ public class MCPQueueFactory implements QueueFactory {
         // this is stateless, do nothing
     }
 
+    /**
+     * an error which was reported by the remote MCP. The MCP itself is reachable in that case,
+     * i.e. the remote queue is empty or the remote broker failed.
+     */
+    public static class ResponseException extends IOException {
+        private static final long serialVersionUID = 7326502853374296413L;
+        public ResponseException(final String message) {
+            super(message);
+        }
+    }
+
 }
@@ -21,13 +21,20 @@ package net.yacy.grid.io.messages;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.yacy.grid.io.db.CommitPolicy;
 import net.yacy.grid.io.db.MapDBSortedMap;
 import net.yacy.grid.io.db.MapStack;
+import net.yacy.grid.io.db.NavigableCloseableMap;
 import net.yacy.grid.io.db.Stack;
 import net.yacy.grid.tools.Logger;
 
@@ -36,17 +43,42 @@ import net.yacy.grid.tools.Logger;
  */
 public class MapDBStackQueueFactory implements QueueFactory {
 
+    public final static long DEFAULT_LEASE_TIME = 3600000; // one hour
+
     private final File location;
     private final Map<String, StackQueue> queues;
+    private final CommitPolicy commitPolicy;
+    private final long leaseTime;
+    private final ScheduledExecutorService leaseSweeper;
 
     /**
      * initialize a stack factory based on a file stack
      * @param storageLocationPath the path where the stacks shall be stored
      */
     public MapDBStackQueueFactory(final File storageLocationPath) {
+        this(storageLocationPath, CommitPolicy.PER_OPERATION, DEFAULT_LEASE_TIME);
+    }
+
+    /**
+     * initialize a stack factory based on a file stack
+     * @param storageLocationPath the path where the stacks shall be stored
+     * @param commitPolicy the commit policy of the stacks
+     * @param leaseTime the time in milliseconds that a message which is received without autoAck
+     *        waits for an acknowledge before it is put back to the queue
+     */
+    public MapDBStackQueueFactory(final File storageLocationPath, final CommitPolicy commitPolicy, final long leaseTime) {
         this.location = storageLocationPath;
         this.location.mkdirs();
         this.queues = new ConcurrentHashMap<>();
+        this.commitPolicy = commitPolicy;
+        this.leaseTime = leaseTime;
+        this.leaseSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "MapDBStackQueueFactory.leaseSweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        final long sweep = Math.max(100, Math.min(1000, leaseTime / 2));
+        this.leaseSweeper.scheduleWithFixedDelay(() -> this.queues.values().forEach(queue -> queue.expire()), sweep, sweep, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -84,7 +116,9 @@ public class MapDBStackQueueFactory implements QueueFactory {
         synchronized (this) {
             queue = this.queues.get(queueName);
             if (queue != null) return queue;
-            queue = new StackQueue(new MapStack<byte[]>(new MapDBSortedMap(new File(this.location, queueName))));
+            queue = new StackQueue(queueName,
+                    new MapStack<byte[]>(new MapDBSortedMap(new File(this.location, queueName), this.commitPolicy)),
+                    new MapDBSortedMap(new File(this.location, queueName + ".inflight"), this.commitPolicy));
             this.queues.put(queueName, queue);
             return queue;
         }
@@ -95,17 +129,40 @@ public class MapDBStackQueueFactory implements QueueFactory {
      */
     @Override
     public void close() {
+        this.leaseSweeper.shutdown();
         this.queues.values().forEach(queue -> queue.close());
     }
 
+    /**
+     * A queue on a stack. Messages which are received without autoAck are leased: they are moved
+     * to an in-flight table with a new delivery tag and stay there until they are acknowledged.
+     * A reject, the expiry of the lease or a recover puts them back to the queue. After a restart
+     * all messages which were in flight are in the queue again.
+     */
     public class StackQueue extends AbstractQueue implements Queue {
 
+        private final String name;
         private final Stack<byte[]> stack;
+        private final NavigableCloseableMap<Long, byte[]> inflight;
+        private final Map<Long, Long> deadlines; // delivery tag -> time when the lease expires
         private final Semaphore semaphore;
+        private final AtomicLong deliveryTag;
 
-        public StackQueue(final Stack<byte[]> backedStack) throws IOException {
+        public StackQueue(final String name, final Stack<byte[]> backedStack, final NavigableCloseableMap<Long, byte[]> inflight) throws IOException {
+            this.name = name;
             this.stack = backedStack;
+            this.inflight = inflight;
+            this.deadlines = new ConcurrentHashMap<>();
+            // messages which were in flight at the last shutdown or crash must be delivered again
+            if (!this.inflight.isEmpty()) {
+                final List<byte[]> messages = new ArrayList<>(this.inflight.values());
+                this.stack.push(messages);
+                this.inflight.clear();
+                Logger.info(this.getClass(), "StackQueue " + name + ": re-queued " + messages.size() + " messages which were in flight");
+            }
             this.semaphore = new Semaphore(this.stack.size(), true);
+            // delivery tags must not repeat after a restart because remote clients may still hold old tags
+            this.deliveryTag = new AtomicLong(System.currentTimeMillis() * 1000);
         }
 
         @Override
@@ -120,6 +177,45 @@ public class MapDBStackQueueFactory implements QueueFactory {
             return this;
         }
 
+        @Override
+        public Queue send(final List<byte[]> messages) throws IOException {
+            this.stack.push(messages);
+            this.semaphore.release(messages.size());
+            return this;
+        }
+
+        /**
+         * take the next message from the stack. The caller must own a permit of the semaphore.
+         * @param autoAck if false, the message is leased
+         * @return the message with a delivery tag, which is 0 if autoAck is true
+         */
+        private MessageContainer take(final boolean autoAck) {
+            // both paths take the lock: an autoAck pot() between bot() and pot() of a lease would deliver
+            // the leased message twice and remove the next message without delivering it
+            synchronized (this.inflight) {
+                if (autoAck) return new MessageContainer(MapDBStackQueueFactory.this, this.stack.pot(), 0);
+                // write the lease before the message is removed from the stack; a crash in between delivers it twice but never loses it
+                final byte[] message = this.stack.bot();
+                final long tag = this.deliveryTag.incrementAndGet();
+                this.inflight.put(tag, message);
+                this.deadlines.put(tag, System.currentTimeMillis() + MapDBStackQueueFactory.this.leaseTime);
+                this.stack.pot();
+                return new MessageContainer(MapDBStackQueueFactory.this, message, tag);
+            }
+        }
+
+        @Override
+        public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            final MessageContainer first = receive(timeout, autoAck);
+            if (first == null) return messages;
+            messages.add(first);
+            while (messages.size() < maxCount && this.semaphore.tryAcquire()) {
+                messages.add(take(autoAck));
+            }
+            return messages;
+        }
+
         @Override
         public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
             try {
@@ -128,7 +224,7 @@ public class MapDBStackQueueFactory implements QueueFactory {
                 } else {
                     this.semaphore.acquire();
                 }
-                return new MessageContainer(MapDBStackQueueFactory.this, this.stack.pot(), 0);
+                return take(autoAck);
             } catch (final InterruptedException e) {
                 Logger.debug(this.getClass(), "StackQueue: receive interrupted", e);
             }
@@ -137,17 +233,52 @@ public class MapDBStackQueueFactory implements QueueFactory {
 
         @Override
         public void acknowledge(final long deliveryTag) throws IOException {
-            // do nothing, this class does not provide a message acknowledge function
+            if (deliveryTag == 0) return; // received with autoAck
+            // same lock as requeue(): an acknowledge between its get() and remove() would let the message be delivered again
+            synchronized (this.inflight) {
+                this.deadlines.remove(deliveryTag);
+                this.inflight.remove(deliveryTag);
+            }
         }
 
         @Override
         public void reject(final long deliveryTag) throws IOException {
-            // do nothing, this class does not provide a message reject function
+            if (deliveryTag == 0) return; // received with autoAck
+            requeue(deliveryTag);
+        }
+
+        /**
+         * put a leased message back to the queue
+         * @param deliveryTag
+         * @return true if the message was in flight
+         */
+        private boolean requeue(final long deliveryTag) {
+            synchronized (this.inflight) {
+                this.deadlines.remove(deliveryTag);
+                final byte[] message = this.inflight.get(deliveryTag);
+                if (message == null) return false; // already acknowledged or re-queued
+                this.stack.push(message);
+                this.inflight.remove(deliveryTag);
+            }
+            this.semaphore.release();
+            return true;
+        }
+
+        /**
+         * re-queue all messages where the lease has expired
+         */
+        private void expire() {
+            final long now = System.currentTimeMillis();
+            int count = 0;
+            for (final Map.Entry<Long, Long> entry: this.deadlines.entrySet()) {
+                if (entry.getValue() < now && requeue(entry.getKey())) count++;
+            }
+            if (count > 0) Logger.info(this.getClass(), "StackQueue " + this.name + ": re-queued " + count + " messages with expired lease");
         }
 
         @Override
         public void recover() throws IOException {
-            // do nothing, this class does not provide a message acknowledge function
+            for (final Long tag: new ArrayList<>(this.inflight.keySet())) requeue(tag);
         }
 
         @Override
@@ -155,10 +286,18 @@ public class MapDBStackQueueFactory implements QueueFactory {
             return this.semaphore.availablePermits();
         }
 
+        @Override
+        public List<MessageContainer> peek(final int count) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            for (final byte[] message: this.stack.bot(count)) messages.add(new MessageContainer(MapDBStackQueueFactory.this, message, 0));
+            return messages;
+        }
+
         @Override
         public void close() {
             try {
                 this.stack.close();
+                this.inflight.close();
             } catch (final IOException e) {
                 Logger.debug(this.getClass(), "StackQueue: close error", e);
             }
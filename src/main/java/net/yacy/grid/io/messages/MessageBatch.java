@@ -0,0 +1,141 @@
+/**
+ *  MessageBatch
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary wire format of the batch message services of the MCP.
+ * All numbers are big-endian, payloads are raw bytes and are never converted to strings.
+ * - a list of payloads: [int count] then for each payload [int length][bytes]
+ * - a list of delivery tags: [int count] then for each tag [long deliveryTag]
+ * - a list of deliveries: [int length][service url as UTF-8][int count] then for each delivery
+ *   [long deliveryTag][int length][bytes]; a length of -1 stands for a null payload
+ */
+public class MessageBatch {
+
+    public static byte[] encodePayloads(final List<byte[]> payloads) {
+        int size = 4;
+        for (final byte[] payload: payloads) size += 4 + (payload == null ? 0 : payload.length);
+        final ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(payloads.size());
+        for (final byte[] payload: payloads) putBytes(b, payload);
+        return b.array();
+    }
+
+    public static List<byte[]> decodePayloads(final byte[] batch) throws IOException {
+        try {
+            final ByteBuffer b = ByteBuffer.wrap(batch);
+            final int count = getCount(b, 4);
+            final List<byte[]> payloads = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) payloads.add(getBytes(b));
+            return payloads;
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("truncated message batch");
+        }
+    }
+
+    public static byte[] encodeDeliveryTags(final List<Long> deliveryTags) {
+        final ByteBuffer b = ByteBuffer.allocate(4 + 8 * deliveryTags.size());
+        b.putInt(deliveryTags.size());
+        for (final Long deliveryTag: deliveryTags) b.putLong(deliveryTag.longValue());
+        return b.array();
+    }
+
+    public static List<Long> decodeDeliveryTags(final byte[] batch) throws IOException {
+        try {
+            final ByteBuffer b = ByteBuffer.wrap(batch);
+            final int count = getCount(b, 8);
+            final List<Long> deliveryTags = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) deliveryTags.add(b.getLong());
+            return deliveryTags;
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("truncated delivery tag batch");
+        }
+    }
+
+    public static byte[] encodeDeliveries(final String serviceURL, final List<MessageContainer> messages) {
+        final byte[] url = serviceURL == null ? new byte[0] : serviceURL.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + url.length + 4;
+        for (final MessageContainer message: messages) size += 12 + (message.getRawPayload() == null ? 0 : message.getRawPayload().length);
+        final ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(url.length).put(url);
+        b.putInt(messages.size());
+        for (final MessageContainer message: messages) {
+            b.putLong(message.getDeliveryTag());
+            putBytes(b, message.getRawPayload());
+        }
+        return b.array();
+    }
+
+    /**
+     * decode a list of deliveries
+     * @param factory the factory which is attached to the message containers
+     * @param batch the encoded deliveries
+     * @param serviceURL a list which receives the service url of the remote broker, if one was given
+     * @return the messages
+     * @throws IOException if the batch is malformed
+     */
+    public static List<MessageContainer> decodeDeliveries(final QueueFactory factory, final byte[] batch, final List<String> serviceURL) throws IOException {
+        try {
+            final ByteBuffer b = ByteBuffer.wrap(batch);
+            final byte[] url = getBytes(b);
+            if (url != null && url.length > 0) serviceURL.add(new String(url, StandardCharsets.UTF_8));
+            final int count = getCount(b, 12);
+            final List<MessageContainer> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final long deliveryTag = b.getLong();
+                messages.add(new MessageContainer(factory, getBytes(b), deliveryTag));
+            }
+            return messages;
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("truncated delivery batch");
+        }
+    }
+
+    private static void putBytes(final ByteBuffer b, final byte[] bytes) {
+        if (bytes == null) {
+            b.putInt(-1);
+        } else {
+            b.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(final ByteBuffer b) throws IOException {
+        final int length = b.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > b.remaining()) throw new IOException("bad length " + length + " in message batch");
+        final byte[] bytes = new byte[length];
+        b.get(bytes);
+        return bytes;
+    }
+
+    private static int getCount(final ByteBuffer b, final int minEntrySize) throws IOException {
+        final int count = b.getInt();
+        // reject counts which cannot be satisfied by the remaining bytes before we allocate anything
+        if (count < 0 || (long) count * minEntrySize > b.remaining()) throw new IOException("bad count " + count + " in message batch");
+        return count;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ *  MessageCodec
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The MessageCodec compresses message payloads before they are sent to a queue.
+ * An encoded payload starts with a header of eight bytes:
+ * - the magic bytes 0x00 'Y' 'G'
+ * - one byte for the codec (1 = deflate)
+ * - the length of the decoded payload as int
+ * Plain payloads are JSON text and never start with a zero byte, therefore encoded and plain messages
+ * can be mixed in the same queue: decode() returns plain payloads unchanged.
+ * Payloads which are too small or do not get smaller are not encoded.
+ */
+public class MessageCodec {
+
+    public final static MessageCodec NONE = new MessageCodec(0, Deflater.DEFAULT_COMPRESSION);
+
+    private final static byte[] MAGIC = new byte[] {0x00, 'Y', 'G'};
+    private final static int HEADER_LENGTH = 8;
+    private final static byte CODEC_DEFLATE = 1;
+    private final static int MIN_LENGTH = 256;
+    private final static int MAX_RATIO = 1032; // the highest compression ratio which deflate can reach
+    private final static int MAX_LENGTH = 1 << 28; // 256 MB, more than a broker accepts as one message
+
+    private final static ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    private final byte codec;
+    private final int level;
+    private final ThreadLocal<Deflater> deflater;
+
+    private MessageCodec(final int codec, final int level) {
+        this.codec = (byte) codec;
+        this.level = level;
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(this.level));
+    }
+
+    /**
+     * parse a codec from the configuration
+     * @param name one of "none" or "deflate"
+     * @param level the compression level 1..9 for deflate, -1 for the default level
+     * @return the codec
+     */
+    public static MessageCodec parse(final String name, final int level) {
+        if ("deflate".equals(name)) return new MessageCodec(CODEC_DEFLATE, level < 1 || level > 9 ? Deflater.DEFAULT_COMPRESSION : level);
+        return NONE;
+    }
+
+    public boolean isNone() {
+        return this.codec == 0;
+    }
+
+    /**
+     * encode a payload. Payloads which are already encoded are returned unchanged.
+     * @param payload
+     * @return the encoded payload or the payload itself if encoding would not make it smaller
+     */
+    public byte[] encode(final byte[] payload) {
+        if (this.codec == 0 || payload == null || payload.length < MIN_LENGTH || isEncoded(payload)) return payload;
+        final Deflater d = this.deflater.get();
+        d.reset();
+        d.setInput(payload);
+        d.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4 + HEADER_LENGTH);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(this.codec);
+        out.write(ByteBuffer.allocate(4).putInt(payload.length).array(), 0, 4);
+        final byte[] buffer = new byte[4096];
+        while (!d.finished()) {
+            final int n = d.deflate(buffer);
+            out.write(buffer, 0, n);
+            if (out.size() >= payload.length) return payload; // no gain
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * check if a payload has the header of an encoded message
+     * @param payload
+     * @return true if the payload must be decoded
+     */
+    public static boolean isEncoded(final byte[] payload) {
+        return payload != null && payload.length >= HEADER_LENGTH &&
+                payload[0] == MAGIC[0] && payload[1] == MAGIC[1] && payload[2] == MAGIC[2];
+    }
+
+    /**
+     * decode a payload. Plain payloads are returned unchanged.
+     * @param payload
+     * @return the decoded payload
+     * @throws IOException if the payload is encoded with an unknown codec or is corrupted; also if the header
+     *         claims a decoded length that the compressed data cannot have, before any memory is allocated for it
+     */
+    public static byte[] decode(final byte[] payload) throws IOException {
+        if (!isEncoded(payload)) return payload;
+        if (payload[3] != CODEC_DEFLATE) throw new IOException("unknown message codec " + payload[3]);
+        final int length = ByteBuffer.wrap(payload, 4, 4).getInt();
+        if (length < 0 || length > MAX_LENGTH || length > (long) (payload.length - HEADER_LENGTH) * MAX_RATIO) throw new IOException("bad message length " + length);
+        final Inflater i = inflater.get();
+        i.reset();
+        i.setInput(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH);
+        final byte[] decoded = new byte[length];
+        try {
+            int n = 0;
+            while (n < length) {
+                final int r = i.inflate(decoded, n, length - n);
+                if (r == 0 && (i.finished() || i.needsInput() || i.needsDictionary())) break;
+                n += r;
+            }
+            if (n != length) throw new IOException("truncated message: " + n + " of " + length + " bytes");
+        } catch (final DataFormatException e) {
+            throw new IOException("corrupted message: " + e.getMessage());
+        }
+        return decoded;
+    }
+
+    @Override
+    public String toString() {
+        return this.codec == 0 ? "none" : "deflate(" + this.level + ")";
+    }
+}
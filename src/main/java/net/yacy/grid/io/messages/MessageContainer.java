@@ -19,23 +19,48 @@
 
 package net.yacy.grid.io.messages;
 
+import java.io.IOException;
+
+import net.yacy.grid.tools.Logger;
+
 public class MessageContainer {
 
     private final QueueFactory factory;
     private final byte[] payload;
     private final long deliveryTag;
+    private byte[] decoded;
 
     public MessageContainer(final QueueFactory factory, final byte[] payload, final long deliveryTag) {
         this.factory = factory;
         this.payload = payload;
         this.deliveryTag = deliveryTag;
+        this.decoded = null;
     }
 
     public QueueFactory getFactory() {
         return this.factory;
     }
 
+    /**
+     * get the payload of the message. A payload which was encoded with a MessageCodec is decoded.
+     * @return the decoded payload
+     */
     public byte[] getPayload() {
+        if (this.decoded != null) return this.decoded;
+        try {
+            this.decoded = MessageCodec.decode(this.payload);
+        } catch (final IOException e) {
+            Logger.warn(this.getClass(), "MessageContainer: cannot decode message with delivery tag " + this.deliveryTag + ": " + e.getMessage());
+            this.decoded = this.payload;
+        }
+        return this.decoded;
+    }
+
+    /**
+     * get the payload as it is stored in the queue; this may be encoded with a MessageCodec
+     * @return the raw payload
+     */
+    public byte[] getRawPayload() {
         return this.payload;
     }
 
@@ -21,10 +21,13 @@ package net.yacy.grid.io.messages;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.yacy.grid.Services;
+import net.yacy.grid.YaCyServices;
+import net.yacy.grid.io.db.CommitPolicy;
 
 /**
  * Peer Broker implementation of the broker function.
@@ -34,10 +37,32 @@ public class PeerBroker extends AbstractBroker implements Broker {
 
     private final File basePath;
     private Map<Services, QueueFactory> clientConnector;
+    private boolean appendLog;
+    private CommitPolicy commitPolicy;
+    private long leaseTime;
+    private final Map<String, Queue> prioritizedQueues;
 
     public PeerBroker(final File basePath) {
         this.basePath = basePath;
         this.clientConnector = new ConcurrentHashMap<>();
+        this.appendLog = false;
+        this.commitPolicy = CommitPolicy.PER_OPERATION;
+        this.leaseTime = MapDBStackQueueFactory.DEFAULT_LEASE_TIME;
+        this.prioritizedQueues = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * select the storage of the local queues. This must be called before the first queue is used.
+     * @param appendLog if true, queues are stored in append-only log files (see AppendLogQueueFactory), otherwise in mapdb
+     * @param commitPolicy the policy when changes of the queues are written to disk
+     * @param leaseTime the time in milliseconds that a message received without autoAck waits for an acknowledge (mapdb only)
+     * @return this
+     */
+    public PeerBroker setLocalBackend(final boolean appendLog, final CommitPolicy commitPolicy, final long leaseTime) {
+        this.appendLog = appendLog;
+        this.commitPolicy = commitPolicy;
+        this.leaseTime = leaseTime;
+        return this;
     }
 
     /**
@@ -57,67 +82,135 @@ public class PeerBroker extends AbstractBroker implements Broker {
             // create a mapdb for this queue. The db is now the queue
             final File clientPath = new File(this.basePath, service.name());
             clientPath.mkdirs();
-            c = new MapDBStackQueueFactory(clientPath);
+            c = this.appendLog ?
+                    new AppendLogQueueFactory(clientPath, AppendLogQueueFactory.DEFAULT_SEGMENT_SIZE, this.commitPolicy) :
+                    new MapDBStackQueueFactory(clientPath, this.commitPolicy, this.leaseTime);
             this.clientConnector.put(service, c);
         }
         return c;
     }
 
+    /**
+     * get a local queue. With priority levels, the queue is a PrioritizedQueue on top of the level queues.
+     * @param service
+     * @param queueName
+     * @return the queue
+     * @throws IOException
+     */
+    private Queue queue(final Services service, final GridQueue queueName) throws IOException {
+        final QueueFactory factory = getConnector(service);
+        final int levels = getPriorityLevels();
+        if (levels == 0) return factory.getQueue(queueName.name());
+        final String key = service.name() + "_" + queueName.name();
+        Queue queue = this.prioritizedQueues.get(key);
+        if (queue != null) return queue;
+        synchronized (this.prioritizedQueues) {
+            queue = this.prioritizedQueues.get(key);
+            if (queue != null) return queue;
+            queue = new PrioritizedQueue(factory, queueName.name(), levels);
+            this.prioritizedQueues.put(key, queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public QueueFactory send(final Services service, final GridQueue queueName, final byte[] message, final int priority) throws IOException {
+        final QueueFactory factory = getConnector(service);
+        queue(service, queueName).send(message, priority);
+        getDepthMonitor().enqueued(service, queueName, 1);
+        return factory;
+    }
+
     @Override
     public QueueFactory send(final Services service, final GridQueue queueName, final byte[] message) throws IOException {
         final QueueFactory factory = getConnector(service);
-        factory.getQueue(queueName.name()).send(message);
+        queue(service, queueName).send(message);
+        getDepthMonitor().enqueued(service, queueName, 1);
+        return factory;
+    }
+
+    @Override
+    public QueueFactory send(final Services service, final GridQueue queueName, final List<byte[]> messages) throws IOException {
+        final QueueFactory factory = getConnector(service);
+        queue(service, queueName).send(messages);
+        getDepthMonitor().enqueued(service, queueName, messages.size());
         return factory;
     }
 
     @Override
     public MessageContainer receive(final Services service, final GridQueue queueName, final long timeout, final boolean autoAck) throws IOException {
         final QueueFactory factory = getConnector(service);
-        final Queue mq = factory.getQueue(queueName.name());
-        return mq.receive(timeout, autoAck);
+        final Queue mq = queue(service, queueName);
+        final MessageContainer mc = mq.receive(timeout, autoAck);
+        if (mc != null) getDepthMonitor().dequeued(service, queueName, 1);
+        return mc;
+    }
+
+    @Override
+    public List<MessageContainer> receive(final Services service, final GridQueue queueName, final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+        final QueueFactory factory = getConnector(service);
+        final Queue mq = queue(service, queueName);
+        final List<MessageContainer> mcs = mq.receive(maxCount, timeout, autoAck);
+        getDepthMonitor().dequeued(service, queueName, mcs.size());
+        return mcs;
     }
 
     @Override
     public QueueFactory acknowledge(final Services service, final GridQueue queueName, final long deliveryTag) throws IOException {
         final QueueFactory factory = getConnector(service);
-        factory.getQueue(queueName.name()).acknowledge(deliveryTag);
+        queue(service, queueName).acknowledge(deliveryTag);
+        return factory;
+    }
+
+    @Override
+    public QueueFactory acknowledge(final Services service, final GridQueue queueName, final List<Long> deliveryTags) throws IOException {
+        final QueueFactory factory = getConnector(service);
+        queue(service, queueName).acknowledge(deliveryTags);
         return factory;
     }
 
     @Override
     public QueueFactory reject(final Services service, final GridQueue queueName, final long deliveryTag) throws IOException {
         final QueueFactory factory = getConnector(service);
-        factory.getQueue(queueName.name()).reject(deliveryTag);
+        queue(service, queueName).reject(deliveryTag);
         return factory;
     }
 
     @Override
     public QueueFactory recover(final Services service, final GridQueue queueName) throws IOException {
         final QueueFactory factory = getConnector(service);
-        factory.getQueue(queueName.name()).recover();
+        queue(service, queueName).recover();
         return factory;
     }
 
     @Override
     public AvailableContainer available(final Services service, final GridQueue queueName) throws IOException {
         final QueueFactory factory = getConnector(service);
-        return new AvailableContainer(factory, queueName.name, getConnector(service).getQueue(queueName.name()).available());
+        return new AvailableContainer(factory, queueName.name, queue(service, queueName).available());
+    }
+
+    @Override
+    public List<MessageContainer> peek(final YaCyServices service, final GridQueue queueName, final int count) throws IOException {
+        return queue(service, queueName).peek(count);
     }
 
     @Override
     public QueueFactory clear(final Services service, final GridQueue queueName) throws IOException {
         final QueueFactory factory = getConnector(service);
-        factory.getQueue(queueName.name()).clear();
+        queue(service, queueName).clear();
         return factory;
     }
 
     @Override
     public void close() {
+        flushDelayed();
+        getDepthMonitor().stop();
         this.clientConnector.values().forEach(queue -> {
             try {queue.close();} catch (final Throwable e) {}
         });
         this.clientConnector.clear();
         this.clientConnector = null;
+        this.prioritizedQueues.clear();
     }
 
 }
@@ -0,0 +1,166 @@
+/**
+ *  PrioritizedQueue
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A queue with priority-ordered dequeue for queue backends which deliver messages only in the order of arrival.
+ * Each priority level is stored in its own queue of the factory: level 0 is the queue with the given name, so
+ * messages which were sent without priority are in the lowest level; level i > 0 is the queue name + "_p" + i.
+ * A receive always takes the message from the highest level which is not empty.
+ * Delivery tags carry the level in the upper bits to route acknowledges to the right level queue.
+ */
+public class PrioritizedQueue extends AbstractQueue implements Queue {
+
+    public static final int MAX_LEVELS = 255;
+    private static final int LEVEL_SHIFT = 56;
+    private static final long TAG_MASK = (1L << LEVEL_SHIFT) - 1;
+    private static final long POLL_INTERVAL = 100; // time in milliseconds until higher levels are checked again during a blocking receive
+
+    private final Queue[] levels;
+
+    /**
+     * create a prioritized queue
+     * @param factory the factory of the level queues
+     * @param queueName the name of the queue
+     * @param levels the number of priority levels, 1..MAX_LEVELS
+     * @throws IOException
+     */
+    public PrioritizedQueue(final QueueFactory factory, final String queueName, final int levels) throws IOException {
+        this.levels = new Queue[Math.max(1, Math.min(MAX_LEVELS, levels))];
+        for (int i = 0; i < this.levels.length; i++) {
+            this.levels[i] = factory.getQueue(i == 0 ? queueName : queueName + "_p" + i);
+        }
+    }
+
+    private int level(final int priority) {
+        return Math.max(0, Math.min(this.levels.length - 1, priority));
+    }
+
+    private static MessageContainer tag(final int level, final MessageContainer mc) {
+        if (mc == null || level == 0 || mc.getDeliveryTag() == 0) return mc;
+        return new MessageContainer(mc.getFactory(), mc.getRawPayload(), (((long) level) << LEVEL_SHIFT) | mc.getDeliveryTag());
+    }
+
+    private Queue queue(final long deliveryTag) throws IOException {
+        final int level = (int) (deliveryTag >>> LEVEL_SHIFT);
+        if (level >= this.levels.length) throw new IOException("unknown delivery tag " + deliveryTag);
+        return this.levels[level];
+    }
+
+    @Override
+    public void checkConnection() throws IOException {
+        this.levels[0].checkConnection();
+    }
+
+    @Override
+    public Queue send(final byte[] message) throws IOException {
+        this.levels[0].send(message);
+        return this;
+    }
+
+    @Override
+    public Queue send(final byte[] message, final int priority) throws IOException {
+        this.levels[level(priority)].send(message);
+        return this;
+    }
+
+    @Override
+    public Queue send(final List<byte[]> messages) throws IOException {
+        this.levels[0].send(messages);
+        return this;
+    }
+
+    @Override
+    public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        while (true) {
+            for (int l = this.levels.length - 1; l > 0; l--) {
+                if (this.levels[l].available() <= 0) continue;
+                final MessageContainer mc = this.levels[l].receive(1, autoAck);
+                if (mc != null) return tag(l, mc);
+            }
+            // wait on the lowest level, but check the higher levels again after a short time
+            final long remaining = deadline - System.currentTimeMillis();
+            final MessageContainer mc = this.levels[0].receive(Math.max(1, Math.min(POLL_INTERVAL, remaining)), autoAck);
+            if (mc != null) return mc;
+            if (remaining <= POLL_INTERVAL) return null;
+        }
+    }
+
+    @Override
+    public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+        final List<MessageContainer> messages = new ArrayList<>();
+        final MessageContainer first = receive(timeout, autoAck);
+        if (first == null) return messages;
+        messages.add(first);
+        for (int l = this.levels.length - 1; l >= 0 && messages.size() < maxCount; l--) {
+            if (this.levels[l].available() <= 0) continue;
+            for (final MessageContainer mc: this.levels[l].receive(maxCount - messages.size(), 1, autoAck)) messages.add(tag(l, mc));
+        }
+        return messages;
+    }
+
+    @Override
+    public void acknowledge(final long deliveryTag) throws IOException {
+        if (deliveryTag == 0) return; // received with autoAck
+        queue(deliveryTag).acknowledge(deliveryTag & TAG_MASK);
+    }
+
+    @Override
+    public void reject(final long deliveryTag) throws IOException {
+        if (deliveryTag == 0) return; // received with autoAck
+        queue(deliveryTag).reject(deliveryTag & TAG_MASK);
+    }
+
+    @Override
+    public void recover() throws IOException {
+        for (final Queue level: this.levels) level.recover();
+    }
+
+    @Override
+    public long available() throws IOException {
+        long available = 0;
+        for (final Queue level: this.levels) available += level.available();
+        return available;
+    }
+
+    @Override
+    public List<MessageContainer> peek(final int count) throws IOException {
+        final List<MessageContainer> messages = new ArrayList<>();
+        for (int l = this.levels.length - 1; l >= 0 && messages.size() < count; l--) {
+            messages.addAll(this.levels[l].peek(count - messages.size()));
+        }
+        return messages;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (final Queue level: this.levels) level.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Queue level: this.levels) level.close();
+    }
+}
@@ -20,6 +20,8 @@
 package net.yacy.grid.io.messages;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Interface for a Message Queue
@@ -40,6 +42,35 @@ public interface Queue {
      */
     public Queue send(byte[] message) throws IOException;
 
+    /**
+     * send a message with a priority to the queue. Messages with a higher priority are received
+     * before messages with a lower priority. Queues which do not support priorities treat all messages alike.
+     * @param message
+     * @param priority the priority from 0 (lowest, the same as send(message)) to the number of priority levels - 1;
+     * higher values are treated as the highest priority
+     * @return the Queue
+     * @throws IOException
+     */
+    public Queue send(byte[] message, int priority) throws IOException;
+
+    /**
+     * send a message to the queue without waiting for the confirmation of the delivery.
+     * The method blocks only if the queue cannot take any more unconfirmed messages.
+     * @param message
+     * @return a future which is done when the message was confirmed. If the target rejects the
+     * message, the future fails with an IOException carrying GridBroker.TARGET_LIMIT_MESSAGE
+     * @throws IOException
+     */
+    public Future<Queue> sendAsync(byte[] message) throws IOException;
+
+    /**
+     * send a batch of messages to the queue. The method returns when all messages are stored.
+     * @param messages
+     * @return the Queue
+     * @throws IOException
+     */
+    public Queue send(List<byte[]> messages) throws IOException;
+
     /**
      * receive a message from the queue. The method blocks until a message is available
      * @param timeout for blocking in milliseconds. if negative the method blocks forever
@@ -50,6 +81,18 @@ public interface Queue {
      */
     public MessageContainer receive(long timeout, boolean autoAck) throws IOException;
 
+    /**
+     * receive a batch of messages from the queue. The method blocks until at least one message is available
+     * and then takes as many messages as are available without waiting, but not more than maxCount.
+     * @param maxCount the maximum number of messages to receive
+     * @param timeout for blocking in milliseconds. if negative the method blocks forever
+     * or until a message is submitted.
+     * @param autoAck if true the received messages are autoAck'ed. If false, the messages must be acknowledged to free up resources
+     * @return the messages, an empty list if a timeout occurred
+     * @throws IOException
+     */
+    public List<MessageContainer> receive(int maxCount, long timeout, boolean autoAck) throws IOException;
+
     /**
      * acknowledge a message. This MUST be used to remove a message from the broker if
      * receive() was used with autoAck=false.
@@ -58,6 +101,13 @@ public interface Queue {
      */
     public void acknowledge(long deliveryTag) throws IOException;
 
+    /**
+     * acknowledge a batch of messages
+     * @param deliveryTags the tags as reported by receive()
+     * @throws IOException
+     */
+    public void acknowledge(List<Long> deliveryTags) throws IOException;
+
     /**
      * reject a message. This MUST be used to return a message to the broker if
      * receive() was used with autoAck=false.
@@ -82,6 +132,15 @@ public interface Queue {
      */
     public long available() throws IOException;
 
+    /**
+     * read the next messages of the queue without removing them. The messages stay in the queue
+     * at their position and are still delivered to the next receive() calls; they cannot be acknowledged.
+     * @param count the maximum number of messages
+     * @return the next messages, less than count if the queue holds less messages
+     * @throws IOException
+     */
+    public List<MessageContainer> peek(int count) throws IOException;
+
     /**
      * clear a queue
      * @throws IOException
@@ -0,0 +1,236 @@
+/**
+ *  QueueDepthMonitor
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.io.messages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.yacy.grid.Services;
+import net.yacy.grid.tools.Logger;
+
+/**
+ * The QueueDepthMonitor samples the size of all known queues of a broker in a background thread
+ * and publishes the result as an immutable snapshot. Readers never wait for a broker round-trip;
+ * only the very first access to a queue which was never sampled does a synchronous request.
+ * The monitor also computes the enqueue and dequeue rate of each queue from the number of messages
+ * which this process sent to and received from the queue.
+ * If the monitor is not started, the snapshot is refreshed on access after the entry is older than 10 seconds.
+ */
+public class QueueDepthMonitor {
+
+    private static final long UNMONITORED_MAX_AGE = 10000;
+
+    private final Broker broker;
+    private final Map<String, Watch> watched;
+    private volatile Map<String, Depth> snapshot;
+    private ScheduledExecutorService sampler;
+
+    /**
+     * the depth of a queue at the time of a sample
+     */
+    public static class Depth {
+        private final AvailableContainer available;
+        private final double enqueueRate, dequeueRate;
+
+        private Depth(final AvailableContainer available, final double enqueueRate, final double dequeueRate) {
+            this.available = available;
+            this.enqueueRate = enqueueRate;
+            this.dequeueRate = dequeueRate;
+        }
+
+        public AvailableContainer getAvailableContainer() {
+            return this.available;
+        }
+
+        public long getAvailable() {
+            return this.available.getAvailable();
+        }
+
+        public long getTime() {
+            return this.available.getTime();
+        }
+
+        /**
+         * @return the number of messages per second which this process sent to the queue
+         */
+        public double getEnqueueRate() {
+            return this.enqueueRate;
+        }
+
+        /**
+         * @return the number of messages per second which this process received from the queue
+         */
+        public double getDequeueRate() {
+            return this.dequeueRate;
+        }
+    }
+
+    private static class Watch {
+        private final Services service;
+        private final GridQueue queue;
+        private final AtomicLong enqueued, dequeued;
+        private long lastEnqueued, lastDequeued, lastTime;
+
+        private Watch(final Services service, final GridQueue queue) {
+            this.service = service;
+            this.queue = queue;
+            this.enqueued = new AtomicLong(0);
+            this.dequeued = new AtomicLong(0);
+            this.lastEnqueued = 0;
+            this.lastDequeued = 0;
+            this.lastTime = System.currentTimeMillis();
+        }
+    }
+
+    public QueueDepthMonitor(final Broker broker) {
+        this.broker = broker;
+        this.watched = new ConcurrentHashMap<>();
+        this.snapshot = Collections.emptyMap();
+        this.sampler = null;
+    }
+
+    /**
+     * start sampling all known queues
+     * @param interval the time in milliseconds between two samples; 0 stops the monitor
+     * @return this
+     */
+    public synchronized QueueDepthMonitor start(final long interval) {
+        stop();
+        if (interval <= 0) return this;
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "QueueDepthMonitor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.sampler.scheduleWithFixedDelay(this::sample, 0, interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (this.sampler != null) this.sampler.shutdownNow();
+        this.sampler = null;
+    }
+
+    public boolean isRunning() {
+        return this.sampler != null;
+    }
+
+    private static String key(final Services service, final GridQueue queue) {
+        return service.name() + "_" + queue.name();
+    }
+
+    /**
+     * register a queue for sampling. This does not block, the queue is sampled with the next round.
+     * @param service
+     * @param queue
+     */
+    public void watch(final Services service, final GridQueue queue) {
+        watchFor(service, queue);
+    }
+
+    private Watch watchFor(final Services service, final GridQueue queue) {
+        return this.watched.computeIfAbsent(key(service, queue), k -> new Watch(service, queue));
+    }
+
+    /**
+     * count messages which this process sent to a queue
+     */
+    public void enqueued(final Services service, final GridQueue queue, final int count) {
+        watchFor(service, queue).enqueued.addAndGet(count);
+    }
+
+    /**
+     * count messages which this process received from a queue
+     */
+    public void dequeued(final Services service, final GridQueue queue, final int count) {
+        watchFor(service, queue).dequeued.addAndGet(count);
+    }
+
+    /**
+     * get the latest sample of a queue without blocking. The queue is registered for sampling if it is not known yet.
+     * @param service
+     * @param queue
+     * @return the latest depth or null if the queue was never sampled
+     */
+    public Depth get(final Services service, final GridQueue queue) {
+        watchFor(service, queue);
+        return this.snapshot.get(key(service, queue));
+    }
+
+    /**
+     * get the size of a queue from the latest sample. Only if the queue was never sampled
+     * (or the monitor is not running and the sample is outdated), the broker is asked directly.
+     * @param service
+     * @param queue
+     * @return the available container of the latest sample
+     * @throws IOException
+     */
+    public AvailableContainer available(final Services service, final GridQueue queue) throws IOException {
+        final Depth depth = get(service, queue);
+        if (depth != null && (isRunning() || System.currentTimeMillis() - depth.getTime() <= UNMONITORED_MAX_AGE)) return depth.available;
+        final AvailableContainer ac = this.broker.available(service, queue);
+        final String key = key(service, queue);
+        publish(Collections.singletonMap(key, new Depth(ac, depth == null ? 0.0d : depth.enqueueRate, depth == null ? 0.0d : depth.dequeueRate)));
+        return ac;
+    }
+
+    /**
+     * @return an immutable map from service_queue names to the latest depth of that queue
+     */
+    public Map<String, Depth> snapshot() {
+        return this.snapshot;
+    }
+
+    private void sample() {
+        final Map<String, Depth> sampled = new HashMap<>();
+        for (final Map.Entry<String, Watch> entry: this.watched.entrySet()) {
+            final Watch watch = entry.getValue();
+            try {
+                final AvailableContainer ac = this.broker.available(watch.service, watch.queue);
+                final long enqueued = watch.enqueued.get();
+                final long dequeued = watch.dequeued.get();
+                final long time = ac.getTime();
+                final double seconds = Math.max(1, time - watch.lastTime) / 1000.0d;
+                sampled.put(entry.getKey(), new Depth(ac, (enqueued - watch.lastEnqueued) / seconds, (dequeued - watch.lastDequeued) / seconds));
+                watch.lastEnqueued = enqueued;
+                watch.lastDequeued = dequeued;
+                watch.lastTime = time;
+            } catch (final Throwable e) {
+                // keep the previous sample of that queue
+                Logger.debug(this.getClass(), "QueueDepthMonitor: cannot sample queue " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        if (!sampled.isEmpty()) publish(sampled);
+    }
+
+    private synchronized void publish(final Map<String, Depth> depths) {
+        final Map<String, Depth> next = new HashMap<>(this.snapshot);
+        next.putAll(depths);
+        this.snapshot = Collections.unmodifiableMap(next);
+    }
+
+}
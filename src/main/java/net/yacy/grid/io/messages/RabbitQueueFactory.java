@@ -20,27 +20,38 @@
 package net.yacy.grid.io.messages;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConfirmCallback;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.GetResponse;
 import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.ShutdownSignalException;
 
 import net.yacy.grid.tools.Logger;
 
@@ -51,18 +62,29 @@ import net.yacy.grid.tools.Logger;
  */
 public class RabbitQueueFactory implements QueueFactory {
 
-    private static int DEFAULT_PORT = 5672;
+    public static final int DEFAULT_PORT = 5672;
     private static String DEFAULT_EXCHANGE = "";
     public static String PROTOCOL_PREFIX = "amqp://";
+    public static int DEFAULT_CONFIRM_WINDOW = 256;
+    private static final int SLOT_SHIFT = 56; // the upper bits of a delivery tag carry the channel slot number
+    private static final int GENERATION_SHIFT = 48; // the bits below the slot carry the generation of the channel
+    private static final int GENERATION_MASK = 0xff;
+    private static final long TAG_MASK = (1L << GENERATION_SHIFT) - 1;
 
 
     private final String server, username, password;
     private final int port;
     private final ConnectionFactory connectionFactory;
-    private Connection connection;
+    private Connection[] connections;
     private Map<String, Queue> queues;
     private final AtomicBoolean lazy;
     private final AtomicInteger queueLimit;
+    private final AtomicInteger confirmWindow;
+    private final AtomicInteger prefetch;
+    private final AtomicInteger ackCoalesceCount;
+    private final AtomicInteger channelsPerQueue;
+    private final AtomicInteger maxPriority;
+    private ScheduledExecutorService ackFlusher;
 
     /**
      * create a queue factory for a rabbitMQ message server
@@ -81,7 +103,13 @@ public class RabbitQueueFactory implements QueueFactory {
         this.password = password;
         this.lazy = new AtomicBoolean(lazy);
         this.queueLimit = new AtomicInteger(queueLimit);
-        this.connection = null;
+        this.confirmWindow = new AtomicInteger(DEFAULT_CONFIRM_WINDOW);
+        this.prefetch = new AtomicInteger(0);
+        this.ackCoalesceCount = new AtomicInteger(0);
+        this.channelsPerQueue = new AtomicInteger(1);
+        this.maxPriority = new AtomicInteger(0);
+        this.ackFlusher = null;
+        this.connections = new Connection[1];
         this.queues = new ConcurrentHashMap<>();
         this.connectionFactory = new ConnectionFactory();
         this.connectionFactory.setAutomaticRecoveryEnabled(false); // false -> SIC! - when leaving this 'true', old connections will be reused even if a old connection is closed and replace with a new one, resulting is "already closed exception".
@@ -92,21 +120,122 @@ public class RabbitQueueFactory implements QueueFactory {
         this.connectionFactory.setMaxInboundMessageBodySize(134217728); // 128 MiB
     }
 
-    private Connection getConnection() throws IOException {
-        if (this.connection != null && this.connection.isOpen()) return this.connection;
+    /**
+     * set the maximum number of published but not yet confirmed messages for each queue.
+     * This must be called before the first queue is opened.
+     * @param confirmWindow the number of messages in flight, must be at least 1
+     * @return this
+     */
+    public RabbitQueueFactory setConfirmWindow(final int confirmWindow) {
+        this.confirmWindow.set(Math.max(1, confirmWindow));
+        return this;
+    }
+
+    /**
+     * set the number of messages that the broker pushes to a queue consumer in advance.
+     * If the prefetch is 0, messages are fetched one by one with a basicGet poll; otherwise
+     * each queue subscribes a consumer which fills a local buffer of the prefetch size.
+     * This must be called before the first queue is opened.
+     * @param prefetch the consumer prefetch, 0 = poll mode
+     * @return this
+     */
+    public RabbitQueueFactory setPrefetch(final int prefetch) {
+        this.prefetch.set(Math.max(0, prefetch));
+        return this;
+    }
+
+    /**
+     * set the number of connections to the broker. Each connection has its own socket and i/o thread;
+     * queues are assigned to the connections by the hash of their name.
+     * This must be called before the first queue is opened.
+     * @param connections the number of connections, must be at least 1
+     * @return this
+     */
+    public synchronized RabbitQueueFactory setConnections(final int connections) {
+        this.connections = new Connection[Math.max(1, connections)];
+        return this;
+    }
+
+    /**
+     * set the number of channels for each queue. Every thread which uses a queue is bound to one of
+     * the channels, so up to this number of threads can send and receive on the same queue concurrently.
+     * This must be called before the first queue is opened.
+     * @param channels the number of channels for each queue, must be at least 1
+     * @return this
+     */
+    public RabbitQueueFactory setChannels(final int channels) {
+        this.channelsPerQueue.set(Math.max(1, channels));
+        return this;
+    }
+
+    /**
+     * declare queues as priority queues with the x-max-priority argument. Messages which are sent with a priority
+     * are delivered before messages with a lower priority. Existing queues without priority are not changed,
+     * because the broker does not allow to change the arguments of a queue.
+     * This must be called before the first queue is opened.
+     * @param maxPriority the highest message priority, 0 = no priority queues
+     * @return this
+     */
+    public RabbitQueueFactory setMaxPriority(final int maxPriority) {
+        this.maxPriority.set(Math.max(0, Math.min(255, maxPriority)));
+        return this;
+    }
+
+    /**
+     * coalesce acknowledges: instead of sending one acknowledge for each message, acknowledges are collected
+     * and sent as one multiple-ack for all messages up to the highest tag where all previous messages are done.
+     * Rejects are not coalesced, they are always sent immediately.
+     * This must be called before the first queue is opened.
+     * @param count the number of collected acknowledges which trigger a flush; 0 switches coalescing off
+     * @param interval the maximum time in milliseconds that an acknowledge waits for a flush
+     * @return this
+     */
+    public synchronized RabbitQueueFactory setAckCoalescing(final int count, final long interval) {
+        this.ackCoalesceCount.set(Math.max(0, count));
+        if (this.ackFlusher != null) {
+            this.ackFlusher.shutdown();
+            this.ackFlusher = null;
+        }
+        if (count > 0 && interval > 0) {
+            this.ackFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "RabbitQueueFactory.ackFlusher");
+                t.setDaemon(true);
+                return t;
+            });
+            this.ackFlusher.scheduleWithFixedDelay(() -> {
+                final Map<String, Queue> q = this.queues;
+                if (q != null) q.values().forEach(queue -> ((RabbitMessageQueue) queue).flushAcknowledges());
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * open all connections to the broker which are not open
+     * @throws IOException if a connection cannot be established
+     */
+    public synchronized void checkConnection() throws IOException {
+        for (int i = 0; i < this.connections.length; i++) getConnection(i);
+    }
+
+    private synchronized Connection getConnection(final String queueName) throws IOException {
+        return getConnection(Math.floorMod(queueName.hashCode(), this.connections.length));
+    }
+
+    private Connection getConnection(final int i) throws IOException {
+        if (this.connections[i] != null && this.connections[i].isOpen()) return this.connections[i];
         try {
-            this.connection = this.connectionFactory.newConnection();
-            //Map<String, Object> map = this.connection.getServerProperties();
-            if (!this.connection.isOpen()) throw new IOException("no connection");
-            return this.connection;
+            this.connections[i] = this.connectionFactory.newConnection();
+            //Map<String, Object> map = this.connections[i].getServerProperties();
+            if (!this.connections[i].isOpen()) throw new IOException("no connection");
+            return this.connections[i];
         } catch (final TimeoutException e) {
             throw new IOException(e.getMessage());
         }
     }
 
-    private Channel getChannel() throws IOException {
-        getConnection();
-        final Channel channel = this.connection.createChannel();
+    private Channel getChannel(final String queueName) throws IOException {
+        final Channel channel = getConnection(queueName).createChannel();
         if (!channel.isOpen()) throw new IOException("no channel");
         return channel;
     }
@@ -141,88 +270,401 @@ public class RabbitQueueFactory implements QueueFactory {
         synchronized (this) {
             queue = this.queues.get(queueName);
             if (queue != null) return queue;
-            queue = new RabbitMessageQueue(queueName);
+            queue = new RabbitMessageQueue(queueName, null);
             this.queues.put(queueName, queue);
             return queue;
         }
     }
 
+    /**
+     * get a queue which moves its messages to another queue after a delay. The delay queue has a message TTL
+     * and the target queue as dead-letter routing key: expired messages are dead-lettered into the target queue.
+     * Each delay gets its own queue because messages expire only at the head of a queue.
+     * @param queueName the name of the target queue
+     * @param delay the delay in milliseconds
+     * @return the delay queue, messages must only be sent to that queue
+     * @throws IOException
+     */
+    public Queue getDelayQueue(final String queueName, final long delay) throws IOException {
+        if (this.queues == null) return null;
+        final String delayQueueName = queueName + "_delay_" + delay;
+        Queue queue = this.queues.get(delayQueueName);
+        if (queue != null) return queue;
+        synchronized (this) {
+            queue = this.queues.get(delayQueueName);
+            if (queue != null) return queue;
+            final Map<String, Object> arguments = new HashMap<>();
+            arguments.put("x-message-ttl", (int) Math.min(Integer.MAX_VALUE, delay));
+            arguments.put("x-dead-letter-exchange", DEFAULT_EXCHANGE);
+            arguments.put("x-dead-letter-routing-key", queueName);
+            queue = new RabbitMessageQueue(delayQueueName, arguments);
+            this.queues.put(delayQueueName, queue);
+            return queue;
+        }
+    }
+
+    /**
+     * A queue in rabbitMQ. Because channels must not be used concurrently, each queue has a set of channel slots
+     * and every thread is bound to one of the slots. All operations on a channel are done within the lock of its slot.
+     * Delivery tags which are reported to the caller contain the number of the slot in the upper bits, so that
+     * acknowledge and reject are always done on the channel which delivered the message. Below the slot number
+     * they contain the generation of the channel, which changes with each re-connect and recover: acknowledges
+     * and rejects of an older generation are dropped because the broker delivers these messages again.
+     */
     private class RabbitMessageQueue extends AbstractQueue implements Queue {
         private final String queueName;
-        private final SortedMap<Long, BlockingQueue<Boolean>> unconfirmedSet;
-        private Channel channel;
-        public RabbitMessageQueue(final String queueName) throws IOException {
+        private final int prefetch;
+        private final BlockingQueue<MessageContainer> deliveries;
+        private final ChannelSlot[] slots;
+        private Map<String, Object> arguments;
+
+        /**
+         * create a queue
+         * @param queueName the name of the queue
+         * @param extraArguments additional arguments for the queue declaration or null
+         * @throws IOException
+         */
+        public RabbitMessageQueue(final String queueName, final Map<String, Object> extraArguments) throws IOException {
             this.queueName = queueName;
-            this.unconfirmedSet = Collections.synchronizedSortedMap(new TreeMap<>());
-            connect();
+            this.prefetch = RabbitQueueFactory.this.prefetch.get();
+            this.slots = new ChannelSlot[Math.max(1, RabbitQueueFactory.this.channelsPerQueue.get())];
+            this.deliveries = this.prefetch > 0 ? new ArrayBlockingQueue<>(this.prefetch * this.slots.length) : null;
+            this.arguments = new HashMap<>();
+            this.arguments.put("x-queue-mode", RabbitQueueFactory.this.lazy.get() ? "lazy" : "default"); // we want to minimize memory usage; see http://www.rabbitmq.com/lazy-queues.html
+            if (RabbitQueueFactory.this.queueLimit.get() > 0) {
+                this.arguments.put("x-max-length", RabbitQueueFactory.this.queueLimit.get());
+                this.arguments.put("x-overflow", "reject-publish");
+            }
+            if (RabbitQueueFactory.this.maxPriority.get() > 0) {
+                this.arguments.put("x-max-priority", RabbitQueueFactory.this.maxPriority.get());
+            }
+            if (extraArguments != null) this.arguments.putAll(extraArguments);
+            for (int i = 0; i < this.slots.length; i++) {
+                this.slots[i] = new ChannelSlot(i);
+                this.slots[i].connect();
+            }
         }
 
-        private void connect() throws IOException {
-            final Map<String, Object> arguments = new HashMap<>();
-            arguments.put("x-queue-mode", RabbitQueueFactory.this.lazy.get() ? "lazy" : "default"); // we want to minimize memory usage; see http://www.rabbitmq.com/lazy-queues.html
-            if (RabbitQueueFactory.this.queueLimit.get() > 0) {
-                arguments.put("x-max-length", RabbitQueueFactory.this.queueLimit.get());
-                arguments.put("x-overflow", "reject-publish");
+        /**
+         * get the channel slot of the current thread. A thread always gets the same slot.
+         * @return the channel slot
+         */
+        private ChannelSlot slot() {
+            return this.slots[(int) (Thread.currentThread().getId() % this.slots.length)];
+        }
+
+        /**
+         * get the channel slot which delivered a message
+         * @param deliveryTag the delivery tag as reported to the caller
+         * @return the channel slot
+         * @throws IOException if the delivery tag does not belong to any slot
+         */
+        private ChannelSlot slot(final long deliveryTag) throws IOException {
+            final long s = deliveryTag >>> SLOT_SHIFT;
+            if (s >= this.slots.length) throw new IOException("unknown delivery tag " + deliveryTag);
+            return this.slots[(int) s];
+        }
+
+        private class ChannelSlot {
+            private final int index;
+            private final SortedMap<Long, CompletableFuture<Queue>> unconfirmedSet;
+            private final Semaphore confirmWindow;
+            private final AckCoalescer ackCoalescer;
+            private volatile String consumerTag;
+            private volatile Channel channel;
+            private int generation; // the generation of the channel delivery tags, changed within the lock of the slot
+            private long acked; // the highest channel delivery tag which was acknowledged with a multiple-ack
+
+            public ChannelSlot(final int index) {
+                this.index = index;
+                this.unconfirmedSet = Collections.synchronizedSortedMap(new TreeMap<>());
+                this.confirmWindow = new Semaphore(RabbitQueueFactory.this.confirmWindow.get(), true);
+                this.consumerTag = null;
+                this.ackCoalescer = RabbitQueueFactory.this.ackCoalesceCount.get() > 0 ?
+                        new AckCoalescer(this::basicAck, RabbitQueueFactory.this.ackCoalesceCount.get()) : null;
+                this.channel = null;
+                this.generation = 0;
+                this.acked = 0;
             }
-            this.channel = RabbitQueueFactory.this.getChannel();
-            try {
-                this.channel.queueDeclare(this.queueName, true, false, false, arguments);
-            } catch (final Throwable e) {
-                // we first try to delete the old queue, but only if it is not used and if empty
+
+            /**
+             * the delivery tag which is reported to the caller; must be called within the lock of the slot
+             */
+            private long tag(final long channelDeliveryTag) {
+                return (((long) this.index) << SLOT_SHIFT) | (((long) this.generation) << GENERATION_SHIFT) | channelDeliveryTag;
+            }
+
+            /**
+             * start a new generation of delivery tags; must be called within the lock of the slot
+             */
+            private void nextGeneration() {
+                this.generation = (this.generation + 1) & GENERATION_MASK;
+                // the deliveries which the coalescer holds belong to the old generation
+                if (this.ackCoalescer != null) this.ackCoalescer.clear();
+            }
+
+            private synchronized void connect() throws IOException {
+                // confirmations for messages published on a previous channel will never arrive
+                failUnconfirmed(new IOException("channel closed before message was confirmed"));
+                // prefetched and un-acknowledged messages are re-delivered by the broker once the old channel is gone
+                abort();
+                // delivery tags of the old channel are not valid on the new channel; they are dropped with their generation
+                nextGeneration();
+                this.acked = 0;
+
+                final String queueName = RabbitMessageQueue.this.queueName;
+                final Map<String, Object> arguments = RabbitMessageQueue.this.arguments;
+                this.channel = RabbitQueueFactory.this.getChannel(queueName);
                 try {
-                    this.channel = RabbitQueueFactory.this.connection.createChannel();
-                    this.channel.queueDelete(this.queueName, true, true);
-                } catch (final Throwable ee) {}
+                    this.channel.queueDeclare(queueName, true, false, false, arguments);
+                } catch (final Throwable e) {
+                    // we first try to delete the old queue, but only if it is not used and if empty
+                    try {
+                        this.channel = RabbitQueueFactory.this.getChannel(queueName);
+                        this.channel.queueDelete(queueName, true, true);
+                    } catch (final Throwable ee) {}
 
-                // try again
+                    // try again
+                    try {
+                        this.channel = RabbitQueueFactory.this.getChannel(queueName);
+                        this.channel.queueDeclare(queueName, true, false, false, arguments);
+                    } catch (final Throwable ee) {
+                        // that did not work. Try to modify the call to match with the previous queueDeclare
+                        final String ec = ee.getCause() == null ? ee.getMessage() : ee.getCause().getMessage();
+                        if (ec != null && ec.contains("'x-max-priority'")) {
+                            // the queue exists without priorities; messages are delivered in the order of arrival
+                            Logger.warn(this.getClass(), "RabbitQueueFactory: queue " + queueName + " was declared without priorities");
+                            arguments.remove("x-max-priority");
+                        } else if (ec != null && ec.contains("'signedint' but current is none")) {
+                            arguments.remove("x-max-length");
+                            arguments.remove("x-overflow");
+                        }
+                        //arguments.put("x-queue-mode", lazy.get() ? "default" : "lazy");
+                        try {
+                            this.channel = RabbitQueueFactory.this.getChannel(queueName);
+                            this.channel.queueDeclare(queueName, true, false, false, arguments);
+                        } catch (final Throwable eee) {
+                            throw new IOException(eee.getMessage());
+                        }
+                    }
+                }
+                this.channel.confirmSelect(); // declare that the channel sends confirmations
+                this.channel.addConfirmListener(
+                    new ConfirmCallback() { // ack
+                        @Override
+                        public void handle(final long seqNo, final boolean multiple) throws IOException {
+                            confirm(seqNo, multiple, null);
+                        }},
+                    new ConfirmCallback() { // nack
+                        @Override
+                        public void handle(final long seqNo, final boolean multiple) throws IOException {
+                            confirm(seqNo, multiple, new IOException(GridBroker.TARGET_LIMIT_MESSAGE));
+                        }}
+                );
+            }
+
+            /**
+             * cancel the consumer and abort the channel. Without that the consumer of the old channel would
+             * keep pushing messages into the deliveries buffer, and its prefetched messages would be held by the
+             * broker until the connection is closed.
+             */
+            private void abort() {
+                final Channel oldChannel = this.channel;
+                final String oldConsumerTag = this.consumerTag;
+                unsubscribe(oldConsumerTag);
+                this.channel = null;
+                if (oldChannel == null) return;
+                if (oldConsumerTag != null) try {
+                    oldChannel.basicCancel(oldConsumerTag);
+                } catch (IOException | AlreadyClosedException e) {}
                 try {
-                    this.channel = RabbitQueueFactory.this.connection.createChannel();
-                    this.channel.queueDeclare(this.queueName, true, false, false, arguments);
-                } catch (final Throwable ee) {
-                    // that did not work. Try to modify the call to match with the previous queueDeclare
-                    final String ec = ee.getCause() == null ? ee.getMessage() : ee.getCause().getMessage();
-                    if (ec != null && ec.contains("'signedint' but current is none")) {
-                        arguments.remove("x-max-length");
-                        arguments.remove("x-overflow");
+                    oldChannel.abort();
+                } catch (IOException | AlreadyClosedException e) {}
+            }
+
+            /**
+             * complete the confirmation of published messages
+             * @param seqNo the sequence number of the (last) confirmed message
+             * @param multiple if true, all messages up to seqNo are confirmed
+             * @param failure null if the broker confirmed the message, otherwise the exception for the nack
+             */
+            private void confirm(final long seqNo, final boolean multiple, final IOException failure) {
+                if (multiple) {
+                    synchronized (this.unconfirmedSet) {
+                        final Map<Long, CompletableFuture<Queue>> m = this.unconfirmedSet.headMap(seqNo + 1);
+                        m.forEach((s, f) -> complete(f, failure));
+                        m.clear();
                     }
-                    //arguments.put("x-queue-mode", lazy.get() ? "default" : "lazy");
+                } else {
+                    final CompletableFuture<Queue> f = this.unconfirmedSet.remove(seqNo);
+                    assert f != null;
+                    if (f != null) complete(f, failure);
+                }
+            }
+
+            private void complete(final CompletableFuture<Queue> f, final IOException failure) {
+                this.confirmWindow.release();
+                if (failure == null) f.complete(RabbitMessageQueue.this); else f.completeExceptionally(failure);
+            }
+
+            private void failUnconfirmed(final IOException failure) {
+                synchronized (this.unconfirmedSet) {
+                    this.unconfirmedSet.forEach((s, f) -> complete(f, failure));
+                    this.unconfirmedSet.clear();
+                }
+            }
+
+            private Future<Queue> publish(final byte[] message, final int priority) throws IOException {
+                // wait for a free slot in the confirm window
+                try {
+                    if (!this.confirmWindow.tryAcquire(10, TimeUnit.SECONDS)) throw new IOException("message sending timeout");
+                } catch (final InterruptedException e) {
+                    throw new IOException("message sending interrupted");
+                }
+                final CompletableFuture<Queue> confirmation = new CompletableFuture<>();
+                synchronized (this) {
+                    final long seqNo = this.channel.getNextPublishSeqNo();
+                    this.unconfirmedSet.put(seqNo, confirmation);
                     try {
-                        this.channel = RabbitQueueFactory.this.connection.createChannel();
-                        this.channel.queueDeclare(this.queueName, true, false, false, arguments);
-                    } catch (final Throwable eee) {
-                        throw new IOException(eee.getMessage());
+                        this.channel.basicPublish(DEFAULT_EXCHANGE, RabbitMessageQueue.this.queueName, properties(priority), message);
+                    } catch (IOException | AlreadyClosedException e) {
+                        if (this.unconfirmedSet.remove(seqNo) != null) this.confirmWindow.release(); // prevent a memory leak
+                        throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
                     }
                 }
+                return confirmation;
             }
-            this.channel.confirmSelect(); // declare that the channel sends confirmations
-            this.channel.addConfirmListener(
-                new ConfirmCallback() { // ack
+
+            /**
+             * subscribe a consumer to the queue which pushes up to prefetch messages into the deliveries buffer.
+             * Messages are always consumed without auto-acknowledge because otherwise the broker would ignore the
+             * prefetch limit; the autoAck flag of receive() is applied when a message is taken from the buffer.
+             * @throws IOException
+             */
+            private synchronized void subscribe() throws IOException {
+                if (this.consumerTag != null) return;
+                final Channel consumerChannel = this.channel;
+                consumerChannel.basicQos(RabbitMessageQueue.this.prefetch);
+                this.consumerTag = consumerChannel.basicConsume(RabbitMessageQueue.this.queueName, false, new DefaultConsumer(consumerChannel) {
                     @Override
-                    public void handle(final long seqNo, final boolean multiple) throws IOException {
-                        if (multiple) {
-                            final Map<Long, BlockingQueue<Boolean>> m = RabbitMessageQueue.this.unconfirmedSet.headMap(seqNo + 1);
-                            m.forEach((s, b) -> b.add(Boolean.TRUE));
-                            m.clear();
-                        } else {
-                            final BlockingQueue<Boolean> b = RabbitMessageQueue.this.unconfirmedSet.remove(seqNo);
-                            assert b != null;
-                            if (b != null) b.add(Boolean.TRUE);
+                    public void handleDelivery(final String consumerTag, final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body) throws IOException {
+                        final long deliveryTag;
+                        synchronized (ChannelSlot.this) {
+                            // a delivery of an aborted channel may still be dispatched; the broker delivers that message again
+                            if (consumerChannel != ChannelSlot.this.channel) return;
+                            deliveryTag = tag(envelope.getDeliveryTag());
+                            delivered(deliveryTag);
                         }
-                    }},
-                new ConfirmCallback() { // nack
+                        final MessageContainer mc = new MessageContainer(RabbitQueueFactory.this, body, deliveryTag);
+                        // the buffer has the size of all prefetches so this should never fail; if it does, give the message back
+                        if (!RabbitMessageQueue.this.deliveries.offer(mc)) reject(deliveryTag);
+                    }
                     @Override
-                    public void handle(final long seqNo, final boolean multiple) throws IOException {
-                        if (multiple) {
-                            final Map<Long, BlockingQueue<Boolean>> m = RabbitMessageQueue.this.unconfirmedSet.headMap(seqNo + 1);
-                            m.forEach((s, b) -> b.add(Boolean.FALSE));
-                            m.clear();
-                        } else {
-                            final BlockingQueue<Boolean> b = RabbitMessageQueue.this.unconfirmedSet.remove(seqNo);
-                            assert b != null;
-                            if (b != null) b.add(Boolean.FALSE);
-                        }
-                    }}
-            );
+                    public void handleCancel(final String consumerTag) throws IOException {
+                        Logger.warn(this.getClass(), "RabbitQueueFactory: consumer for queue " + RabbitMessageQueue.this.queueName + " cancelled by broker");
+                        unsubscribe(consumerTag);
+                    }
+                    @Override
+                    public void handleShutdownSignal(final String consumerTag, final ShutdownSignalException sig) {
+                        unsubscribe(consumerTag);
+                    }
+                });
+            }
+
+            /**
+             * forget the consumer and its buffered deliveries
+             * @param consumerTag the consumer which shall be removed; a consumer of an old channel does not remove the current one
+             */
+            private synchronized void unsubscribe(final String consumerTag) {
+                if (this.consumerTag == null || !this.consumerTag.equals(consumerTag)) return;
+                this.consumerTag = null;
+                dropDeliveries();
+            }
+
+            /**
+             * remove the buffered deliveries of this slot; the broker delivers these messages again
+             */
+            private void dropDeliveries() {
+                if (RabbitMessageQueue.this.deliveries != null) RabbitMessageQueue.this.deliveries.removeIf(mc -> (mc.getDeliveryTag() >>> SLOT_SHIFT) == this.index);
+            }
+
+            private MessageContainer basicGet(final boolean autoAck) throws IOException {
+                final GetResponse response;
+                final long deliveryTag;
+                synchronized (this) {
+                    response = this.channel.basicGet(RabbitMessageQueue.this.queueName, autoAck);
+                    if (response == null) return null;
+                    deliveryTag = tag(response.getEnvelope().getDeliveryTag());
+                    if (!autoAck) delivered(deliveryTag);
+                }
+                return new MessageContainer(RabbitQueueFactory.this, response.getBody(), deliveryTag);
+            }
+
+            private void delivered(final long deliveryTag) {
+                if (this.ackCoalescer != null) this.ackCoalescer.delivered(deliveryTag);
+            }
+
+            private boolean isCurrent(final long deliveryTag) {
+                return ((deliveryTag >>> GENERATION_SHIFT) & GENERATION_MASK) == this.generation;
+            }
+
+            private void ack(final long deliveryTag) throws IOException {
+                if (this.ackCoalescer == null) basicAck(deliveryTag, false); else this.ackCoalescer.acknowledge(deliveryTag);
+            }
+
+            private synchronized void basicAck(final long deliveryTag, final boolean multiple) throws IOException {
+                // the delivery belongs to an old channel or was recovered; the broker delivers the message again
+                if (!isCurrent(deliveryTag)) return;
+                final long channelDeliveryTag = deliveryTag & TAG_MASK;
+                // flushes of the coalescer may arrive out of order; a later multiple-ack covers the earlier deliveries
+                if (channelDeliveryTag <= this.acked) return;
+                this.channel.basicAck(channelDeliveryTag, multiple);
+                if (multiple) this.acked = channelDeliveryTag;
+            }
+
+            private void reject(final long deliveryTag) throws IOException {
+                if (this.ackCoalescer != null) this.ackCoalescer.remove(deliveryTag);
+                synchronized (this) {
+                    if (!isCurrent(deliveryTag)) return;
+                    this.channel.basicReject(deliveryTag & TAG_MASK, true);
+                }
+            }
+
+            private void recover() throws IOException {
+                // all un-acknowledged messages are re-delivered with new tags
+                flushAcknowledges();
+                synchronized (this) {
+                    nextGeneration();
+                    dropDeliveries();
+                    this.channel.basicRecover(true);
+                }
+            }
+
+            private void flushAcknowledges() {
+                if (this.ackCoalescer != null && this.ackCoalescer.waiting() > 0) try {
+                    this.ackCoalescer.flush();
+                } catch (IOException | AlreadyClosedException e) {
+                    Logger.warn(this.getClass(), "RabbitQueueFactory.flushAcknowledges: flush failed: " + e.getMessage());
+                }
+            }
+
+            private synchronized int messageCount() throws IOException {
+                //int a = channel.queueDeclarePassive(this.queueName).getMessageCount();
+                final int b = (int) this.channel.messageCount(RabbitMessageQueue.this.queueName);
+                //assert a == b;
+                return b;
+            }
+
+            private void close() {
+                failUnconfirmed(new IOException("queue closed before message was confirmed"));
+                flushAcknowledges();
+                synchronized (this) {
+                    if (this.channel != null) try {
+                        this.channel.close();
+                    } catch (IOException | TimeoutException | AlreadyClosedException e) {
+                    }
+                }
+            }
         }
 
         @Override
@@ -230,123 +672,255 @@ public class RabbitQueueFactory implements QueueFactory {
             available();
         }
 
+        /**
+         * the properties of a published message: messages are persistent and carry a priority if the queue has priorities
+         */
+        private AMQP.BasicProperties properties(final int priority) {
+            if (priority <= 0 || !this.arguments.containsKey("x-max-priority")) return MessageProperties.PERSISTENT_BASIC;
+            return MessageProperties.PERSISTENT_BASIC.builder().priority(Math.min(priority, RabbitQueueFactory.this.maxPriority.get())).build();
+        }
+
         @Override
         public Queue send(final byte[] message) throws IOException {
+            return send(message, 0);
+        }
+
+        @Override
+        public Queue send(final byte[] message, final int priority) throws IOException {
+            final ChannelSlot slot = slot();
             try {
-                return sendInternal(message);
+                return awaitConfirmation(slot.publish(message, priority));
             } catch (final IOException e) {
-                if (e.getMessage().equals(GridBroker.TARGET_LIMIT_MESSAGE)) throw e;
+                if (GridBroker.TARGET_LIMIT_MESSAGE.equals(e.getMessage())) throw e;
                 // try again
                 Logger.warn(this.getClass(), "RabbitQueueFactory.send: re-connecting broker");
-                connect() ;
-                return sendInternal(message);
+                slot.connect() ;
+                return awaitConfirmation(slot.publish(message, priority));
+            }
+        }
+
+        @Override
+        public Future<Queue> sendAsync(final byte[] message) throws IOException {
+            return slot().publish(message, 0);
+        }
+
+        @Override
+        public Queue send(final List<byte[]> messages) throws IOException {
+            // publish the whole batch within the confirm window and wait for all confirmations at once
+            final ChannelSlot slot = slot();
+            final List<Future<Queue>> confirmations = new ArrayList<>(messages.size());
+            for (final byte[] message: messages) confirmations.add(slot.publish(message, 0));
+            final List<byte[]> failed = new ArrayList<>();
+            IOException limit = null;
+            for (int i = 0; i < confirmations.size(); i++) {
+                try {
+                    awaitConfirmation(confirmations.get(i));
+                } catch (final IOException e) {
+                    if (GridBroker.TARGET_LIMIT_MESSAGE.equals(e.getMessage())) limit = e; else failed.add(messages.get(i));
+                }
             }
+            if (limit != null) throw limit;
+            if (failed.isEmpty()) return this;
+            // try again with the messages that did not get a confirmation
+            Logger.warn(this.getClass(), "RabbitQueueFactory.send: re-connecting broker, re-sending " + failed.size() + " of " + messages.size() + " messages");
+            slot.connect() ;
+            confirmations.clear();
+            for (final byte[] message: failed) confirmations.add(slot.publish(message, 0));
+            for (final Future<Queue> confirmation: confirmations) awaitConfirmation(confirmation);
+            return this;
         }
-        private Queue sendInternal(final byte[] message) throws IOException {
-            final BlockingQueue<Boolean> semaphore = new ArrayBlockingQueue<>(1);
-            final long seqNo = this.channel.getNextPublishSeqNo();
-            this.unconfirmedSet.put(seqNo, semaphore);
-            this.channel.basicPublish(DEFAULT_EXCHANGE, this.queueName, MessageProperties.PERSISTENT_BASIC, message);
-            // wait for confirmation
+
+        private Queue awaitConfirmation(final Future<Queue> confirmation) throws IOException {
             try {
-                final Boolean delivered = semaphore.poll(10, TimeUnit.SECONDS);
-                if (delivered == null) throw new IOException("message sending timeout");
-                if (delivered) return this;
-                throw new IOException(GridBroker.TARGET_LIMIT_MESSAGE);
-            } catch (final InterruptedException x) {
-                this.unconfirmedSet.remove(seqNo); // prevent a memory leak
+                return confirmation.get(10, TimeUnit.SECONDS);
+            } catch (final TimeoutException e) {
+                throw new IOException("message sending timeout");
+            } catch (final InterruptedException e) {
                 throw new IOException("message sending interrupted");
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
             }
         }
 
         @Override
         public MessageContainer receive(long timeout, final boolean autoAck) throws IOException {
+            if (this.prefetch > 0) return receiveConsumed(timeout, autoAck);
             if (timeout <= 0) timeout = Long.MAX_VALUE;
             final long termination = timeout <= 0 || timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+            final ChannelSlot slot = slot();
             Throwable ee = null;
             while (System.currentTimeMillis() < termination) {
                 ee = null;
                 try {
-                    final GetResponse response = this.channel.basicGet(this.queueName, autoAck);
-                    if (response != null) {
-                        final Envelope envelope = response.getEnvelope();
-                        final long deliveryTag = envelope.getDeliveryTag();
-                        //channel.basicAck(deliveryTag, false);
-                        return new MessageContainer(RabbitQueueFactory.this, response.getBody(), deliveryTag);
-                    }
+                    final MessageContainer mc = slot.basicGet(autoAck);
+                    if (mc != null) return mc;
                     //Logger.warn(this.getClass(), "receive failed: response empty");
                 } catch (final Throwable e) {
                     Logger.warn(this.getClass(), "receive failed: " + e.getMessage(), e);
-                    connect() ;
+                    slot.connect() ;
                     ee = e;
                     //autoAck = ! autoAck;
                 }
-                try {Thread.sleep(1000);} catch (final InterruptedException e) {return null;}
+                // a short timeout, i.e. a poll between in-process receives, must not be extended by the poll interval
+                final long remaining = termination - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                try {Thread.sleep(Math.min(1000, remaining));} catch (final InterruptedException e) {return null;}
+            }
+            if (ee == null) return null;
+            throw new IOException(ee.getMessage());
+        }
+
+        @Override
+        public List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            final MessageContainer first = receive(timeout, autoAck);
+            if (first == null) return messages;
+            messages.add(first);
+            try {
+                if (this.prefetch > 0) {
+                    // take what the consumers already have in the buffer
+                    final List<MessageContainer> buffered = new ArrayList<>();
+                    this.deliveries.drainTo(buffered, maxCount - 1);
+                    for (final MessageContainer mc: buffered) {
+                        if (autoAck) slot(mc.getDeliveryTag()).ack(mc.getDeliveryTag());
+                        messages.add(mc);
+                    }
+                } else {
+                    // poll until the queue is empty, without waiting
+                    final ChannelSlot slot = slot();
+                    while (messages.size() < maxCount) {
+                        final MessageContainer mc = slot.basicGet(autoAck);
+                        if (mc == null) break;
+                        messages.add(mc);
+                    }
+                }
+            } catch (IOException | AlreadyClosedException e) {
+                // we return what we got so far; un-acknowledged messages are re-delivered after re-connect
+                Logger.warn(this.getClass(), "RabbitQueueFactory.receive: batch interrupted: " + e.getMessage(), e);
+            }
+            return messages;
+        }
+
+        private MessageContainer receiveConsumed(final long timeout, final boolean autoAck) throws IOException {
+            final long termination = timeout <= 0 || timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+            Throwable ee = null;
+            long wait;
+            while ((wait = termination - System.currentTimeMillis()) > 0) {
+                ee = null;
+                ChannelSlot slot = null;
+                try {
+                    for (final ChannelSlot s: this.slots) {slot = s; s.subscribe();}
+                    slot = null;
+                    // wait in slices to notice a lost subscription
+                    final MessageContainer mc = this.deliveries.poll(Math.min(wait, 10000), TimeUnit.MILLISECONDS);
+                    if (mc != null) {
+                        if (autoAck) {
+                            slot = slot(mc.getDeliveryTag());
+                            slot.ack(mc.getDeliveryTag());
+                        }
+                        return mc;
+                    }
+                    continue;
+                } catch (final InterruptedException e) {
+                    return null;
+                } catch (final Throwable e) {
+                    Logger.warn(this.getClass(), "receive failed: " + e.getMessage(), e);
+                    if (slot != null) slot.connect();
+                    ee = e;
+                }
+                // shared listeners receive with a short timeout and must turn to the next queue in time
+                final long remaining = termination - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                try {Thread.sleep(Math.min(1000, remaining));} catch (final InterruptedException e) {return null;}
             }
             if (ee == null) return null;
             throw new IOException(ee.getMessage());
         }
 
+        private void flushAcknowledges() {
+            for (final ChannelSlot slot: this.slots) slot.flushAcknowledges();
+        }
+
         @Override
         public void acknowledge(final long deliveryTag) throws IOException {
+            final ChannelSlot slot = slot(deliveryTag);
             try {
-                this.channel.basicAck(deliveryTag, false);
+                slot.ack(deliveryTag);
             } catch (IOException | AlreadyClosedException e) {
-                // try again
+                // the delivery tag is not valid on a new channel: the broker will deliver the message again
                 Logger.warn(this.getClass(), "RabbitQueueFactory.acknowledge: re-connecting broker");
-                connect() ;
-                this.channel.basicAck(deliveryTag, false);
+                slot.connect() ;
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
             }
         }
 
         @Override
         public void reject(final long deliveryTag) throws IOException {
+            final ChannelSlot slot = slot(deliveryTag);
             try {
-                this.channel.basicReject(deliveryTag, true);
+                slot.reject(deliveryTag);
             } catch (IOException | AlreadyClosedException e) {
-                // try again
+                // the delivery tag is not valid on a new channel: the broker will deliver the message again
                 Logger.warn(this.getClass(), "RabbitQueueFactory.reject: re-connecting broker");
-                connect() ;
-                this.channel.basicReject(deliveryTag, false);
+                slot.connect() ;
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
             }
         }
 
         @Override
         public void recover() throws IOException {
-            try {
-                this.channel.basicRecover(true);
-            } catch (IOException | AlreadyClosedException e) {
-                // try again
-                Logger.warn(this.getClass(), "RabbitQueueFactory.recover: re-connecting broker");
-                connect() ;
-                this.channel.basicRecover(true);
+            for (final ChannelSlot slot: this.slots) {
+                try {
+                    slot.recover();
+                } catch (IOException | AlreadyClosedException e) {
+                    // try again
+                    Logger.warn(this.getClass(), "RabbitQueueFactory.recover: re-connecting broker");
+                    slot.connect() ;
+                    slot.recover();
+                }
             }
         }
 
         @Override
         public long available() throws IOException {
+            final ChannelSlot slot = slot();
             try {
-                return availableInternal();
+                return slot.messageCount();
             } catch (IOException | AlreadyClosedException e) {
                 // try again
                 Logger.warn(this.getClass(), "RabbitQueueFactory.available: re-connecting broker");
-                connect() ;
-                return availableInternal();
+                slot.connect() ;
+                return slot.messageCount();
             }
         }
-        private int availableInternal() throws IOException {
-            //int a = channel.queueDeclarePassive(this.queueName).getMessageCount();
-            final int b = (int) this.channel.messageCount(this.queueName);
-            //assert a == b;
-            return b;
+
+        @Override
+        public List<MessageContainer> peek(final int count) throws IOException {
+            // the messages are fetched without acknowledge on a separate channel and returned to their position with one nack
+            final List<MessageContainer> messages = new ArrayList<>();
+            final Channel channel = getChannel(this.queueName);
+            try {
+                long lastTag = -1;
+                while (messages.size() < count) {
+                    final GetResponse response = channel.basicGet(this.queueName, false);
+                    if (response == null) break;
+                    lastTag = response.getEnvelope().getDeliveryTag();
+                    messages.add(new MessageContainer(RabbitQueueFactory.this, response.getBody(), 0));
+                }
+                if (lastTag >= 0) channel.basicNack(lastTag, true, true);
+            } catch (final AlreadyClosedException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                // closing the channel also returns all messages which were not nacked
+                try {channel.close();} catch (IOException | TimeoutException | AlreadyClosedException e) {}
+            }
+            return messages;
         }
 
         @Override
         public void close() throws IOException {
-            if (this.channel != null) try {
-                this.channel.close();
-            } catch (IOException | TimeoutException e) {
-            }
+            for (final ChannelSlot slot: this.slots) slot.close();
         }
     }
 
@@ -359,10 +933,19 @@ public class RabbitQueueFactory implements QueueFactory {
         // Am exception will occur in case that we make a new connection and use old closed queues, stating that the queue was already closed.
         // There must be a static status inside the RabbitMQ client which remembers all queues, even if they have been closed.
         //
-        try {this.connection.close();} catch (final IOException e) {}
+        synchronized (this) {
+            if (this.ackFlusher != null) this.ackFlusher.shutdown();
+            this.ackFlusher = null;
+        }
+        this.queues.values().forEach(queue -> ((RabbitMessageQueue) queue).flushAcknowledges());
+        synchronized (this) {
+            for (int i = 0; i < this.connections.length; i++) {
+                if (this.connections[i] != null) try {this.connections[i].close();} catch (IOException | AlreadyClosedException e) {}
+                this.connections[i] = null;
+            }
+        }
         this.queues.clear();
         this.queues = null;
-        this.connection = null;
     }
 
     public static void main(final String[] args) {
@@ -20,43 +20,90 @@
 
 package net.yacy.grid.io.messages;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
-import eu.searchlab.storage.io.FileIO;
 import eu.searchlab.storage.io.GenericIO;
 import eu.searchlab.storage.io.IOPath;
 import eu.searchlab.storage.io.S3IO;
-import eu.searchlab.storage.json.PersistentCord;
+import net.yacy.grid.tools.Logger;
 
-public class S3QueueFactory extends PersistentCord implements QueueFactory {
+/**
+ * A queue factory for queues stored in S3 (or any other GenericIO).
+ * Each queue is a folder with immutable segment objects and a pointer object:
+ * - a segment "<number>.jsonl" holds a batch of messages, one JSON object per line
+ * - the pointer "pointer.json" holds the position of the next message to read (head segment and offset),
+ *   the number of the next segment to write (tail) and the number of messages in the queue.
+ * Messages are collected and written as one segment when the batch is full or in the background after the flush interval.
+ * Reading a message only advances the pointer; the pointer is written in the background and fully consumed
+ * segments are deleted after that. After a crash, messages which were read but where the pointer was not written are
+ * delivered again; messages which were not yet written to a segment are lost.
+ * A queue must not be used by more than one S3QueueFactory at the same time.
+ */
+public class S3QueueFactory implements QueueFactory {
+
+    public final static int DEFAULT_BATCH_SIZE = 1000;
+    public final static long DEFAULT_FLUSH_INTERVAL = 1000;
+    private final static String SEGMENT_SUFFIX = ".jsonl";
+    private final static String POINTER_OBJECT = "pointer.json";
 
     private URL url;
     private final String endpointURL;
     private final IOPath iop;
-    private GenericIO io;
+    private final GenericIO io;
+    private final int batchSize;
+    private final Map<String, S3Queue> queues;
+    private final ScheduledExecutorService flusher;
 
     public S3QueueFactory(final GenericIO io, final IOPath iop) {
-        super(io, iop);
+        this(io, iop, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * create a queue factory
+     * @param io the storage
+     * @param iop the folder where the queues are stored
+     * @param batchSize the maximum number of messages in one segment
+     * @param flushInterval the time in milliseconds after that collected messages and the read pointer are written
+     */
+    public S3QueueFactory(final GenericIO io, final IOPath iop, final int batchSize, final long flushInterval) {
         this.endpointURL = (io instanceof S3IO) ? ((S3IO) io).getEndpointURL() : null;
         try {
             this.url = new URL(this.endpointURL);
         } catch (final MalformedURLException e) {
             this.url = null;
         }
-        try {
-            this.io = (io instanceof S3IO) ? new S3IO(this.endpointURL, ((S3IO) io).getAccessKey(), ((S3IO) io).getSecretKey()) : new FileIO(new File("data"));
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+        this.io = io;
         this.iop = iop;
+        this.batchSize = Math.max(1, batchSize);
+        this.queues = new ConcurrentHashMap<>();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "S3QueueFactory.flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.flusher.scheduleWithFixedDelay(() -> this.queues.values().forEach(queue -> {
+            try {
+                queue.commit();
+            } catch (final Throwable e) {
+                Logger.warn(this.getClass(), "S3QueueFactory: flush failed for " + queue.dir, e);
+            }
+        }), flushInterval, flushInterval, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -79,86 +126,313 @@ public class S3QueueFactory extends PersistentCord implements QueueFactory {
         return this.endpointURL;
     }
 
-    private static JSONObject message2json(final byte[] message) {
-        if (message == null) return new JSONObject();
-        if (message[0] == '{') {
+    /**
+     * encode a message as one line of a segment. JSON messages are stored as they are,
+     * everything else is base64-encoded
+     */
+    private static String message2line(final byte[] message) {
+        final JSONObject json = new JSONObject(true);
+        if (message.length > 0 && message[0] == '{') {
             // consider that this is already json
-            return new JSONObject(new JSONTokener(new String(message, StandardCharsets.UTF_8)));
+            try {
+                json.put("m", new JSONObject(new JSONTokener(new String(message, StandardCharsets.UTF_8))));
+                return json.toString();
+            } catch (final JSONException e) {}
         }
-        final JSONObject json = new JSONObject();
-        json.put("message", Base64.getEncoder().encodeToString(message));
-        return json;
+        json.put("b", Base64.getEncoder().encodeToString(message));
+        return json.toString();
     }
 
-    private static byte[] json2message(final JSONObject json) {
-        if (json.has("message")) {
-            final String message = json.optString("message", "");
-            if (message.length() > 0) {
-                final byte[] m = Base64.getDecoder().decode(message);
-                return m;
-            }
-        }
-        return json.toString(0).getBytes(StandardCharsets.UTF_8);
+    private static byte[] line2message(final String line) {
+        final JSONObject json = new JSONObject(new JSONTokener(line));
+        if (json.has("m")) return json.getJSONObject("m").toString(0).getBytes(StandardCharsets.UTF_8);
+        return Base64.getDecoder().decode(json.optString("b", ""));
     }
 
     @Override
     public Queue getQueue(final String queueName) throws IOException {
-        return new Queue() {
+        S3Queue queue = this.queues.get(queueName);
+        if (queue != null) return queue;
+        synchronized (this) {
+            queue = this.queues.get(queueName);
+            if (queue != null) return queue;
+            queue = new S3Queue(this.iop.append(queueName));
+            this.queues.put(queueName, queue);
+            return queue;
+        }
+    }
 
-            @Override
-            public void checkConnection() throws IOException {
-                if (!S3QueueFactory.this.io.bucketExists(S3QueueFactory.this.iop.getBucket()))
-                    throw new IOException("bucket " + S3QueueFactory.this.iop.getBucket() + " does not exist");
+    private class S3Queue extends AbstractQueue implements Queue {
+
+        private final IOPath dir, pointer;
+        private final List<byte[]> buffer; // messages which are not yet written to a segment
+        private final TreeSet<Long> consumed; // segments which can be deleted after the pointer is written
+        private long head, tail, count;
+        private int offset;
+        private List<byte[]> headMessages; // the content of the head segment
+        private boolean dirty;
+
+        public S3Queue(final IOPath dir) throws IOException {
+            this.dir = dir;
+            this.pointer = dir.append(POINTER_OBJECT);
+            this.buffer = new ArrayList<>();
+            this.consumed = new TreeSet<>();
+            this.headMessages = null;
+            this.dirty = false;
+
+            // list the segments
+            final TreeSet<Long> segments = new TreeSet<>();
+            try {
+                for (String name: S3QueueFactory.this.io.list(dir.getBucket(), dir.getPath())) {
+                    name = name.substring(name.lastIndexOf('/') + 1);
+                    if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+                    try {
+                        segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (final NumberFormatException e) {}
+                }
+            } catch (IOException | RuntimeException e) {
+                // the folder does not exist yet
             }
 
-            @Override
-            public Queue send(final byte[] message) throws IOException {
-                S3QueueFactory.this.append(message2json(message));
-                return this;
+            // read the pointer
+            if (S3QueueFactory.this.io.exists(this.pointer)) {
+                final JSONObject p = new JSONObject(new JSONTokener(new String(S3QueueFactory.this.io.readAll(this.pointer), StandardCharsets.UTF_8)));
+                this.head = p.getLong("head");
+                this.offset = p.getInt("offset");
+                this.tail = p.getLong("tail");
+                this.count = p.getLong("count");
+            } else {
+                this.head = segments.isEmpty() ? 0 : segments.first();
+                this.offset = 0;
+                this.tail = this.head;
+                this.count = 0;
             }
 
-            @Override
-            public MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
-                final JSONObject json = S3QueueFactory.this.getFirst();
-                return new MessageContainer(S3QueueFactory.this, json2message(json), 0 /* delivery tag */);
+            // segments before the head were consumed but not deleted; segments after the tail were written after the last pointer
+            this.consumed.addAll(segments.headSet(this.head));
+            for (final long s: segments.tailSet(this.tail)) {
+                this.count += readSegment(s).size();
+                this.tail = s + 1;
+                this.dirty = true;
             }
+        }
+
+        private IOPath segment(final long s) {
+            return this.dir.append(String.format("%016d", s) + SEGMENT_SUFFIX);
+        }
 
-            @Override
-            public void acknowledge(final long deliveryTag) throws IOException {
-                // do nothing, this class does not provide a message acknowledge function
+        private List<byte[]> readSegment(final long s) throws IOException {
+            final String content = new String(S3QueueFactory.this.io.readAll(segment(s)), StandardCharsets.UTF_8);
+            final List<byte[]> messages = new ArrayList<>();
+            for (final String line: content.split("\n")) {
+                if (line.length() > 0) messages.add(line2message(line));
             }
+            return messages;
+        }
+
+        /**
+         * write the collected messages as a new segment
+         */
+        private synchronized void flushBuffer() throws IOException {
+            if (this.buffer.isEmpty()) return;
+            final StringBuilder sb = new StringBuilder();
+            for (final byte[] message: this.buffer) sb.append(message2line(message)).append('\n');
+            S3QueueFactory.this.io.write(segment(this.tail), sb.toString().getBytes(StandardCharsets.UTF_8));
+            this.tail++;
+            this.count += this.buffer.size();
+            this.buffer.clear();
+            this.dirty = true;
+            this.notifyAll();
+        }
 
-            @Override
-            public void reject(final long deliveryTag) throws IOException {
-                // do nothing, this class does not provide a message reject function
+        /**
+         * write collected messages and the pointer, then delete consumed segments
+         * @throws IOException
+         */
+        public synchronized void commit() throws IOException {
+            flushBuffer();
+            if (this.dirty) {
+                final JSONObject p = new JSONObject(true);
+                p.put("head", this.head);
+                p.put("offset", this.offset);
+                p.put("tail", this.tail);
+                p.put("count", this.count);
+                S3QueueFactory.this.io.write(this.pointer, p.toString().getBytes(StandardCharsets.UTF_8));
+                this.dirty = false;
             }
+            while (!this.consumed.isEmpty()) {
+                final long s = this.consumed.first();
+                try {
+                    S3QueueFactory.this.io.remove(segment(s));
+                } catch (final IOException e) {
+                    Logger.warn(this.getClass(), "S3QueueFactory: cannot delete consumed segment " + segment(s) + ": " + e.getMessage());
+                }
+                this.consumed.remove(s);
+            }
+        }
 
-            @Override
-            public void recover() throws IOException {
-                // do nothing, this class does not provide a message recover function
+        @Override
+        public void checkConnection() throws IOException {
+            if (!S3QueueFactory.this.io.bucketExists(S3QueueFactory.this.iop.getBucket()))
+                throw new IOException("bucket " + S3QueueFactory.this.iop.getBucket() + " does not exist");
+        }
+
+        @Override
+        public synchronized Queue send(final byte[] message) throws IOException {
+            this.buffer.add(message == null ? new byte[0] : message);
+            if (this.buffer.size() >= S3QueueFactory.this.batchSize) flushBuffer();
+            return this;
+        }
+
+        @Override
+        public synchronized Queue send(final List<byte[]> messages) throws IOException {
+            for (final byte[] message: messages) this.buffer.add(message == null ? new byte[0] : message);
+            flushBuffer();
+            return this;
+        }
+
+        /**
+         * read the next message and advance the pointer. The queue must not be empty.
+         * @throws IOException if the head segment cannot be read; the pointer is not moved then and the segment
+         *         is read again with the next call. A segment is only marked as consumed after all its messages were read.
+         */
+        private byte[] next() throws IOException {
+            while (this.headMessages == null || this.offset >= this.headMessages.size()) {
+                if (this.headMessages != null) {
+                    // the head segment is consumed
+                    this.consumed.add(this.head);
+                    this.head++;
+                    this.offset = 0;
+                    this.headMessages = null;
+                }
+                if (this.head >= this.tail) {
+                    this.count = 0; // the count was wrong
+                    return null;
+                }
+                try {
+                    this.headMessages = readSegment(this.head);
+                } catch (final IOException e) {
+                    Logger.warn(this.getClass(), "S3QueueFactory: cannot read segment " + segment(this.head) + ", will try again: " + e.getMessage());
+                    throw e;
+                }
             }
+            final byte[] message = this.headMessages.get(this.offset++);
+            this.count--;
+            this.dirty = true;
+            return message;
+        }
 
-            @Override
-            public long available() throws IOException {
-                return S3QueueFactory.this.size();
+        @Override
+        public synchronized MessageContainer receive(final long timeout, final boolean autoAck) throws IOException {
+            final long termination = timeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+            while (true) {
+                if (this.count == 0) flushBuffer();
+                if (this.count > 0) {
+                    final byte[] message = next();
+                    if (message != null) return new MessageContainer(S3QueueFactory.this, message, 0 /* delivery tag */);
+                }
+                final long wait = termination - System.currentTimeMillis();
+                if (wait <= 0) return null;
+                try {
+                    this.wait(wait);
+                } catch (final InterruptedException e) {
+                    return null;
+                }
             }
+        }
 
-            @Override
-            public void clear() throws IOException {
-                // do nothing, this class does not provide a clear function
+        @Override
+        public synchronized List<MessageContainer> receive(final int maxCount, final long timeout, final boolean autoAck) throws IOException {
+            final List<MessageContainer> messages = new ArrayList<>();
+            final MessageContainer first = receive(timeout, autoAck);
+            if (first == null) return messages;
+            messages.add(first);
+            while (messages.size() < maxCount && this.count > 0) {
+                final byte[] message;
+                try {
+                    message = next();
+                } catch (final IOException e) {
+                    break; // the messages which were read are returned, the next segment is read with the next receive
+                }
+                if (message == null) break;
+                messages.add(new MessageContainer(S3QueueFactory.this, message, 0));
             }
+            return messages;
+        }
+
+        @Override
+        public void acknowledge(final long deliveryTag) throws IOException {
+            // do nothing, this class does not provide a message acknowledge function
+        }
+
+        @Override
+        public void reject(final long deliveryTag) throws IOException {
+            // do nothing, this class does not provide a message reject function
+        }
 
-            @Override
-            public void close() throws IOException {
-                // nothing to close
+        @Override
+        public void recover() throws IOException {
+            // do nothing, this class does not provide a message recover function
+        }
+
+        @Override
+        public synchronized long available() throws IOException {
+            return this.count + this.buffer.size();
+        }
+
+        @Override
+        public synchronized List<MessageContainer> peek(final int count) throws IOException {
+            // a range read from the pointer: the head segment is kept for the next receive, later segments are only read
+            final List<MessageContainer> messages = new ArrayList<>();
+            if (this.headMessages == null && this.head < this.tail) this.headMessages = readSegment(this.head);
+            long s = this.head;
+            List<byte[]> segment = this.headMessages;
+            int p = this.offset;
+            while (messages.size() < count && segment != null) {
+                if (p < segment.size()) {
+                    messages.add(new MessageContainer(S3QueueFactory.this, segment.get(p++), 0));
+                } else {
+                    s++;
+                    segment = s < this.tail ? readSegment(s) : null;
+                    p = 0;
+                }
+            }
+            // messages which are not yet written to a segment come last
+            for (int i = 0; messages.size() < count && i < this.buffer.size(); i++) {
+                messages.add(new MessageContainer(S3QueueFactory.this, this.buffer.get(i), 0));
             }
+            return messages;
+        }
+
+        @Override
+        public synchronized void clear() throws IOException {
+            this.buffer.clear();
+            for (long s = this.head; s < this.tail; s++) this.consumed.add(s);
+            this.head = this.tail;
+            this.offset = 0;
+            this.headMessages = null;
+            this.count = 0;
+            this.dirty = true;
+            commit();
+        }
+
+        @Override
+        public void close() throws IOException {
+            commit();
+        }
 
-        };
     }
 
     @Override
     public void close() {
-        this.close();
+        this.flusher.shutdown();
+        this.queues.values().forEach(queue -> {
+            try {
+                queue.close();
+            } catch (final IOException e) {
+                Logger.warn(this.getClass(), "S3QueueFactory: close failed for " + queue.dir, e);
+            }
+        });
     }
 
 }
@@ -27,6 +27,8 @@ public enum ShardingMethod {
     LOOKUP,        // lookup a queue with the hashing key; if not determined yet, use LEAST_FILLED
     BALANCE,       // like LOOKUP, but if LOOKUP would return a queue with most entries and there exist one queue with none entries, the queue is switched to the empty one
     RANDOM,        // just a random queue
-    FIRST;          // the last queue
+    FIRST,         // the last queue
+    CONSISTENT_HASH, // rendezvous hashing of the hashing key: a key keeps its queue if queues are added or removed
+    BOUNDED_HASH;  // like CONSISTENT_HASH, but a queue which is much fuller than the average is skipped for the next one of the key
     
 }
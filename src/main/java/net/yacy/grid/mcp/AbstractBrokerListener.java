@@ -20,27 +20,30 @@
 package net.yacy.grid.mcp;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import ai.susi.mind.SusiAction;
 import ai.susi.mind.SusiThought;
 import net.yacy.grid.Services;
 import net.yacy.grid.YaCyServices;
+import net.yacy.grid.io.messages.AbstractBroker;
 import net.yacy.grid.io.messages.AvailableContainer;
 import net.yacy.grid.io.messages.GridBroker;
 import net.yacy.grid.io.messages.GridQueue;
 import net.yacy.grid.io.messages.MessageContainer;
+import net.yacy.grid.io.messages.QueueDepthMonitor;
+import net.yacy.grid.tools.LatencyHistogram;
 import net.yacy.grid.tools.Logger;
 import net.yacy.grid.tools.Memory;
+import net.yacy.grid.tools.SlidingWindowCounter;
 
 public abstract class AbstractBrokerListener implements BrokerListener {
 
@@ -50,7 +53,18 @@ public abstract class AbstractBrokerListener implements BrokerListener {
     private final GridQueue[] sourceQueues;
     private final int threadCount;
     private final List<QueueListener> threads;
-    private final AtomicInteger targetFill;
+    private final boolean shared;
+    private final QueueScheduler scheduler;
+    private final ConcurrencyLimiter limiter;
+    private final Backpressure backpressure;
+    private final SlidingWindowCounter throughput; // the number of processed messages within the last minute
+    private final Map<String, LatencyHistogram[]> latencies; // for each action, a latency histogram of each ActionResult
+
+    private final static Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>(); // the limiters of all listeners in this process
+    private final static Map<String, AbstractBrokerListener> listeners = new ConcurrentHashMap<>(); // all listeners in this process
+
+    private final static long QUEUE_RECEIVE_TIMEOUT = 10000; // time in milliseconds that a listener of one queue waits for a message
+    private final static long SHARED_RECEIVE_TIMEOUT = 100; // time in milliseconds that a shared listener waits on one queue before it turns to the next one
 
     public AbstractBrokerListener(final Configuration config, final Services service, final int threadCount) {
         this.config = config;
@@ -60,7 +74,20 @@ public abstract class AbstractBrokerListener implements BrokerListener {
         //    this.threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(this.threads);
         this.shallRun = true;
         this.threads = new ArrayList<>();
-        this.targetFill = new AtomicInteger(0);
+        this.throughput = new SlidingWindowCounter(60);
+        this.latencies = new ConcurrentHashMap<>();
+        listeners.put(service.name(), this);
+        // with the shared scheduler, all threads listen to all queues instead of having dedicated threads for each queue
+        this.shared = "shared".equals(config.properties.get("grid.listener.scheduler")) && this.sourceQueues.length > 1;
+        this.scheduler = this.shared ? new QueueScheduler() : null;
+        // with an adaptive concurrency, listener threads are started for the maximum and the limiter decides how many of them may work
+        final int minConcurrency = config.properties.containsKey("grid.listener.concurrency.min") ? Integer.parseInt(config.properties.get("grid.listener.concurrency.min")) : 0;
+        final int maxConcurrency = config.properties.containsKey("grid.listener.concurrency.max") ? Integer.parseInt(config.properties.get("grid.listener.concurrency.max")) : 0;
+        this.limiter = maxConcurrency > 0 ? new ConcurrencyLimiter(service.name(), minConcurrency, maxConcurrency, threadCount) : null;
+        if (this.limiter != null) limiters.put(service.name(), this.limiter);
+        // the size of the target queues is held below the throttling value
+        final int queueThrottling = config.gridBroker.getQueueThrottling();
+        this.backpressure = queueThrottling > 0 && service.getTargetServices().length > 0 ? new Backpressure(queueThrottling / 10 * 9) : null;
     }
 
     @Override
@@ -87,16 +114,29 @@ public abstract class AbstractBrokerListener implements BrokerListener {
             Logger.error(this.getClass(), "Service " + this.service.name() + ": AvailableContainer not available: " + e.getMessage(), e);
         }
 
+        // let the queue depth monitor sample the target queues for throttling
+        for (final Services targetService: this.service.getTargetServices()) {
+            for (final GridQueue targetQueue: targetService.getSourceQueues()) {
+                this.config.gridBroker.getDepthMonitor().watch(targetService, targetQueue);
+            }
+        }
+
+        // messages for this service may now be handed over within this process
+        this.config.gridBroker.attachLocalService(this.service);
+
         // start the listeners
-        final int threadsPerQueue = Math.max(1, this.threadCount / this.sourceQueues.length);
-        Logger.info(this.getClass(), "Broker Listener: starting " + threadsPerQueue + " threads for each of the " + this.sourceQueues.length + " queues");
-        for (final GridQueue queue: this.sourceQueues) {
-            for (int qc = 0; qc < threadsPerQueue; qc++) {
-                final QueueListener listener = new QueueListener(queue, qc, this.config.gridBroker.isAutoAck(), this.config.gridBroker.getQueueThrottling());
+        if (this.shared) {
+            // the scheduler needs the size of the source queues
+            for (final GridQueue queue: this.sourceQueues) this.config.gridBroker.getDepthMonitor().watch(this.service, queue);
+            final int threads = Math.max(1, threadCount());
+            Logger.info(this.getClass(), "Broker Listener: starting " + threads + " threads for all of the " + this.sourceQueues.length + " queues");
+            for (int qc = 0; qc < threads; qc++) {
+                final QueueListener listener = new QueueListener(null, qc, this.config.gridBroker.isAutoAck());
                 listener.start();
                 this.threads.add(listener);
-                Logger.info(this.getClass(), "Broker Listener for service " + this.service.name() + ", queue " + queue + " started thread " + qc);
             }
+        } else {
+            startQueueListeners();
         }
 
         // start the caretaker
@@ -105,11 +145,12 @@ public abstract class AbstractBrokerListener implements BrokerListener {
 
         // wait for termination, this happens when terminate() is called
         this.threads.forEach(thread -> {
+            final String queueName = thread.queueName == null ? "shared" : thread.queueName.name();
             try {
                 thread.join();
-                Logger.info(this.getClass(), "Broker Listener for service " + this.service.name() + ", queue " + thread.queueName + " terminated");
+                Logger.info(this.getClass(), "Broker Listener for service " + this.service.name() + ", queue " + queueName + " terminated");
             } catch (final InterruptedException e) {
-                Logger.warn(this.getClass(), "Broker Listener for service " + this.service.name() + ", queue " + thread.queueName + " interrupted", e);
+                Logger.warn(this.getClass(), "Broker Listener for service " + this.service.name() + ", queue " + queueName + " interrupted", e);
             }
         });
         try {
@@ -119,13 +160,98 @@ public abstract class AbstractBrokerListener implements BrokerListener {
         }
     }
 
+    private int threadCount() {
+        return this.limiter == null ? this.threadCount : this.limiter.getMaxLimit();
+    }
+
+    /**
+     * @return a map from service names to the concurrency limiters of the listeners in this process which have an adaptive concurrency
+     */
+    public static Map<String, ConcurrencyLimiter> getConcurrencyLimiters() {
+        return limiters;
+    }
+
+    private void startQueueListeners() {
+        final int threadsPerQueue = Math.max(1, threadCount() / this.sourceQueues.length);
+        Logger.info(this.getClass(), "Broker Listener: starting " + threadsPerQueue + " threads for each of the " + this.sourceQueues.length + " queues");
+        for (final GridQueue queue: this.sourceQueues) {
+            for (int qc = 0; qc < threadsPerQueue; qc++) {
+                final QueueListener listener = new QueueListener(queue, qc, this.config.gridBroker.isAutoAck());
+                listener.start();
+                this.threads.add(listener);
+                Logger.info(this.getClass(), "Broker Listener for service " + this.service.name() + ", queue " + queue + " started thread " + qc);
+            }
+        }
+    }
+
     @Override
     public int messagesPerMinute() {
-        int mpm = 0;
-        for (final QueueListener ql: this.threads) {
-            mpm += ql.messagesPerMinute();
+        return (int) this.throughput.sum();
+    }
+
+    /**
+     * @return the average number of processed messages per second within the last minute
+     */
+    public double messagesPerSecond() {
+        return this.throughput.rate();
+    }
+
+    /**
+     * @return a map from action names (type_queue) to latency histograms of processAction, one for each ActionResult ordinal
+     */
+    public Map<String, LatencyHistogram[]> getLatencies() {
+        return this.latencies;
+    }
+
+    /**
+     * @return a map from service names to the listeners in this process
+     */
+    public static Map<String, AbstractBrokerListener> getListeners() {
+        return listeners;
+    }
+
+    private void recordLatency(final String actionName, final ActionResult result, final long nanos) {
+        final LatencyHistogram[] histograms = this.latencies.computeIfAbsent(actionName, k -> {
+            final LatencyHistogram[] h = new LatencyHistogram[ActionResult.values().length];
+            for (int i = 0; i < h.length; i++) h[i] = new LatencyHistogram();
+            return h;
+        });
+        histograms[result.ordinal()].record(nanos / 1000);
+    }
+
+    /**
+     * the aggregated size of all target queues from the latest sample of the queue depth monitor.
+     * This does not block; queues which were not sampled yet are not counted.
+     * @return the number of messages in the target queues
+     */
+    private long targetFill() {
+        long targetQueueAggregator = 0;
+        for (final Services targetService: this.service.getTargetServices()) {
+            for (final GridQueue targetQueue: targetService.getSourceQueues()) {
+                final QueueDepthMonitor.Depth depth = this.config.gridBroker.getDepthMonitor().get(targetService, targetQueue);
+                if (depth != null) targetQueueAggregator += depth.getAvailable();
+            }
         }
-        return mpm;
+        return targetQueueAggregator;
+    }
+
+    /**
+     * feed the backpressure with the latest sample of the target queues
+     */
+    private void updateBackpressure() {
+        long depth = 0, time = 0;
+        double enqueueRate = 0.0d;
+        for (final Services targetService: this.service.getTargetServices()) {
+            for (final GridQueue targetQueue: targetService.getSourceQueues()) {
+                final QueueDepthMonitor.Depth d = this.config.gridBroker.getDepthMonitor().get(targetService, targetQueue);
+                if (d == null) continue;
+                depth += d.getAvailable();
+                enqueueRate += d.getEnqueueRate();
+                time = Math.max(time, d.getTime());
+            }
+        }
+        if (time <= this.backpressure.getSampleTime()) return;
+        this.backpressure.update(depth, enqueueRate, messagesPerMinute() / 60.0d, time);
     }
 
     private class Caretaker extends Thread {
@@ -133,18 +259,12 @@ public abstract class AbstractBrokerListener implements BrokerListener {
         @Override
         public void run() {
             while (AbstractBrokerListener.this.shallRun) {
-                // collect size of target queues:
-                int targetQueueAggregator = 0;
-                for (final Services targetService: AbstractBrokerListener.this.service.getTargetServices()) {
-                    for (final GridQueue targetQueue: targetService.getSourceQueues()) try {
-                        final AvailableContainer a = AbstractBrokerListener.this.config.gridBroker.available(targetService, targetQueue);
-                        targetQueueAggregator += a.getAvailable();
-                    } catch (final IOException e) {}
-                }
-                AbstractBrokerListener.this.targetFill.set(targetQueueAggregator);
+                final long targetQueueAggregator = AbstractBrokerListener.this.targetFill();
                 int mpm = AbstractBrokerListener.this.messagesPerMinute();
                 if (mpm > 0) {
-                    Logger.info(this.getClass(), "BrokerListener operates with " + mpm + " messages per minute; target queues size: " + targetQueueAggregator);
+                    final Backpressure backpressure = AbstractBrokerListener.this.backpressure;
+                    Logger.info(this.getClass(), "BrokerListener operates with " + mpm + " messages per minute; target queues size: " + targetQueueAggregator +
+                            (backpressure == null ? "" : "; backpressure rate: " + ((long) backpressure.getRate()) + " messages per second, downstream consumption: " + ((long) backpressure.getConsumption()) + " messages per second"));
                 }
                 // wait a bit
                 try {Thread.sleep(60000);} catch (final InterruptedException ee) {}
@@ -152,28 +272,61 @@ public abstract class AbstractBrokerListener implements BrokerListener {
         }
     }
 
+    /**
+     * The QueueScheduler chooses the next source queue for the shared listeners with a smooth weighted round-robin.
+     * The weight of a queue is its size in the latest sample of the queue depth monitor, plus one: queues with many messages
+     * are visited more often, but every queue is visited in turn, also if it was empty at the time of the sample.
+     */
+    private class QueueScheduler {
+
+        private final long[] current;
+
+        private QueueScheduler() {
+            this.current = new long[AbstractBrokerListener.this.sourceQueues.length];
+        }
+
+        private long weight(final GridQueue queue) {
+            try {
+                return AbstractBrokerListener.this.config.gridBroker.getDepthMonitor().available(AbstractBrokerListener.this.service, queue).getAvailable() + 1;
+            } catch (final IOException e) {
+                return 1;
+            }
+        }
+
+        private GridQueue next() {
+            final GridQueue[] queues = AbstractBrokerListener.this.sourceQueues;
+            final long[] weights = new long[queues.length];
+            for (int i = 0; i < queues.length; i++) weights[i] = weight(queues[i]); // outside of the lock, this may ask the broker
+            synchronized (this) {
+                long total = 0;
+                int best = 0;
+                for (int i = 0; i < queues.length; i++) {
+                    this.current[i] += weights[i];
+                    total += weights[i];
+                    if (this.current[i] > this.current[best]) best = i;
+                }
+                this.current[best] -= total;
+                return queues[best];
+            }
+        }
+    }
+
     private class QueueListener extends Thread {
-        private final GridQueue queueName;
+        private final GridQueue queueName; // null for a shared listener which receives from all source queues
         private final int threadCounter;
         private final boolean autoAck;
-        private final LinkedList<Long> tracker;
-        private final long targetQueueThrottling;
 
-        public QueueListener(final GridQueue queueName, final int threadCounter, final boolean autoAck, final int queueThrottling) {
+        public QueueListener(final GridQueue queueName, final int threadCounter, final boolean autoAck) {
             this.queueName = queueName;
             this.threadCounter = threadCounter;
             this.autoAck = autoAck;
-            this.targetQueueThrottling = queueThrottling;
-            this.tracker = new LinkedList<>();
-        }
-
-        public int messagesPerMinute() {
-            return this.tracker.size();
         }
 
         @Override
         public void run() {
-            try {
+            if (this.queueName == null) {
+                Logger.info(this.getClass(), "Started shared QueueListener, thread " + this.threadCounter);
+            } else try {
                 final AvailableContainer a = AbstractBrokerListener.this.config.gridBroker.available(AbstractBrokerListener.this.service, this.queueName);
                 Logger.info(this.getClass(), "Started QueueListener for Queue " + a.getQueue() + ", thread " + this.threadCounter + ": " + a.getAvailable() + " entries.");
             } catch (final IOException e) {
@@ -185,9 +338,12 @@ public abstract class AbstractBrokerListener implements BrokerListener {
                     try {Thread.sleep(1000);} catch (final InterruptedException ee) {}
                     continue; // wait until initialization complete
                 }
-                final String payload = "";
+                GridQueue queue = this.queueName;
                 MessageContainer mc = null;
-                ActionResult result = ActionResult.SUCCESS;
+                SusiThought process = null;
+                boolean requeue = false;
+                boolean permit = false, overload = false;
+                long processTime = -1;
                 try {
                     // check short memory status
                     if (Memory.shortStatus()) {
@@ -195,56 +351,64 @@ public abstract class AbstractBrokerListener implements BrokerListener {
                         AbstractBrokerListener.this.config.clearCaches();
                     }
 
-                    // check target throttling
-                    if (this.targetQueueThrottling > 0) {
-                        final long throttlingStart = this.targetQueueThrottling / 10 * 9;
-                        final long targetQueueAggregator = AbstractBrokerListener.this.targetFill.get();
-                        if (targetQueueAggregator > throttlingStart) {
-                            Logger.info(this.getClass(), "AbstractBrokerListener.QueueListener target queue aggregated size = " + targetQueueAggregator + ", throttling start is " + throttlingStart);
-                            final long throttlingTime = Math.min(10000L, (targetQueueAggregator - throttlingStart) / this.targetQueueThrottling * 100000L);
-                            if (throttlingTime > 1000L) {
-                                Logger.info(this.getClass(), "AbstractBrokerListener.QueueListener throttling = " + this.targetQueueThrottling + ", sleeping for " + throttlingTime + " milliseconds");
-                                try {Thread.sleep(throttlingTime);} catch (final InterruptedException e) {}
-                            }
-                        }
-                    }
-
                     // wait until message arrives
-                    mc = AbstractBrokerListener.this.config.gridBroker.receive(AbstractBrokerListener.this.service, this.queueName, 10000, this.autoAck);
+                    queue = this.queueName == null ? AbstractBrokerListener.this.scheduler.next() : this.queueName;
+                    mc = AbstractBrokerListener.this.config.gridBroker.receive(AbstractBrokerListener.this.service, queue, this.queueName == null ? SHARED_RECEIVE_TIMEOUT : QUEUE_RECEIVE_TIMEOUT, this.autoAck);
                     if (mc != null && mc.getPayload() != null && mc.getPayload().length > 0) {
-                        result = handleMessage(mc, this.queueName.name(), this.threadCounter);
-                        // track number of handles messages
-                        long time = System.currentTimeMillis();
-                        this.tracker.add(time);
-                        time = time - 60000;
-                        while (this.tracker.size() > 0 && this.tracker.getFirst() < time) this.tracker.removeFirst();
+                        // wait until the target queues can take more messages. The token is taken after the receive,
+                        // otherwise each empty receive would use up a token and the rate of processed messages would be too low.
+                        if (AbstractBrokerListener.this.backpressure != null) {
+                            do {
+                                AbstractBrokerListener.this.updateBackpressure();
+                            } while (!AbstractBrokerListener.this.backpressure.acquire(1000));
+                        }
+                        // wait until the limiter allows to process one more message. The permit is taken after the receive
+                        // because threads which wait on an empty queue must not hold permits which the busy queues need.
+                        // The message is already received, so the thread waits until it gets the permit.
+                        if (AbstractBrokerListener.this.limiter != null) {
+                            while (!AbstractBrokerListener.this.limiter.acquire(1000)) {}
+                            permit = true;
+                        }
+                        try {
+                            process = SusiThought.fromMessage(mc.getPayload());
+                        } catch (final JSONException e) {
+                            // happens if the payload has a wrong form; this will never succeed
+                            Logger.warn(this.getClass(), "QueueListener: message syntax error in queue " + queue + ": " + e.getMessage(), e);
+                            requeue = !deadLetter(queue, mc.getPayload());
+                        }
+                        if (process != null) {
+                            final long start = System.currentTimeMillis();
+                            final ActionResult result = handleMessage(process, queue.name(), this.threadCounter);
+                            processTime = System.currentTimeMillis() - start;
+                            overload = result == ActionResult.FAIL_RETRY;
+                            if (result == ActionResult.FAIL_RETRY) requeue = !retry(queue, process);
+                        }
+                        // track number of handled messages
+                        AbstractBrokerListener.this.throughput.increment();
                     }
-                    // try {Thread.sleep(1000);} catch (InterruptedException ee) {}
-                } catch (final JSONException e) {
-                    // happens if the payload has a wrong form
-                    Logger.warn(this.getClass(), "QueueListener: message syntax error with '" + payload + "' in queue: " + e.getMessage(), e);
-                    try {Thread.sleep(10000);} catch (final InterruptedException ee) {}
                 } catch (final Throwable e) {
                     Logger.warn(this.getClass(), "QueueListener: " + e.getMessage(), e);
-                    try {Thread.sleep(10000);} catch (final InterruptedException ee) {}
-                    String m = e.getMessage();
-                    if (m == null) m = e.getCause().getMessage();
-                    if (m.equals(GridBroker.TARGET_LIMIT_MESSAGE)) {
-                        // do not process message!
-                        if (!this.autoAck && mc != null && mc.getDeliveryTag() > 0) {
-                            // reject the message
-                            try {
-                                AbstractBrokerListener.this.config.gridBroker.reject(AbstractBrokerListener.this.service, this.queueName, mc.getDeliveryTag());
-                            } catch (final IOException ee) {
-                                Logger.warn(this.getClass(), "QueueListener: cannot acknowledge queue: " + ee.getMessage(), ee);
-                            }
-                        }
+                    if (process != null) {
+                        // the processing failed: try again later, this thread continues with the next message
+                        overload = true;
+                        requeue = !retry(queue, process);
+                    } else if (mc == null) {
+                        // the broker failed, not the message: wait a bit before the next receive
+                        try {Thread.sleep(1000);} catch (final InterruptedException ee) {}
                     }
                 } finally {
+                    if (permit) {
+                        if (processTime >= 0 || overload) AbstractBrokerListener.this.limiter.release(Math.max(0, processTime), !overload);
+                        else AbstractBrokerListener.this.limiter.release();
+                    }
                     if (!this.autoAck && mc != null && mc.getDeliveryTag() > 0) {
-                        // acknowledge the message
                         try {
-                            AbstractBrokerListener.this.config.gridBroker.acknowledge(AbstractBrokerListener.this.service, this.queueName, mc.getDeliveryTag());
+                            if (requeue) {
+                                // the message could not be stored for a retry: give it back to the broker
+                                AbstractBrokerListener.this.config.gridBroker.reject(AbstractBrokerListener.this.service, queue, mc.getDeliveryTag());
+                            } else {
+                                AbstractBrokerListener.this.config.gridBroker.acknowledge(AbstractBrokerListener.this.service, queue, mc.getDeliveryTag());
+                            }
                         } catch (final IOException e) {
                             Logger.warn(this.getClass(), "QueueListener: cannot acknowledge queue: " + e.getMessage(), e);
                         }
@@ -254,12 +418,50 @@ public abstract class AbstractBrokerListener implements BrokerListener {
         }
     }
 
-    private ActionResult handleMessage(final MessageContainer mc, final String processName, final int processNumber) {
+    /**
+     * send a failed thought again to its queue after a delay which grows with each attempt.
+     * After the maximum number of attempts, the thought is moved to the dead-letter queue.
+     * @param queue the queue of the thought
+     * @param process the thought
+     * @return true if the thought was stored for a retry or in the dead-letter queue
+     */
+    private boolean retry(final GridQueue queue, final SusiThought process) {
+        final GridBroker broker = this.config.gridBroker;
+        final int attempts = process.getAttempts() + 1;
+        if (attempts > broker.getRetryAttempts()) {
+            Logger.warn(this.getClass(), "QueueListener: message in queue " + queue + " failed " + process.getAttempts() + " retries, moving it to the dead-letter queue");
+            return deadLetter(queue, process.toMessage());
+        }
+        final long delay = broker.retryDelay(attempts);
+        try {
+            broker.sendDelayed(this.service, queue, process.setAttempts(attempts).toMessage(), delay);
+            Logger.info(this.getClass(), "QueueListener: retry " + attempts + " of message in queue " + queue + " in " + delay + " milliseconds");
+            return true;
+        } catch (final IOException e) {
+            Logger.warn(this.getClass(), "QueueListener: cannot retry message in queue " + queue + ": " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * move a message which can never be processed to the dead-letter queue of its queue
+     * @param queue the queue of the message
+     * @param message the message
+     * @return true if the message was stored in the dead-letter queue
+     */
+    private boolean deadLetter(final GridQueue queue, final byte[] message) {
+        try {
+            this.config.gridBroker.send(this.service, AbstractBroker.deadLetterQueue(queue), message);
+            return true;
+        } catch (final IOException e) {
+            Logger.warn(this.getClass(), "QueueListener: cannot move message to the dead-letter queue of " + queue + ": " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private ActionResult handleMessage(final SusiThought process, final String processName, final int processNumber) {
         Thread.currentThread().setName(processName + "-" + processNumber + "-running");
 
-        final String payload = new String(mc.getPayload(), StandardCharsets.UTF_8);
-        final JSONObject json = new JSONObject(new JSONTokener(payload));
-        final SusiThought process = new SusiThought(json);
         final JSONArray data = process.getData();
         final List<SusiAction> actions = process.getActions();
 
@@ -290,28 +492,19 @@ public abstract class AbstractBrokerListener implements BrokerListener {
             }
 
             // process the action using the previously acquired execution thread
+            final long start = System.nanoTime();
             final ActionResult processed = processAction(action, data, processName, processNumber);
+            recordLatency(type + "_" + queue, processed, System.nanoTime() - start);
             if (processed == ActionResult.SUCCESS) {
                 // send next embedded action(s) to queue
                 final JSONObject ao = action.toJSONClone();
                 if (ao.has("actions")) {
                     final JSONArray embeddedActions = ao.getJSONArray("actions");
-                    for (int j = 0; j < embeddedActions.length(); j++) {
-                        try {
-                            loadNextAction(new SusiAction(embeddedActions.getJSONObject(j)), data);
-                        } catch (UnsupportedOperationException | JSONException e) {
-                            Logger.warn(this.getClass(), e);
-                        } catch (final IOException e) {
-                            if (e.getMessage().equals(GridBroker.TARGET_LIMIT_MESSAGE)) return ActionResult.FAIL_RETRY;
-                            Logger.warn(this.getClass(), e);
-                            // do a re-try
-                            try {Thread.sleep(10000);} catch (final InterruptedException e1) {}
-                            try {
-                                loadNextAction(new SusiAction(embeddedActions.getJSONObject(j)), data);
-                            } catch (UnsupportedOperationException | JSONException | IOException ee) {
-                                Logger.warn(this.getClass(), e);
-                            }
-                        }
+                    try {
+                        loadNextActions(embeddedActions, data);
+                    } catch (final IOException e) {
+                        if (GridBroker.TARGET_LIMIT_MESSAGE.equals(e.getMessage())) return ActionResult.FAIL_RETRY;
+                        Logger.warn(this.getClass(), e);
                     }
                 }
             }
@@ -328,18 +521,60 @@ public abstract class AbstractBrokerListener implements BrokerListener {
         if (type == null || type.length() == 0) throw new UnsupportedOperationException("missing type in action");
         final String queue = action.getStringAttr("queue");
         if (queue == null || queue.length() == 0) throw new UnsupportedOperationException("missing queue in action");
+        this.config.gridBroker.send(YaCyServices.valueOf(type), new GridQueue(queue), nextActionMessage(action, json));
+    }
+
+    /**
+     * send a list of actions to their queues. Actions with the same target queue are sent as one batch.
+     * @param actions the actions
+     * @param json the data for each of the actions
+     * @throws IOException if a batch could not be delivered and could not be scheduled for a delayed re-try
+     */
+    private void loadNextActions(final JSONArray actions, final JSONArray json) throws IOException {
+        final Map<String, List<byte[]>> batches = new LinkedHashMap<>();
+        for (int j = 0; j < actions.length(); j++) {
+            try {
+                final SusiAction action = new SusiAction(actions.getJSONObject(j));
+                final String type = action.getStringAttr("type");
+                if (type == null || type.length() == 0) throw new UnsupportedOperationException("missing type in action");
+                final String queue = action.getStringAttr("queue");
+                if (queue == null || queue.length() == 0) throw new UnsupportedOperationException("missing queue in action");
+                YaCyServices.valueOf(type); // fail early on unknown services
+                batches.computeIfAbsent(type + "_" + queue, k -> new ArrayList<>()).add(nextActionMessage(action, json));
+            } catch (UnsupportedOperationException | IllegalArgumentException | JSONException e) {
+                Logger.warn(this.getClass(), e);
+            }
+        }
+        for (final Map.Entry<String, List<byte[]>> batch: batches.entrySet()) {
+            final int p = batch.getKey().indexOf('_');
+            final YaCyServices service = YaCyServices.valueOf(batch.getKey().substring(0, p));
+            final GridQueue queue = new GridQueue(batch.getKey().substring(p + 1));
+            try {
+                this.config.gridBroker.send(service, queue, batch.getValue());
+            } catch (final IOException e) {
+                if (GridBroker.TARGET_LIMIT_MESSAGE.equals(e.getMessage())) throw e;
+                Logger.warn(this.getClass(), e);
+                // do a delayed re-try which does not block this thread
+                final long delay = this.config.gridBroker.retryDelay(1);
+                for (final byte[] message: batch.getValue()) this.config.gridBroker.sendDelayed(service, queue, message, delay);
+            }
+        }
+    }
 
-        // create a new Thought and push it to the next queue
-        final JSONObject nextProcess = new JSONObject()
-                .put("data", json)
-                .put("actions", new JSONArray().put(action.toJSONClone()));
-        final byte[] b = nextProcess.toString(2).getBytes(StandardCharsets.UTF_8);
-        this.config.gridBroker.send(YaCyServices.valueOf(type), new GridQueue(queue), b);
+    private static byte[] nextActionMessage(final SusiAction action, final JSONArray json) {
+        // create a new Thought which is pushed to the next queue
+        final SusiThought nextProcess = new SusiThought()
+                .setData(json)
+                .addAction(action);
+        return nextProcess.toMessage();
     }
 
     @Override
     public void stop() {
         this.shallRun = false;
+        if (this.limiter != null) limiters.remove(this.service.name(), this.limiter);
+        listeners.remove(this.service.name(), this);
+        this.config.gridBroker.detachLocalService(this.service);
     }
 
 }
\ No newline at end of file
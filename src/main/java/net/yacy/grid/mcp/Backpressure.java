@@ -0,0 +1,130 @@
+/**
+ *  Backpressure
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.mcp;
+
+/**
+ * The Backpressure keeps the size of the target queues of a broker listener near a set-point.
+ * It is a token bucket: a listener must take a token before it takes a new message. The refill rate is
+ * computed with each new sample of the target queues:
+ *
+ *   target rate = consumption + (set-point - depth) / horizon
+ *
+ * where the consumption is the number of messages per second which the downstream services take from the
+ * target queues. It is not measured directly but derived from the messages that this process sends to the
+ * target queues and the change of their size. A queue above the set-point therefore gets less than it can
+ * consume, a queue below the set-point gets more, until the difference is closed within the horizon time.
+ * The target rate is converted to a rate of processed messages with the measured fan-out, the number of
+ * target messages which are produced for one processed message.
+ */
+public class Backpressure {
+
+    private final static double HORIZON = 10.0d;     // time in seconds in which a difference to the set-point shall be closed
+    private final static double MIN_RATE = 1.0d;     // messages per second which are always allowed, so the measurement does not stall
+    private final static double SMOOTHING = 0.5d;    // weight of a new measurement of the consumption
+
+    private final long setpoint;
+    private double rate, tokens, consumption;
+    private long refillTime, sampleTime, sampleDepth;
+
+    /**
+     * create a backpressure
+     * @param setpoint the aggregated size of the target queues which shall be held
+     */
+    public Backpressure(final long setpoint) {
+        this.setpoint = setpoint;
+        this.rate = Double.MAX_VALUE; // no limit until the first measurement
+        this.tokens = 1.0d;
+        this.consumption = 0.0d;
+        this.refillTime = System.currentTimeMillis();
+        this.sampleTime = 0;
+        this.sampleDepth = 0;
+    }
+
+    /**
+     * @return the time of the latest sample which was used to compute the rate
+     */
+    public synchronized long getSampleTime() {
+        return this.sampleTime;
+    }
+
+    /**
+     * compute the rate from a new sample of the target queues
+     * @param depth the aggregated size of the target queues
+     * @param enqueueRate the number of messages per second which this process sent to the target queues
+     * @param processRate the number of messages per second which the listener processed
+     * @param time the time of the sample
+     */
+    public synchronized void update(final long depth, final double enqueueRate, final double processRate, final long time) {
+        if (time <= this.sampleTime) return;
+        if (this.sampleTime > 0) {
+            final double seconds = (time - this.sampleTime) / 1000.0d;
+            final double drain = Math.max(0.0d, enqueueRate - (depth - this.sampleDepth) / seconds);
+            this.consumption = this.consumption == 0.0d ? drain : this.consumption + SMOOTHING * (drain - this.consumption);
+        }
+        this.sampleTime = time;
+        this.sampleDepth = depth;
+        final double targetRate = this.consumption + (this.setpoint - depth) / HORIZON;
+        final double fanout = processRate > 0.0d && enqueueRate > 0.0d ? enqueueRate / processRate : 1.0d;
+        refill();
+        this.rate = Math.max(MIN_RATE, targetRate / fanout);
+    }
+
+    private void refill() {
+        final long now = System.currentTimeMillis();
+        // the bucket holds the tokens of one second, that is the largest burst
+        this.tokens = Math.min(Math.max(1.0d, this.rate), this.tokens + this.rate * (now - this.refillTime) / 1000.0d);
+        this.refillTime = now;
+    }
+
+    /**
+     * wait for a token
+     * @param timeout the maximum waiting time in milliseconds
+     * @return true if a token was taken, false after the timeout
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            refill();
+            if (this.tokens >= 1.0d) {
+                this.tokens -= 1.0d;
+                return true;
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            // wait until the next token is due; the rate may change during that time
+            this.wait(Math.max(1, Math.min(remaining, (long) Math.ceil((1.0d - this.tokens) * 1000.0d / this.rate))));
+        }
+    }
+
+    /**
+     * @return the number of messages per second which may be processed now
+     */
+    public synchronized double getRate() {
+        return this.rate;
+    }
+
+    /**
+     * @return the estimated number of messages per second which the downstream services take from the target queues
+     */
+    public synchronized double getConsumption() {
+        return this.consumption;
+    }
+}
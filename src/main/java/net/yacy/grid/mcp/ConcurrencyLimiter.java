@@ -0,0 +1,164 @@
+/**
+ *  ConcurrencyLimiter
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.mcp;
+
+import net.yacy.grid.tools.Logger;
+
+/**
+ * The ConcurrencyLimiter limits the number of messages which a broker listener processes at the same time.
+ * The limit is adapted with AIMD (additive increase, multiplicative decrease):
+ * - each successful message which was processed in time raises the limit by 1/limit, that is one more
+ *   message in flight after a full round of the current limit;
+ * - a failure, or a short-term latency which is much higher than the long-term latency, cuts the limit by
+ *   the backoff factor. Only one cut is done within the time of one processing, because all messages which
+ *   are in flight at the time of an overload are likely to report it.
+ * A rising latency shows that a downstream system (i.e. the search index) is saturated before it starts to fail.
+ * Both latencies are moving averages, the short-term one over some ten messages, the long-term one over some minutes:
+ * the latency of a single message may vary a lot, i.e. with the size of a loaded page, only the ratio of the averages
+ * shows an overload. The long-term average is not updated during an overload, otherwise the overload would raise its
+ * own reference. Only at the lowest limit it follows the latency within some hundred messages, because then the
+ * latency is not caused by the concurrency.
+ */
+public class ConcurrencyLimiter {
+
+    private final static double BACKOFF = 0.75d;    // the factor of the multiplicative decrease
+    private final static double TOLERANCE = 2.0d;   // latencies up to this factor of the baseline latency are not an overload
+    private final static double SMOOTHING = 0.1d;   // weight of a new latency in the short-term moving average
+    private final static double BASELINE_WINDOW = 300000.0d; // time in milliseconds of the long-term moving average, the baseline
+    private final static double BASELINE_SMOOTHING = 0.005d; // weight of a new latency in the baseline at the lowest limit
+    private final static int WARMUP = 100;          // number of messages which are only used to compute the baseline, without any adaption
+
+    private final String name;
+    private final int minLimit, maxLimit;
+    private double limit;
+    private int inFlight;
+    private double latency, baseline; // the short-term and the long-term moving average of the latency in milliseconds
+    private int samples; // the number of latencies seen, up to WARMUP
+    private long lastDecrease, lastSample;
+
+    /**
+     * create a limiter
+     * @param name the name of the limited service, used for logging
+     * @param minLimit the lowest limit, at least 1
+     * @param maxLimit the highest limit
+     * @param initialLimit the limit at start time
+     */
+    public ConcurrencyLimiter(final String name, final int minLimit, final int maxLimit, final int initialLimit) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.inFlight = 0;
+        this.latency = 0.0d;
+        this.baseline = 0.0d;
+        this.samples = 0;
+        this.lastDecrease = 0;
+        this.lastSample = 0;
+    }
+
+    /**
+     * wait until a message may be processed
+     * @param timeout the maximum waiting time in milliseconds
+     * @return true if the message may be processed, then release() must be called after processing; false after the timeout
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (this.inFlight >= getLimit()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            this.wait(remaining);
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * release a permit without a measurement, i.e. if no message was received
+     */
+    public synchronized void release() {
+        this.inFlight--;
+        this.notifyAll();
+    }
+
+    /**
+     * release a permit after a message was processed and adapt the limit
+     * @param time the processing time in milliseconds
+     * @param success false if the processing failed for a reason that may be caused by an overload
+     */
+    public synchronized void release(final long time, final boolean success) {
+        this.inFlight--;
+        final long now = System.currentTimeMillis();
+        final long elapsed = now - this.lastSample;
+        this.lastSample = now;
+        if (this.samples < WARMUP) {
+            // the baseline is the plain average of the first latencies
+            this.samples++;
+            this.baseline += (time - this.baseline) / this.samples;
+            this.latency = this.baseline;
+            this.notifyAll();
+            return;
+        }
+        this.latency = this.latency + SMOOTHING * (time - this.latency);
+        final boolean overload = this.latency > TOLERANCE * this.baseline + 1.0d;
+        if (getLimit() <= this.minLimit) {
+            this.baseline = this.baseline + BASELINE_SMOOTHING * (time - this.baseline);
+        } else if (!overload) {
+            this.baseline = this.baseline + Math.min(1.0d, elapsed / BASELINE_WINDOW) * (time - this.baseline);
+        }
+        if (!success || overload) {
+            if (now - this.lastDecrease > this.latency) {
+                final int before = getLimit();
+                this.limit = Math.max(this.minLimit, this.limit * BACKOFF);
+                this.lastDecrease = now;
+                if (getLimit() != before) Logger.debug(this.getClass(), "ConcurrencyLimiter " + this.name + ": limit decreased to " + getLimit() + (success ? ", latency " + ((long) this.latency) + " ms, baseline " + ((long) this.baseline) + " ms" : ", processing failed"));
+            }
+        } else if (this.inFlight + 1 >= getLimit()) {
+            // increase only if the limit was used; otherwise there is no evidence that a higher limit is possible
+            this.limit = Math.min(this.maxLimit, this.limit + 1.0d / this.limit);
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * @return the current number of messages which may be processed at the same time
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * @return the number of messages which are processed now
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * @return the moving average of the processing time in milliseconds
+     */
+    public synchronized long getLatency() {
+        return (long) this.latency;
+    }
+
+    public int getMaxLimit() {
+        return this.maxLimit;
+    }
+}
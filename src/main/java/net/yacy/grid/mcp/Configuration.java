@@ -39,12 +39,16 @@ import net.yacy.grid.YaCyServices;
 import net.yacy.grid.http.APIHandler;
 import net.yacy.grid.io.assets.GridStorage;
 import net.yacy.grid.io.control.GridControl;
+import net.yacy.grid.io.db.CommitPolicy;
 import net.yacy.grid.io.db.JSONDatabase;
 import net.yacy.grid.io.db.PeerDatabase;
 import net.yacy.grid.io.index.BoostsFactory;
 import net.yacy.grid.io.index.ElasticIndexFactory;
 import net.yacy.grid.io.index.GridIndex;
 import net.yacy.grid.io.messages.GridBroker;
+import net.yacy.grid.io.messages.MapDBStackQueueFactory;
+import net.yacy.grid.io.messages.MessageCodec;
+import net.yacy.grid.io.messages.RabbitQueueFactory;
 import net.yacy.grid.mcp.api.info.StatusService;
 import net.yacy.grid.tools.Logger;
 import net.yacy.grid.tools.MapUtil;
@@ -96,7 +100,11 @@ public class Configuration {
         // create databases
         final File dbPath = new File(this.gridServicePath, "db");
         if (!dbPath.exists()) dbPath.mkdirs();
-        this.peerDB = new PeerDatabase(dbPath);
+        final CommitPolicy dbCommitPolicy = CommitPolicy.parse(
+                this.properties.containsKey("grid.db.commit") ? this.properties.get("grid.db.commit") : "operation",
+                this.properties.containsKey("grid.db.commit.interval") ? Long.parseLong(this.properties.get("grid.db.commit.interval")) : 1000L,
+                this.properties.containsKey("grid.db.commit.count") ? Integer.parseInt(this.properties.get("grid.db.commit.count")) : 100);
+        this.peerDB = new PeerDatabase(dbPath, dbCommitPolicy);
         this.peerJsonDB = new JSONDatabase(this.peerDB);
 
         // create broker
@@ -106,7 +114,41 @@ public class Configuration {
         final boolean autoAck = this.properties.containsKey("grid.broker.autoAck") && this.properties.get("grid.broker.autoAck").equals("true");
         final int queueLimit = this.properties.containsKey("grid.broker.queue.limit") ? Integer.parseInt(this.properties.get("grid.broker.queue.limit")) : 0;
         final int queueThrottling = this.properties.containsKey("grid.broker.queue.throttling") ? Integer.parseInt(this.properties.get("grid.broker.queue.throttling")) : 0;
+        final int confirmWindow = this.properties.containsKey("grid.broker.confirm.window") ? Integer.parseInt(this.properties.get("grid.broker.confirm.window")) : RabbitQueueFactory.DEFAULT_CONFIRM_WINDOW;
         this.gridBroker = new GridBroker(localStorage ? messagesPath : null, lazy, autoAck, queueLimit, queueThrottling);
+        final int prefetch = this.properties.containsKey("grid.broker.prefetch") ? Integer.parseInt(this.properties.get("grid.broker.prefetch")) : 0;
+        final int ackCoalesceCount = this.properties.containsKey("grid.broker.ack.coalesce.count") ? Integer.parseInt(this.properties.get("grid.broker.ack.coalesce.count")) : 0;
+        final long ackCoalesceInterval = this.properties.containsKey("grid.broker.ack.coalesce.interval") ? Long.parseLong(this.properties.get("grid.broker.ack.coalesce.interval")) : 1000L;
+        final int connections = this.properties.containsKey("grid.broker.connections") ? Integer.parseInt(this.properties.get("grid.broker.connections")) : 1;
+        final int channels = this.properties.containsKey("grid.broker.channels") ? Integer.parseInt(this.properties.get("grid.broker.channels")) : 1;
+        final int circuitFailures = this.properties.containsKey("grid.broker.circuit.failures") ? Integer.parseInt(this.properties.get("grid.broker.circuit.failures")) : 3;
+        final long circuitBackoff = this.properties.containsKey("grid.broker.circuit.backoff") ? Long.parseLong(this.properties.get("grid.broker.circuit.backoff")) : 1000L;
+        final long circuitBackoffMax = this.properties.containsKey("grid.broker.circuit.backoff.max") ? Long.parseLong(this.properties.get("grid.broker.circuit.backoff.max")) : 60000L;
+        this.gridBroker.setCircuitBreaker(circuitFailures, circuitBackoff, circuitBackoffMax);
+        final long monitorInterval = this.properties.containsKey("grid.broker.monitor.interval") ? Long.parseLong(this.properties.get("grid.broker.monitor.interval")) : 2000L;
+        this.gridBroker.setQueueMonitor(monitorInterval);
+        final int affinitySize = this.properties.containsKey("grid.broker.affinity.size") ? Integer.parseInt(this.properties.get("grid.broker.affinity.size")) : 100000;
+        final long affinityExpiry = this.properties.containsKey("grid.broker.affinity.expiry") ? Long.parseLong(this.properties.get("grid.broker.affinity.expiry")) : 3600000L;
+        this.gridBroker.setAffinity(affinitySize, affinityExpiry);
+        final MessageCodec codec = MessageCodec.parse(
+                this.properties.containsKey("grid.broker.codec") ? this.properties.get("grid.broker.codec") : "none",
+                this.properties.containsKey("grid.broker.codec.level") ? Integer.parseInt(this.properties.get("grid.broker.codec.level")) : 1);
+        this.gridBroker.setCodec(codec);
+        final int priorityLevels = this.properties.containsKey("grid.broker.priority.levels") ? Integer.parseInt(this.properties.get("grid.broker.priority.levels")) : 0;
+        this.gridBroker.setPriorityLevels(priorityLevels);
+        final int retryAttempts = this.properties.containsKey("grid.broker.retry.attempts") ? Integer.parseInt(this.properties.get("grid.broker.retry.attempts")) : 5;
+        final long retryDelay = this.properties.containsKey("grid.broker.retry.delay") ? Long.parseLong(this.properties.get("grid.broker.retry.delay")) : 1000L;
+        this.gridBroker.setRetry(retryAttempts, retryDelay);
+        final int inProcessCapacity = this.properties.containsKey("grid.broker.inprocess.capacity") ? Integer.parseInt(this.properties.get("grid.broker.inprocess.capacity")) : 0;
+        this.gridBroker.setInProcess(inProcessCapacity);
+        final boolean appendLog = this.properties.containsKey("grid.broker.local.backend") && this.properties.get("grid.broker.local.backend").equals("appendlog");
+        final CommitPolicy localCommitPolicy = CommitPolicy.parse(
+                this.properties.containsKey("grid.broker.local.commit") ? this.properties.get("grid.broker.local.commit") : "operation",
+                this.properties.containsKey("grid.broker.local.commit.interval") ? Long.parseLong(this.properties.get("grid.broker.local.commit.interval")) : 100L,
+                this.properties.containsKey("grid.broker.local.commit.count") ? Integer.parseInt(this.properties.get("grid.broker.local.commit.count")) : 1000);
+        final long leaseTime = this.properties.containsKey("grid.broker.local.lease") ? Long.parseLong(this.properties.get("grid.broker.local.lease")) : MapDBStackQueueFactory.DEFAULT_LEASE_TIME;
+        this.gridBroker.setLocalBackend(appendLog, localCommitPolicy, leaseTime);
+        this.gridBroker.setConfirmWindow(confirmWindow).setPrefetch(prefetch).setAckCoalescing(ackCoalesceCount, ackCoalesceInterval).setChannelPool(connections, channels);
 
         // create storage
         final File assetsPath = new File(this.gridServicePath, "assets");
@@ -21,7 +21,12 @@ package net.yacy.grid.mcp;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -33,6 +38,8 @@ import net.yacy.grid.io.assets.Asset;
 import net.yacy.grid.io.index.CrawlerDocument;
 import net.yacy.grid.io.index.CrawlerDocument.Status;
 import net.yacy.grid.io.index.CrawlerMapping;
+import net.yacy.grid.io.index.ElasticsearchClient.BulkEntry;
+import net.yacy.grid.io.index.ElasticsearchClient.BulkWriteResult;
 import net.yacy.grid.io.index.GridIndex;
 import net.yacy.grid.io.index.WebMapping;
 import net.yacy.grid.tools.CronBox.Telemetry;
@@ -69,41 +76,45 @@ public class IndexListener extends AbstractBrokerListener implements BrokerListe
                 return ActionResult.FAIL_IRREVERSIBLE;
             }
 
-            // for each document, write search index and crawler index
-            indexloop: for (int line = 0; line < jsonlist.length(); line++) try {
+            // collect the documents of the asset; the search index is written in bulks
+            final String webIndexName = this.config.properties.getOrDefault("grid.elasticsearch.indexName.web", GridIndex.DEFAULT_INDEXNAME_WEB);
+            final String typeName = this.config.properties.getOrDefault("grid.elasticsearch.typeName", GridIndex.DEFAULT_TYPENAME);
+            final int bulkSize = Integer.parseInt(this.config.properties.getOrDefault("grid.indexer.bulk.size", "500"));
+            final List<BulkEntry> bulk = new ArrayList<>();
+            final Map<String, String> urls = new LinkedHashMap<>(); // from urlid to url
+            boolean retry = false;
+            for (int line = 0; line < jsonlist.length(); line++) try {
                 final JSONObject json = jsonlist.get(line);
-                if (json.has("index")) continue indexloop; // this is an elasticsearch index directive, we just skip that
-
-                // write search index
-                String date = null;
-                if (date == null && json.has(WebMapping.last_modified.getMapping().name())) date = WebMapping.last_modified.getMapping().name();
-                if (date == null && json.has(WebMapping.load_date_dt.getMapping().name())) date = WebMapping.load_date_dt.getMapping().name();
-                if (date == null && json.has(WebMapping.fresh_date_dt.getMapping().name())) date = WebMapping.fresh_date_dt.getMapping().name();
+                if (json.has("index")) continue; // this is an elasticsearch index directive, we just skip that
                 final String url = json.getString(WebMapping.url_s.getMapping().name());
                 final String urlid = MultiProtocolURL.getDigest(url);
-                final boolean created = this.config.gridIndex.getElasticClient().writeMap(
-                                    this.config.properties.getOrDefault("grid.elasticsearch.indexName.web", GridIndex.DEFAULT_INDEXNAME_WEB),
-                                    this.config.properties.getOrDefault("grid.elasticsearch.typeName", GridIndex.DEFAULT_TYPENAME),
-                                    urlid, json.toMap());
-                Logger.info(this.getClass(), "MCP.processAction indexed " + ((line + 1)/2)  + "/" + jsonlist.length()/2 + "(" + (created ? "created" : "updated")+ "): " + url);
-                //BulkEntry be = new BulkEntry(json.getString("url_s"), "crawler", date, null, json.toMap());
-                //bulk.add(be);
-
-                // write crawler index
-                try {
-                    final JSONObject updater = new JSONObject()
-                            .put(CrawlerMapping.status_s.getMapping().name(), Status.indexed.name())
-                            .put(CrawlerMapping.status_date_dt.getMapping().name(), DateParser.iso8601MillisFormat.format(new Date()));
-                    CrawlerDocument.update(this.config, this.config.gridIndex, urlid, updater);
-                    // check with http://localhost:9200/crawler/_search?q=status_s:indexed
-                } catch (final IOException e) {
-                    // well that should not happen
-                    Logger.warn(this.getClass(), "could not write crawler index", e);
+                final Map<String, Object> map = json.toMap();
+                map.remove("_version"); // the bulk writes without versioning
+                bulk.add(new BulkEntry(urlid, typeName, null, map));
+                urls.put(urlid, url);
+                if (bulk.size() >= bulkSize) {
+                    retry = writeBulk(webIndexName, bulk, urls) || retry;
+                    bulk.clear();
                 }
             } catch (final JSONException je) {
                 Logger.warn(this.getClass(), "", je);
             }
-            //Configuration.index.writeMapBulk(GridIndex.WEB_INDEX_NAME, bulk);
+            if (!bulk.isEmpty()) retry = writeBulk(webIndexName, bulk, urls) || retry;
+
+            // write crawler index for all documents which are in the search index now
+            if (!urls.isEmpty()) try {
+                updateCrawlerIndex(urls.keySet());
+                // check with http://localhost:9200/crawler/_search?q=status_s:indexed
+            } catch (final IOException e) {
+                // well that should not happen
+                Logger.warn(this.getClass(), "could not write crawler index", e);
+            }
+
+            if (retry) {
+                // writing the same documents again is harmless, they are merged into the existing documents again
+                Logger.info(this.getClass(), "MCP.processAction indexing message from queue must be retried: " + sourceasset_path);
+                return ActionResult.FAIL_RETRY;
+            }
             Logger.info(this.getClass(), "MCP.processAction processed indexing message from queue: " + sourceasset_path);
             return ActionResult.SUCCESS;
         } catch (final Throwable e) {
@@ -112,6 +123,57 @@ public class IndexListener extends AbstractBrokerListener implements BrokerListe
         }
     }
 
+    /**
+     * write a bulk of documents to the search index. The documents are merged into existing documents, like
+     * the single writes did before, so fields which other services add to a document are kept.
+     * @param indexName the name of the search index
+     * @param bulk the documents
+     * @param urls a map from the ids to the urls of the documents; documents which could not be written are removed from the map
+     * @return true if documents could not be written for a temporary reason, i.e. an overloaded index; then the message shall be retried
+     */
+    private boolean writeBulk(final String indexName, final List<BulkEntry> bulk, final Map<String, String> urls) {
+        final BulkWriteResult result = this.config.gridIndex.getElasticClient().writeMapBulkUpsert(indexName, bulk);
+        boolean retry = false;
+        for (final Map.Entry<String, String> error: result.getErrors().entrySet()) {
+            final String url = urls.remove(error.getKey());
+            Logger.warn(this.getClass(), "MCP.processAction could not index " + url + ": " + error.getValue());
+            if (isTemporary(error.getValue())) retry = true;
+        }
+        Logger.info(this.getClass(), "MCP.processAction indexed " + bulk.size() + " documents: " + result.getCreated().size() + " created, " + (bulk.size() - result.getCreated().size() - result.getErrors().size()) + " updated, " + result.getErrors().size() + " errors");
+        return retry;
+    }
+
+    /**
+     * failures of single documents which may succeed later; all other failures, i.e. mapping errors, will never succeed
+     */
+    private static boolean isTemporary(final String error) {
+        if (error == null) return false;
+        final String e = error.toLowerCase();
+        return e.contains("rejected_execution") || e.contains("timeout") || e.contains("unavailable") || e.contains("circuit_breaking") || e.contains("too_many_requests");
+    }
+
+    /**
+     * set the status of the crawler documents to indexed, with one bulk read and one bulk write
+     * @param urlids the ids of the documents
+     * @throws IOException
+     */
+    private void updateCrawlerIndex(final Set<String> urlids) throws IOException {
+        final GridIndex index = this.config.gridIndex;
+        Map<String, CrawlerDocument> documents = CrawlerDocument.loadBulk(this.config, index, urlids);
+        if (documents.size() < urlids.size()) {
+            // documents might not be present in the index because it was not refreshed yet
+            index.refresh(this.config.properties.getOrDefault("grid.elasticsearch.indexName.crawler", GridIndex.DEFAULT_INDEXNAME_CRAWLER));
+            documents = CrawlerDocument.loadBulk(this.config, index, urlids);
+            if (documents.size() < urlids.size()) Logger.warn(this.getClass(), "could not find " + (urlids.size() - documents.size()) + " documents in crawler index");
+        }
+        final String now = DateParser.iso8601MillisFormat.format(new Date());
+        for (final CrawlerDocument crawlerDocument: documents.values()) {
+            crawlerDocument.put(CrawlerMapping.status_s.getMapping().name(), Status.indexed.name());
+            crawlerDocument.put(CrawlerMapping.status_date_dt.getMapping().name(), now);
+        }
+        if (!documents.isEmpty()) CrawlerDocument.storeBulk(this.config, index, documents);
+    }
+
      @Override
      public Telemetry getTelemetry() {
          return null;
@@ -36,17 +36,21 @@ import net.yacy.grid.mcp.api.index.ExistService;
 import net.yacy.grid.mcp.api.index.GSASearchService;
 import net.yacy.grid.mcp.api.index.QueryService;
 import net.yacy.grid.mcp.api.index.YaCySearchService;
+import net.yacy.grid.mcp.api.info.ListenerService;
 import net.yacy.grid.mcp.api.info.LogService;
 import net.yacy.grid.mcp.api.info.ServicesService;
 import net.yacy.grid.mcp.api.info.StatusService;
 import net.yacy.grid.mcp.api.info.ThreaddumpService;
+import net.yacy.grid.mcp.api.messages.AcknowledgeBatchService;
 import net.yacy.grid.mcp.api.messages.AcknowledgeService;
 import net.yacy.grid.mcp.api.messages.AvailableService;
 import net.yacy.grid.mcp.api.messages.ClearService;
 import net.yacy.grid.mcp.api.messages.PeekService;
 import net.yacy.grid.mcp.api.messages.QueuesService;
+import net.yacy.grid.mcp.api.messages.ReceiveBatchService;
 import net.yacy.grid.mcp.api.messages.ReceiveService;
 import net.yacy.grid.mcp.api.messages.RecoverService;
+import net.yacy.grid.mcp.api.messages.SendBatchService;
 import net.yacy.grid.mcp.api.messages.SendService;
 import net.yacy.grid.tools.CronBox;
 import net.yacy.grid.tools.CronBox.Telemetry;
@@ -72,6 +76,7 @@ public class MCP {
             StatusService.class,
             ThreaddumpService.class,
             LogService.class,
+            ListenerService.class,
 
             // control services
             LoaderThrottlingService.class,
@@ -85,6 +90,9 @@ public class MCP {
             ReceiveService.class,
             RecoverService.class,
             SendService.class,
+            SendBatchService.class,
+            ReceiveBatchService.class,
+            AcknowledgeBatchService.class,
 
             // asset services
             //RetrieveService.class,
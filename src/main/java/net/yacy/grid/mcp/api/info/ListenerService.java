@@ -0,0 +1,82 @@
+/**
+ *  ListenerService
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.mcp.api.info;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+import net.yacy.grid.http.APIHandler;
+import net.yacy.grid.http.ObjectAPIHandler;
+import net.yacy.grid.http.Query;
+import net.yacy.grid.http.ServiceResponse;
+import net.yacy.grid.mcp.AbstractBrokerListener;
+import net.yacy.grid.mcp.BrokerListener.ActionResult;
+import net.yacy.grid.tools.LatencyHistogram;
+
+/**
+ * The throughput and the processing time of the broker listeners in this process.
+ * Processing times are given in milliseconds for each action and each action result.
+ * test url
+ * http://127.0.0.1:8100/yacy/grid/mcp/info/listener.json
+ */
+public class ListenerService extends ObjectAPIHandler implements APIHandler {
+
+    private static final long serialVersionUID = 4723840127398572093L;
+    public static final String NAME = "listener";
+
+    @Override
+    public String getAPIPath() {
+        return "/yacy/grid/mcp/info/" + NAME + ".json";
+    }
+
+    @Override
+    public ServiceResponse serviceImpl(final Query call, final HttpServletResponse response) {
+        final JSONObject json = new JSONObject(true);
+        for (final Map.Entry<String, AbstractBrokerListener> listener: AbstractBrokerListener.getListeners().entrySet()) {
+            final JSONObject l = new JSONObject(true);
+            l.put("messages_per_second", listener.getValue().messagesPerSecond());
+            l.put("messages_per_minute", listener.getValue().messagesPerMinute());
+            final JSONObject actions = new JSONObject(true);
+            for (final Map.Entry<String, LatencyHistogram[]> action: listener.getValue().getLatencies().entrySet()) {
+                final JSONObject a = new JSONObject(true);
+                for (final ActionResult result: ActionResult.values()) {
+                    final LatencyHistogram h = action.getValue()[result.ordinal()];
+                    if (h.getCount() == 0) continue;
+                    final JSONObject r = new JSONObject(true);
+                    r.put("count", h.getCount());
+                    r.put("mean", h.getMean() / 1000.0d);
+                    r.put("p50", h.getPercentile(50.0d) / 1000.0d);
+                    r.put("p99", h.getPercentile(99.0d) / 1000.0d);
+                    r.put("p999", h.getPercentile(99.9d) / 1000.0d);
+                    r.put("max", h.getMax() / 1000.0d);
+                    a.put(result.name(), r);
+                }
+                actions.put(action.getKey(), a);
+            }
+            l.put("actions", actions);
+            json.put(listener.getKey(), l);
+        }
+        return new ServiceResponse(json);
+    }
+
+}
@@ -35,6 +35,9 @@ import net.yacy.grid.http.APIHandler;
 import net.yacy.grid.http.ObjectAPIHandler;
 import net.yacy.grid.http.Query;
 import net.yacy.grid.http.ServiceResponse;
+import net.yacy.grid.io.messages.AffinityTable;
+import net.yacy.grid.mcp.AbstractBrokerListener;
+import net.yacy.grid.mcp.ConcurrencyLimiter;
 import net.yacy.grid.mcp.Service;
 import net.yacy.grid.tools.OS;
 
@@ -102,6 +105,25 @@ public class StatusService extends ObjectAPIHandler implements APIHandler {
         //system.put("load_system_cpu", OS.getSystemCpuLoad());
         status.put("load_process_cpu", OS.getProcessCpuLoad());
         status.put("server_threads", Service.instance == null ? 0 : Service.instance.getServerThreads());
+        if (Service.instance != null && Service.instance.config.gridBroker != null) {
+            long size = 0, hits = 0, misses = 0, evictions = 0, expirations = 0;
+            for (final AffinityTable table: Service.instance.config.gridBroker.getAffinityTables().values()) {
+                size += table.size();
+                hits += table.getHits();
+                misses += table.getMisses();
+                evictions += table.getEvictions();
+                expirations += table.getExpirations();
+            }
+            status.put("affinity_size", size);
+            status.put("affinity_hit_rate", hits + misses == 0 ? 0.0d : ((double) hits) / (hits + misses));
+            status.put("affinity_evictions", evictions);
+            status.put("affinity_expirations", expirations);
+        }
+        for (final Map.Entry<String, ConcurrencyLimiter> limiter: AbstractBrokerListener.getConcurrencyLimiters().entrySet()) {
+            status.put("concurrency_limit_" + limiter.getKey(), limiter.getValue().getLimit());
+            status.put("concurrency_inflight_" + limiter.getKey(), limiter.getValue().getInFlight());
+            status.put("concurrency_latency_" + limiter.getKey(), limiter.getValue().getLatency());
+        }
         return status;
     }
 
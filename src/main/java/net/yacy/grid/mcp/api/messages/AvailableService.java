@@ -32,6 +32,7 @@ import net.yacy.grid.http.Query;
 import net.yacy.grid.http.ServiceResponse;
 import net.yacy.grid.io.messages.AvailableContainer;
 import net.yacy.grid.io.messages.GridQueue;
+import net.yacy.grid.io.messages.QueueDepthMonitor;
 import net.yacy.grid.mcp.Service;
 
 /**
@@ -63,9 +64,17 @@ public class AvailableService extends ObjectAPIHandler implements APIHandler {
         final JSONObject json = new JSONObject(true);
         if (serviceName.length() > 0 && queueName.length() > 0) {
             try {
-                final AvailableContainer available = Service.instance.config.gridBroker.available(YaCyServices.valueOf(serviceName), new GridQueue(queueName));
+                // the size is taken from the latest sample of the queue depth monitor
+                final YaCyServices service = YaCyServices.valueOf(serviceName);
+                final GridQueue queue = new GridQueue(queueName);
+                final AvailableContainer available = Service.instance.config.gridBroker.bufferedAvailable(service, queue);
+                final QueueDepthMonitor.Depth depth = Service.instance.config.gridBroker.getDepthMonitor().get(service, queue);
                 final String url = available.getFactory().getConnectionURL();
                 json.put(ObjectAPIHandler.AVAILABLE_KEY, available.getAvailable());
+                if (depth != null) {
+                    json.put("enqueueRate", depth.getEnqueueRate());
+                    json.put("dequeueRate", depth.getDequeueRate());
+                }
                 json.put(ObjectAPIHandler.SUCCESS_KEY, true);
                 if (url != null) json.put(ObjectAPIHandler.SERVICE_KEY, url);
             } catch (final IOException e) {
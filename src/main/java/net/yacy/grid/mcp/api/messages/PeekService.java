@@ -19,6 +19,7 @@
 
 package net.yacy.grid.mcp.api.messages;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
@@ -72,13 +73,18 @@ public class PeekService extends ObjectAPIHandler implements APIHandler {
             final YaCyServices service = YaCyServices.valueOf(serviceName);
             final GridQueue queue = new GridQueue(queueName);
             count = Math.min(100, count);
-            final List<MessageContainer> messages = Service.instance.config.gridBroker.peek(service, queue, count);
-            for (final MessageContainer message: messages) {
-                final String payload = message.getPayload() == null ? null : new String(message.getPayload(), StandardCharsets.UTF_8);
-                final JSONObject payloadjson = payload == null ? null : new JSONObject(new JSONTokener(payload));
-                if (payloadjson != null) messageArray.put(payloadjson);
+            try {
+                final List<MessageContainer> messages = Service.instance.config.gridBroker.peek(service, queue, count);
+                for (final MessageContainer message: messages) {
+                    final String payload = message.getPayload() == null ? null : new String(message.getPayload(), StandardCharsets.UTF_8);
+                    final JSONObject payloadjson = payload == null ? null : new JSONObject(new JSONTokener(payload));
+                    if (payloadjson != null) messageArray.put(payloadjson);
+                }
+                json.put(ObjectAPIHandler.SUCCESS_KEY, true);
+            } catch (final IOException e) {
+                json.put(ObjectAPIHandler.SUCCESS_KEY, false);
+                json.put(ObjectAPIHandler.COMMENT_KEY, e.getMessage());
             }
-            json.put(ObjectAPIHandler.SUCCESS_KEY, true);
         } else {
             json.put(ObjectAPIHandler.SUCCESS_KEY, false);
             json.put(ObjectAPIHandler.COMMENT_KEY, "the request must contain a serviceName and a queueName");
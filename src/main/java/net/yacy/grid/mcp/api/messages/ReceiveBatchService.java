@@ -0,0 +1,78 @@
+/**
+ *  ReceiveBatchService
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.yacy.grid.mcp.api.messages;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+import net.yacy.grid.YaCyServices;
+import net.yacy.grid.http.APIHandler;
+import net.yacy.grid.http.ObjectAPIHandler;
+import net.yacy.grid.http.Query;
+import net.yacy.grid.http.ServiceResponse;
+import net.yacy.grid.io.messages.GridQueue;
+import net.yacy.grid.io.messages.MessageBatch;
+import net.yacy.grid.io.messages.MessageContainer;
+import net.yacy.grid.mcp.Service;
+
+/**
+ * Binary variant of the receive service: the response is an application/octet-stream
+ * with the deliveries encoded by MessageBatch.encodeDeliveries. The list is empty if a timeout occurred.
+ * Errors are returned as JSON object with a comment, like in all other message services.
+ * test: call
+ * http://127.0.0.1:8100/yacy/grid/mcp/messages/receivebatch?serviceName=testService&queueName=testQueue&maxCount=100
+ */
+public class ReceiveBatchService extends ObjectAPIHandler implements APIHandler {
+
+    private static final long serialVersionUID = 8578478303031749881L;
+    public static final String NAME = "receivebatch";
+
+    @Override
+    public String getAPIPath() {
+        return "/yacy/grid/mcp/messages/" + NAME;
+    }
+
+    @Override
+    public ServiceResponse serviceImpl(final Query call, final HttpServletResponse response) {
+        final String serviceName = call.get("serviceName", "");
+        final String queueName = call.get("queueName", "");
+        final boolean autoAck = "true".equals(call.get("autoAck", "true"));
+        final long timeout = call.get("timeout", -1);
+        final int maxCount = call.get("maxCount", 1);
+        final JSONObject json = new JSONObject(true);
+        if (serviceName.length() > 0 && queueName.length() > 0 && maxCount > 0) {
+            try {
+                final List<MessageContainer> messages = Service.instance.config.gridBroker.receive(YaCyServices.valueOf(serviceName), new GridQueue(queueName), maxCount, timeout, autoAck);
+                final String url = messages.isEmpty() ? null : messages.get(0).getFactory().getConnectionURL();
+                return new ServiceResponse(MessageBatch.encodeDeliveries(url, messages));
+            } catch (final IOException e) {
+                json.put(ObjectAPIHandler.SUCCESS_KEY, false);
+                json.put(ObjectAPIHandler.COMMENT_KEY, e.getMessage());
+            }
+        } else {
+            json.put(ObjectAPIHandler.SUCCESS_KEY, false);
+            json.put(ObjectAPIHandler.COMMENT_KEY, "the request must contain a serviceName, a queueName and a positive maxCount");
+        }
+        return new ServiceResponse(json);
+    }
+}
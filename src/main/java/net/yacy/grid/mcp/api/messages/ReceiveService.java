@@ -21,9 +21,11 @@ package net.yacy.grid.mcp.api.messages;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import net.yacy.grid.YaCyServices;
@@ -38,6 +40,8 @@ import net.yacy.grid.mcp.Service;
 /**
  * test: call
  * http://127.0.0.1:8100/yacy/grid/mcp/messages/receive.json?serviceName=testService&queueName=testQueue
+ * A batch of messages is returned in a messages array if a maxCount is given:
+ * http://127.0.0.1:8100/yacy/grid/mcp/messages/receive.json?serviceName=testService&queueName=testQueue&maxCount=100
  */
 public class ReceiveService extends ObjectAPIHandler implements APIHandler {
 
@@ -55,8 +59,30 @@ public class ReceiveService extends ObjectAPIHandler implements APIHandler {
         final String queueName = call.get("queueName", "");
         final boolean autoAck = "true".equals(call.get("autoAck", "true"));
         final long timeout = call.get("timeout", -1);
+        final int maxCount = call.get("maxCount", 0);
         final JSONObject json = new JSONObject(true);
-        if (serviceName.length() > 0 && queueName.length() > 0) {
+        if (serviceName.length() > 0 && queueName.length() > 0 && maxCount > 0) {
+            try {
+                final List<MessageContainer> messages = Service.instance.config.gridBroker.receive(YaCyServices.valueOf(serviceName), new GridQueue(queueName), maxCount, timeout, autoAck);
+                // the list is empty if a timeout occurred
+                final JSONArray messageArray = new JSONArray();
+                String url = null;
+                for (final MessageContainer message: messages) {
+                    final byte[] payload = message.getPayload();
+                    messageArray.put(new JSONObject(true)
+                            .put(ObjectAPIHandler.MESSAGE_KEY, payload == null ? "" : new String(payload, StandardCharsets.UTF_8))
+                            .put(ObjectAPIHandler.DELIVERY_TAG, message.getDeliveryTag()));
+                    if (url == null) url = message.getFactory().getConnectionURL();
+                }
+                json.put(ObjectAPIHandler.MESSAGES_KEY, messageArray);
+                json.put(ObjectAPIHandler.COUNT_KEY, messageArray.length());
+                json.put(ObjectAPIHandler.SUCCESS_KEY, true);
+                if (url != null) json.put(ObjectAPIHandler.SERVICE_KEY, url);
+            } catch (final IOException e) {
+                json.put(ObjectAPIHandler.SUCCESS_KEY, false);
+                json.put(ObjectAPIHandler.COMMENT_KEY, e.getMessage());
+            }
+        } else if (serviceName.length() > 0 && queueName.length() > 0) {
             try {
                 final MessageContainer message = Service.instance.config.gridBroker.receive(YaCyServices.valueOf(serviceName), new GridQueue(queueName), timeout, autoAck);
                 // message can be null if a timeout occurred
@@ -0,0 +1,88 @@
+/**
+ *  SendBatchService
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.yacy.grid.mcp.api.messages;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+import net.yacy.grid.YaCyServices;
+import net.yacy.grid.http.APIHandler;
+import net.yacy.grid.http.ObjectAPIHandler;
+import net.yacy.grid.http.Query;
+import net.yacy.grid.http.ServiceResponse;
+import net.yacy.grid.io.messages.GridQueue;
+import net.yacy.grid.io.messages.MessageBatch;
+import net.yacy.grid.io.messages.QueueFactory;
+import net.yacy.grid.mcp.Service;
+
+/**
+ * Binary variant of the send service: the messages are posted as raw bytes in a multipart
+ * attribute 'messages', encoded with MessageBatch.encodePayloads. The payloads are not converted
+ * to strings, so any binary message is transported unchanged.
+ * An optional attribute 'priority' sends all messages with that message priority.
+ * Test: call
+ * curl --form serviceName=testService --form queueName=testQueue --form "messages=@batch.bin" http://127.0.0.1:8100/yacy/grid/mcp/messages/sendbatch
+ */
+public class SendBatchService extends ObjectAPIHandler implements APIHandler {
+
+    private static final long serialVersionUID = 8578478303032749880L;
+    public static final String NAME = "sendbatch";
+    private static final byte[] EMPTY_BATCH = new byte[0];
+
+    @Override
+    public String getAPIPath() {
+        return "/yacy/grid/mcp/messages/" + NAME;
+    }
+
+    @Override
+    public ServiceResponse serviceImpl(final Query call, final HttpServletResponse response) {
+        final String serviceName = call.get("serviceName", "");
+        final String queueName = call.get("queueName", "");
+        final byte[] batch = call.get("messages", EMPTY_BATCH);
+        final int priority = call.get("priority", -1);
+        final JSONObject json = new JSONObject(true);
+        if (serviceName.length() > 0 && queueName.length() > 0 && batch.length > 0) {
+            try {
+                final List<byte[]> messages = MessageBatch.decodePayloads(batch);
+                QueueFactory factory = null;
+                if (priority >= 0) {
+                    for (final byte[] message: messages) factory = Service.instance.config.gridBroker.send(YaCyServices.valueOf(serviceName), new GridQueue(queueName), message, priority);
+                } else {
+                    factory = Service.instance.config.gridBroker.send(YaCyServices.valueOf(serviceName), new GridQueue(queueName), messages);
+                }
+                if (factory == null) throw new IOException("empty message batch");
+                final String url = factory.getConnectionURL();
+                json.put(ObjectAPIHandler.COUNT_KEY, messages.size());
+                json.put(ObjectAPIHandler.SUCCESS_KEY, true);
+                if (url != null) json.put(ObjectAPIHandler.SERVICE_KEY, url);
+            } catch (final IOException e) {
+                json.put(ObjectAPIHandler.SUCCESS_KEY, false);
+                json.put(ObjectAPIHandler.COMMENT_KEY, e.getMessage());
+            }
+        } else {
+            json.put(ObjectAPIHandler.SUCCESS_KEY, false);
+            json.put(ObjectAPIHandler.COMMENT_KEY, "the request must contain a serviceName, a queueName and messages");
+        }
+        return new ServiceResponse(json);
+    }
+}
@@ -21,10 +21,14 @@ package net.yacy.grid.mcp.api.messages;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import net.yacy.grid.YaCyServices;
 import net.yacy.grid.http.APIHandler;
@@ -39,6 +43,8 @@ import net.yacy.grid.mcp.Service;
  * This service takes the query parameters and puts them onto a message stack.
  * Test: call
  * 127.0.0.1:8100/yacy/grid/mcp/messages/send.json?serviceName=testService&queueName=testQueue&message=hello_world
+ * A batch of messages can be sent with a JSON array of strings in the messages attribute:
+ * 127.0.0.1:8100/yacy/grid/mcp/messages/send.json?serviceName=testService&queueName=testQueue&messages=["hello","world"]
  */
 public class SendService extends ObjectAPIHandler implements APIHandler {
 
@@ -55,10 +61,20 @@ public class SendService extends ObjectAPIHandler implements APIHandler {
         final String serviceName = call.get("serviceName", "");
         final String queueName = call.get("queueName", "");
         final String message = call.get("message", "");
+        final String messages = call.get("messages", "");
         final JSONObject json = new JSONObject(true);
-        if (serviceName.length() > 0 && queueName.length() > 0 && message.length() > 0) {
+        if (serviceName.length() > 0 && queueName.length() > 0 && (message.length() > 0 || messages.length() > 0)) {
             try {
-                final QueueFactory factory = Service.instance.config.gridBroker.send(YaCyServices.valueOf(serviceName), new GridQueue(queueName), message.getBytes(StandardCharsets.UTF_8));
+                final QueueFactory factory;
+                if (messages.length() > 0) {
+                    final JSONArray a = new JSONArray(new JSONTokener(messages));
+                    final List<byte[]> batch = new ArrayList<>(a.length());
+                    for (int i = 0; i < a.length(); i++) batch.add(a.getString(i).getBytes(StandardCharsets.UTF_8));
+                    factory = Service.instance.config.gridBroker.send(YaCyServices.valueOf(serviceName), new GridQueue(queueName), batch);
+                    json.put(ObjectAPIHandler.COUNT_KEY, batch.size());
+                } else {
+                    factory = Service.instance.config.gridBroker.send(YaCyServices.valueOf(serviceName), new GridQueue(queueName), message.getBytes(StandardCharsets.UTF_8));
+                }
                 final String url = factory.getConnectionURL();
                 json.put(ObjectAPIHandler.SUCCESS_KEY, true);
                 if (url != null) json.put(ObjectAPIHandler.SERVICE_KEY, url);
@@ -68,7 +84,7 @@ public class SendService extends ObjectAPIHandler implements APIHandler {
             }
         } else {
             json.put(ObjectAPIHandler.SUCCESS_KEY, false);
-            json.put(ObjectAPIHandler.COMMENT_KEY, "the request must contain a serviceName, a queueName and a message");
+            json.put(ObjectAPIHandler.COMMENT_KEY, "the request must contain a serviceName, a queueName and a message or messages");
         }
         return new ServiceResponse(json);
     }
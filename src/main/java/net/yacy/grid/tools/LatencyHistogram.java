@@ -0,0 +1,110 @@
+/**
+ *  LatencyHistogram
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with log-linear buckets, without locks.
+ * Values below 2^SUB_BITS are counted exactly; above, each power of two is divided into 2^SUB_BITS
+ * buckets of the same width. The relative error of a percentile is therefore below 1 / 2^SUB_BITS (about 3%),
+ * for all values from one microsecond up to days, within a fixed array of counters.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BITS = 5;
+    private final static int SUB = 1 << SUB_BITS;
+    private final static int MAX_BITS = 42; // values up to 2^42 microseconds, that is 50 days
+    private final static long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count, sum, max;
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(index(MAX_VALUE) + 1);
+        this.count = new AtomicLong(0);
+        this.sum = new AtomicLong(0);
+        this.max = new AtomicLong(0);
+    }
+
+    private static int index(final long value) {
+        if (value < SUB) return (int) value;
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        return (int) (SUB * shift + (value >>> shift));
+    }
+
+    private static long value(final int index) {
+        if (index < SUB) return index;
+        final int shift = index / SUB - 1;
+        final long m = index - SUB * shift;
+        // the middle of the bucket
+        return (m << shift) + ((1L << shift) >>> 1);
+    }
+
+    /**
+     * record a latency
+     * @param micros the latency in microseconds
+     */
+    public void record(final long micros) {
+        final long v = Math.max(0, Math.min(MAX_VALUE, micros));
+        this.buckets.incrementAndGet(index(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        long m = this.max.get();
+        while (v > m && !this.max.compareAndSet(m, v)) m = this.max.get();
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the average latency in microseconds
+     */
+    public long getMean() {
+        final long c = this.count.get();
+        return c == 0 ? 0 : this.sum.get() / c;
+    }
+
+    /**
+     * @return the highest latency in microseconds
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * compute a percentile. Concurrent records may be counted or not.
+     * @param percentile the percentile in the range 0.0 .. 100.0
+     * @return the latency in microseconds which is not exceeded by the given percentage of all records
+     */
+    public long getPercentile(final double percentile) {
+        final long c = this.count.get();
+        if (c == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100.0d, percentile) / 100.0d * c));
+        long seen = 0;
+        for (int i = 0; i < this.buckets.length(); i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank) return Math.min(value(i), getMax());
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ *  SlidingWindowCounter
+ *  Copyright 16.10.2026 by Michael Peter Christen, @orbiterlab
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.grid.tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter of events within a sliding time window, without locks and without allocation.
+ * The window is a ring of one-second buckets. Each bucket is one long which holds the second it belongs to
+ * in the upper bits and the count in the lower bits, so the reset of a bucket of an older second and the
+ * count of the new second are done with one compare-and-set and no event is lost.
+ * Counts are exact within one second; the oldest second of the window is only partially counted.
+ */
+public class SlidingWindowCounter {
+
+    private final static int COUNT_BITS = 40; // up to 10^12 events in one second
+    private final static long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private final static long SECOND_MASK = (1L << (64 - COUNT_BITS)) - 1; // the second is stored modulo 2^24, that is 194 days
+
+    private final int seconds;
+    private final AtomicLongArray buckets;
+
+    /**
+     * @param seconds the length of the window in seconds
+     */
+    public SlidingWindowCounter(final int seconds) {
+        this.seconds = (int) Math.min(SECOND_MASK, Math.max(1, seconds));
+        this.buckets = new AtomicLongArray(this.seconds);
+    }
+
+    /**
+     * count one event now
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * count events now
+     * @param count the number of events
+     */
+    public void add(final long count) {
+        final long second = System.currentTimeMillis() / 1000;
+        final int i = (int) (second % this.seconds);
+        final long stamp = second & SECOND_MASK;
+        while (true) {
+            final long bucket = this.buckets.get(i);
+            final long c = (bucket >>> COUNT_BITS) == stamp ? (bucket & COUNT_MASK) + count : count;
+            if (this.buckets.compareAndSet(i, bucket, (stamp << COUNT_BITS) | Math.min(COUNT_MASK, c))) return;
+        }
+    }
+
+    /**
+     * @return the number of events within the window
+     */
+    public long sum() {
+        final long second = System.currentTimeMillis() / 1000;
+        long sum = 0;
+        for (int i = 0; i < this.seconds; i++) {
+            final long bucket = this.buckets.get(i);
+            if (((second - (bucket >>> COUNT_BITS)) & SECOND_MASK) < this.seconds) sum += bucket & COUNT_MASK;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the average number of events per second within the window
+     */
+    public double rate() {
+        return ((double) sum()) / this.seconds;
+    }
+
+    public int getSeconds() {
+        return this.seconds;
+    }
+}